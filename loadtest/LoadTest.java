@@ -0,0 +1,111 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Closed-loop load test for the API. Each client is a virtual thread that sends a request, waits for the response and
+ * immediately sends the next one, so the number of requests in flight stays at the client count.
+ * <p>
+ * Run with {@code java loadtest/LoadTest.java <url> [clients] [seconds] [warmupSeconds]}, e.g.
+ * {@code java loadtest/LoadTest.java "http://localhost:8080/stats/time?mode=ROLLING&hours=24&offset=0" 500 30 10}.
+ * Compare runs with {@code spring.threads.virtual.enabled} on and off.
+ * <p>
+ * Latencies go into one shared log-linear histogram, 32 buckets per doubling from 1 microsecond, so memory stays at a
+ * few kilobytes whatever the client count, and percentiles are within about 2% of the true value.
+ */
+public class LoadTest {
+    private static final long FIRST_BUCKET_NANOS = 1_000;
+    private static final int BUCKETS_PER_DOUBLING = 32;
+    private static final int BUCKETS = BUCKETS_PER_DOUBLING * 36; // up to about 19 hours
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java loadtest/LoadTest.java <url> [clients] [seconds] [warmupSeconds]");
+            System.exit(1);
+        }
+        URI uri = URI.create(args[0]);
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int warmupSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        HttpClient httpClient = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET().build();
+
+        long warmupEnd = System.nanoTime() + Duration.ofSeconds(warmupSeconds).toNanos();
+        long end = warmupEnd + Duration.ofSeconds(seconds).toNanos();
+
+        AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        AtomicLong maxNanos = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+
+        System.out.printf("%s: %d clients, %ds warmup, %ds measured%n", uri, clients, warmupSeconds, seconds);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                executor.submit(() -> {
+                    while (true) {
+                        long start = System.nanoTime();
+                        if (start >= end) return;
+                        boolean ok;
+                        try {
+                            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                            ok = response.statusCode() < 400;
+                        } catch (Exception e) {
+                            ok = false;
+                        }
+                        long finish = System.nanoTime();
+                        if (start < warmupEnd || finish > end) continue;
+
+                        if (!ok) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        completed.incrementAndGet();
+                        histogram.incrementAndGet(bucket(finish - start));
+                        maxNanos.accumulateAndGet(finish - start, Math::max);
+                    }
+                });
+            }
+        }
+
+        System.out.printf("requests:   %d ok, %d errors%n", completed.get(), errors.get());
+        System.out.printf("throughput: %.1f req/s%n", completed.get() / (double) seconds);
+        System.out.printf("latency:    p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                percentileMs(histogram, 0.50), percentileMs(histogram, 0.95),
+                percentileMs(histogram, 0.99), maxNanos.get() / 1_000_000.0);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos <= FIRST_BUCKET_NANOS) return 0;
+        int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING * Math.log((double) nanos / FIRST_BUCKET_NANOS) / Math.log(2));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the quantile, or NaN when nothing was recorded.
+     */
+    private static double percentileMs(AtomicLongArray histogram, double quantile) {
+        long total = 0;
+        for (int i = 0; i < histogram.length(); i++) {
+            total += histogram.get(i);
+        }
+        if (total == 0) return Double.NaN;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < histogram.length(); i++) {
+            seen += histogram.get(i);
+            if (seen >= rank) return FIRST_BUCKET_NANOS * Math.pow(2, (double) i / BUCKETS_PER_DOUBLING) / 1_000_000.0;
+        }
+        return Double.NaN;
+    }
+}
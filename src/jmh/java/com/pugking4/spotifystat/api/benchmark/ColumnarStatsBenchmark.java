@@ -0,0 +1,96 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.stats.ColumnarStats;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ColumnarStats} constructor and each public metric, for a period holding the newest tenth of the
+ * history. Metric benchmarks share one instance built during setup, so they measure the metric alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ColumnarStatsBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int plays;
+
+    private HistorySnapshot history;
+    private Instant from;
+    private Instant to;
+    private ColumnarStats columnarStats;
+
+    @Setup
+    public void setUp() {
+        history = new HistoryResultSets(PlayHistoryGenerator.generate(plays, Instant.now())).load();
+        from = history.get(history.size() - history.size() / 10 - 1).timeFinished();
+        to = history.highWaterMark().plusSeconds(1);
+        columnarStats = new ColumnarStats(history, from, to);
+    }
+
+    @Benchmark
+    public ColumnarStats construct() {
+        return new ColumnarStats(history, from, to);
+    }
+
+    @Benchmark
+    public int totalPlays() {
+        return columnarStats.totalPlays();
+    }
+
+    @Benchmark
+    public long totalListeningTime() {
+        return columnarStats.totalListeningTime();
+    }
+
+    @Benchmark
+    public Object topTracks() {
+        return columnarStats.topTracks(5);
+    }
+
+    @Benchmark
+    public Object calculateAllSingleValueStats() {
+        return columnarStats.calculateAllSingleValueStats();
+    }
+
+    @Benchmark
+    public Object findLongestTrack() {
+        return columnarStats.findLongestTrack();
+    }
+
+    @Benchmark
+    public Object findShortestTrack() {
+        return columnarStats.findShortestTrack();
+    }
+
+    @Benchmark
+    public Object findLongestListeningSession() {
+        return columnarStats.findLongestListeningSession();
+    }
+
+    @Benchmark
+    public Object calculateListeningTimeHeatmap() {
+        return columnarStats.calculateListeningTimeHeatmap(15);
+    }
+
+    @Benchmark
+    public Object calculateArtistDistribution() {
+        return columnarStats.calculateArtistDistribution();
+    }
+
+    @Benchmark
+    public Object findMostNicheArtist() {
+        return columnarStats.findMostNicheArtist();
+    }
+
+    @Benchmark
+    public Object findMostPopularArtist() {
+        return columnarStats.findMostPopularArtist();
+    }
+}
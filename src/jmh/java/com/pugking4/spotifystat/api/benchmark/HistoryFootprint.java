@@ -0,0 +1,46 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayedTrackMapper;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Retained heap of the resident history, held as {@link HistorySnapshot} columns, against the {@code List<PlayedTrack>}
+ * the repository maps the same rows into, which is what the cache used to hold. Sizes are walked with JOL, so they
+ * count every object reachable from each representation, catalogue and spare capacity included. The in-memory result
+ * sets hand out the same strings for every row of a track, so the list comes out smaller than one mapped from a real
+ * driver and the ratio is a lower bound.
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:exec@footprint}, optionally passing other scales as
+ * {@code -Dfootprint.plays=10000,100000}. The columns should take at least five times less at 100k and 1M plays.
+ */
+public final class HistoryFootprint {
+    private HistoryFootprint() {}
+
+    public static void main(String[] args) throws SQLException {
+        String plays = args.length == 0 ? "100000,1000000" : String.join(",", args);
+        int[] scales = Arrays.stream(plays.split(",")).map(String::strip).mapToInt(Integer::parseInt).toArray();
+
+        System.out.printf("%10s %18s %18s %8s%n", "plays", "List<PlayedTrack>", "HistorySnapshot", "ratio");
+        for (int scale : scales) {
+            HistoryResultSets resultSets = new HistoryResultSets(PlayHistoryGenerator.generate(scale, Instant.now()));
+            long listBytes = retainedBytes(new PlayedTrackMapper(resultSets.connection()).map(resultSets.history()));
+            long snapshotBytes = retainedBytes(resultSets.load());
+
+            System.out.printf("%10d %15.1f MB %15.1f MB %7.1fx%n", scale, megabytes(listBytes), megabytes(snapshotBytes),
+                    (double) listBytes / snapshotBytes);
+        }
+    }
+
+    private static long retainedBytes(Object root) {
+        return GraphLayout.parseInstance(root).totalSize();
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
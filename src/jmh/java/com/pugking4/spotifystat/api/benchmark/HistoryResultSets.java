@@ -0,0 +1,152 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * In-memory JDBC objects that serve a generated history the way Postgres would answer the repository's queries, so
+ * result set mapping can be measured without a database. History result sets return the joined rows for every play,
+ * with ids in play order; {@code ANY(?)} statements return the artist rows for the bound track or album ids.
+ */
+final class HistoryResultSets {
+    private final List<Map<String, Object>> historyRows = new ArrayList<>();
+    private final Map<String, List<Artist>> trackArtists = new HashMap<>();
+    private final Map<String, List<Artist>> albumArtists = new HashMap<>();
+
+    HistoryResultSets(List<PlayedTrack> history) {
+        for (PlayedTrack playedTrack : history) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", historyRows.size() + 1L);
+            row.put("context_type", playedTrack.contextType());
+            row.put("album_id", playedTrack.track().album().id());
+            row.put("track_id", playedTrack.track().id());
+            row.put("device_name", playedTrack.device().name());
+            row.put("current_popularity", playedTrack.currentPopularity());
+            row.put("time_finished", Timestamp.from(playedTrack.timeFinished()));
+            row.put("track_name", playedTrack.track().name());
+            row.put("duration_ms", playedTrack.track().durationMs());
+            row.put("is_explicit", playedTrack.track().isExplicit());
+            row.put("is_local", playedTrack.track().isLocal());
+            row.put("album_name", playedTrack.track().album().name());
+            row.put("cover", playedTrack.track().album().cover());
+            row.put("release_date", Timestamp.valueOf(playedTrack.track().album().releaseDate().atStartOfDay()));
+            row.put("release_date_precision", playedTrack.track().album().releaseDatePrecision());
+            row.put("album_type", playedTrack.track().album().albumType());
+            row.put("type", playedTrack.device().type());
+            historyRows.add(row);
+
+            trackArtists.putIfAbsent(playedTrack.track().id(), playedTrack.track().artists());
+            albumArtists.putIfAbsent(playedTrack.track().album().id(), playedTrack.track().album().artists());
+        }
+    }
+
+    ResultSet history() {
+        return resultSet(historyRows);
+    }
+
+    /**
+     * Loads every row through {@link PlayHistoryCache}, the way the service builds its snapshot at startup.
+     */
+    HistorySnapshot load() {
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(dataSource()));
+        cache.refresh();
+        return cache.snapshot();
+    }
+
+    DataSource dataSource() {
+        return proxy(DataSource.class, (method, _) -> "getConnection".equals(method) ? connection() : null);
+    }
+
+    Connection connection() {
+        return proxy(Connection.class, (method, args) -> switch (method) {
+            case "prepareStatement" -> statement((String) args[0]);
+            case "createArrayOf" -> proxy(Array.class, (m, a) -> "getArray".equals(m) ? args[1] : null);
+            default -> null;
+        });
+    }
+
+    private PreparedStatement statement(String sql) {
+        Object[][] ids = new Object[1][];
+        return proxy(PreparedStatement.class, (method, args) -> switch (method) {
+            case "setArray" -> {
+                ids[0] = (Object[]) ((Array) args[1]).getArray();
+                yield null;
+            }
+            case "executeQuery" -> sql.contains("track_history")
+                    ? history()
+                    : resultSet(artistRows(sql.contains("track_artist") ? trackArtists : albumArtists, ids[0]));
+            default -> null;
+        });
+    }
+
+    private static List<Map<String, Object>> artistRows(Map<String, List<Artist>> links, Object[] ownerIds) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Object ownerId : ownerIds) {
+            for (Artist artist : links.getOrDefault((String) ownerId, List.of())) {
+                Map<String, Object> row = new HashMap<>();
+                row.put("owner_id", ownerId);
+                row.put("id", artist.id());
+                row.put("name", artist.name());
+                row.put("followers", artist.followers());
+                row.put("genres", artist.genres() == null ? null : String.join(",", artist.genres()));
+                row.put("image", artist.image());
+                row.put("popularity", artist.popularity());
+                row.put("updated_at", artist.updatedAt() == null ? null : Timestamp.from(artist.updatedAt()));
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static ResultSet resultSet(List<Map<String, Object>> rows) {
+        Iterator<Map<String, Object>> iterator = rows.iterator();
+        Map<String, Object>[] current = new Map[1];
+        return proxy(ResultSet.class, (method, args) -> switch (method) {
+            case "next" -> {
+                current[0] = iterator.hasNext() ? iterator.next() : null;
+                yield current[0] != null;
+            }
+            case "getString" -> {
+                Object value = current[0].get((String) args[0]);
+                yield value == null ? null : value.toString();
+            }
+            case "getObject", "getTimestamp" -> current[0].get((String) args[0]);
+            case "getInt" -> current[0].get((String) args[0]) instanceof Number n ? n.intValue() : 0;
+            case "getLong" -> current[0].get((String) args[0]) instanceof Number n ? n.longValue() : 0L;
+            case "getBoolean" -> Boolean.TRUE.equals(current[0].get((String) args[0]));
+            default -> null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args) throws Exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(HistoryResultSets.class.getClassLoader(), new Class<?>[]{type},
+                (self, method, args) -> {
+                    Object result = switch (method.getName()) {
+                        case "hashCode" -> System.identityHashCode(self);
+                        case "equals" -> self == args[0];
+                        case "toString" -> type.getSimpleName() + "@benchmark";
+                        default -> handler.handle(method.getName(), args);
+                    };
+                    if (result != null) return result;
+                    Class<?> returnType = method.getReturnType();
+                    if (returnType == boolean.class) return false;
+                    if (returnType == int.class) return 0;
+                    if (returnType == long.class) return 0L;
+                    return null;
+                });
+    }
+}
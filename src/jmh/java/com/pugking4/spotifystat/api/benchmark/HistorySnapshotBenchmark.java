@@ -0,0 +1,34 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the resident history from scratch, as {@code PlayHistoryCache} does at startup without a snapshot file:
+ * mapping every row over in-memory result sets, then filling the columns, hour aggregates and session index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HistorySnapshotBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int plays;
+
+    private HistoryResultSets resultSets;
+
+    @Setup
+    public void setUp() {
+        resultSets = new HistoryResultSets(PlayHistoryGenerator.generate(plays, Instant.now()));
+    }
+
+    @Benchmark
+    public HistorySnapshot load() {
+        return resultSets.load();
+    }
+}
@@ -0,0 +1,77 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.stats.ColumnarStats;
+import com.pugking4.spotifystat.api.stats.SingleValueStats;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import com.pugking4.spotifystat.common.dto.Track;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Plays-outside-the-period work for a period covering the most recent quarter of the history. {@code columnar}
+ * builds a {@link ColumnarStats} and its single-value stats, which count new tracks from each track's first play and
+ * its plays after the period. {@code removeAll} is the original approach, which copied all-time data and called
+ * {@code ArrayList.removeAll(period)}; it grows quadratically, so it only runs up to 100k plays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NewTracksPlayedBenchmark {
+    @State(Scope.Benchmark)
+    public static class History {
+        @Param({"10000", "100000", "1000000"})
+        public int plays;
+
+        HistorySnapshot allTime;
+        Instant from;
+        Instant to;
+
+        @Setup
+        public void setUp() {
+            allTime = new HistoryResultSets(PlayHistoryGenerator.generate(plays, Instant.now())).load();
+            from = allTime.get(allTime.size() - allTime.size() / 4 - 1).timeFinished();
+            to = allTime.highWaterMark().plusSeconds(1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class QuadraticHistory {
+        @Param({"10000", "30000", "100000"})
+        public int quadraticPlays;
+
+        List<PlayedTrack> allTime;
+        List<PlayedTrack> period;
+
+        @Setup
+        public void setUp() {
+            allTime = PlayHistoryGenerator.generate(quadraticPlays, Instant.now());
+            period = allTime.subList(allTime.size() - allTime.size() / 4, allTime.size());
+        }
+    }
+
+    @Benchmark
+    public SingleValueStats columnar(History history) {
+        return new ColumnarStats(history.allTime, history.from, history.to).calculateAllSingleValueStats();
+    }
+
+    @Benchmark
+    public int removeAll(QuadraticHistory history) {
+        List<PlayedTrack> excluded = new ArrayList<>(history.allTime);
+        excluded.removeAll(history.period);
+
+        Set<Track> newPlayedTracks = history.period.stream()
+                .map(PlayedTrack::track)
+                .collect(Collectors.toCollection(HashSet::new));
+        newPlayedTracks.removeAll(excluded.stream()
+                .map(PlayedTrack::track)
+                .collect(Collectors.toSet()));
+        return newPlayedTracks.size();
+    }
+}
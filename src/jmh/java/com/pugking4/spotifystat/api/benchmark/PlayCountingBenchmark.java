@@ -0,0 +1,84 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.stats.ArtistPercentage;
+import com.pugking4.spotifystat.api.stats.ColumnarStats;
+import com.pugking4.spotifystat.api.stats.TrackPlayCount;
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import com.pugking4.spotifystat.common.dto.Track;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Track and artist play counting over the whole history. {@code columnar} runs the current {@link ColumnarStats}
+ * path ({@code topTracks} and {@code calculateArtistDistribution}); {@code groupingByFindFirst} is the original
+ * construction, which resolved every grouped id back to its record with a linear scan over the distinct set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlayCountingBenchmark {
+    @Param({"10000", "100000"})
+    public int plays;
+
+    private List<PlayedTrack> history;
+    private HistorySnapshot snapshot;
+    private Instant from;
+    private Instant to;
+
+    @Setup
+    public void setUp() {
+        history = PlayHistoryGenerator.generate(plays, Instant.now());
+        snapshot = new HistoryResultSets(history).load();
+        from = snapshot.getFirst().timeFinished().minusSeconds(1);
+        to = snapshot.highWaterMark().plusSeconds(1);
+    }
+
+    @Benchmark
+    public void columnar(Blackhole blackhole) {
+        ColumnarStats columnarStats = new ColumnarStats(snapshot, from, to);
+        blackhole.consume(columnarStats.topTracks(5));
+        blackhole.consume(columnarStats.calculateArtistDistribution());
+    }
+
+    @Benchmark
+    public void groupingByFindFirst(Blackhole blackhole) {
+        List<Track> tracks = history.stream().map(PlayedTrack::track).toList();
+        List<Artist> artists = tracks.stream().map(Track::artists).flatMap(List::stream).toList();
+        Set<Track> distinctTracks = new HashSet<>(tracks);
+        Set<Artist> distinctArtists = new HashSet<>(artists);
+
+        Map<Track, Integer> trackPlayCounts = tracks.stream()
+                .collect(Collectors.groupingBy(Track::id, Collectors.summingInt(_ -> 1)))
+                .entrySet().stream()
+                .collect(Collectors.toMap(
+                        e -> distinctTracks.stream().filter(t -> t.id().equals(e.getKey())).findFirst().orElseThrow(),
+                        Map.Entry::getValue));
+        Map<Artist, Integer> artistPlayCounts = artists.stream()
+                .collect(Collectors.groupingBy(Artist::id, Collectors.summingInt(_ -> 1)))
+                .entrySet().stream()
+                .collect(Collectors.toMap(
+                        e -> distinctArtists.stream().filter(a -> a.id().equals(e.getKey())).findFirst().orElseThrow(),
+                        Map.Entry::getValue));
+
+        blackhole.consume(trackPlayCounts.entrySet().stream()
+                .sorted(Map.Entry.<Track, Integer>comparingByValue().reversed())
+                .limit(5)
+                .map(e -> new TrackPlayCount(e.getKey(), e.getValue()))
+                .toList());
+        blackhole.consume(artistPlayCounts.entrySet().stream()
+                .map(e -> new ArtistPercentage(e.getKey(), e.getValue(), (double) e.getValue() / history.size()))
+                .sorted(Comparator.comparingDouble(ArtistPercentage::percentageOfTracks))
+                .toList()
+                .reversed());
+    }
+}
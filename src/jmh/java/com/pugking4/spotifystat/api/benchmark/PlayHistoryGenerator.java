@@ -0,0 +1,79 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.common.dto.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic play history for benchmarks. Plays are returned oldest first, a few minutes apart with
+ * occasional longer gaps so that sessions form, and end at the supplied instant. The catalogue grows with the history,
+ * from a thousand artists at small scales to several thousand at a million plays, and about one track or album in six
+ * has more than one artist.
+ */
+public final class PlayHistoryGenerator {
+    private static final String[] CONTEXT_TYPES = {"collection", "playlist", "album"};
+
+    private PlayHistoryGenerator() {}
+
+    public static List<PlayedTrack> generate(int plays, Instant end) {
+        Random random = new Random(42);
+
+        int artistCount = Math.max(1_000, plays / 200);
+        int albumCount = Math.max(20, plays / 400);
+        int trackCount = Math.max(100, plays / 40);
+
+        List<Artist> artists = new ArrayList<>(artistCount);
+        for (int i = 0; i < artistCount; i++) {
+            artists.add(new Artist("artist" + i, "Artist " + i, random.nextInt(5_000_000), List.of("genre" + (i % 40)),
+                    "https://artist" + i, random.nextInt(101), end));
+        }
+
+        List<Album> albums = new ArrayList<>(albumCount);
+        for (int i = 0; i < albumCount; i++) {
+            albums.add(new Album("album" + i, "Album " + i, "https://album" + i, LocalDate.of(2000, 1, 1).plusDays(random.nextInt(9000)),
+                    "day", i % 4 == 0 ? "single" : "album", pickArtists(random, artists)));
+        }
+
+        List<Track> tracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            tracks.add(new Track("track" + i, "Track " + i, albums.get(random.nextInt(albumCount)), 120_000 + random.nextInt(240_000),
+                    random.nextInt(5) == 0, random.nextInt(50) == 0, pickArtists(random, artists)));
+        }
+
+        List<Device> devices = List.of(
+                new Device("Device One", "Computer"),
+                new Device("Device Two", "Smartphone"),
+                new Device("Device Three", "Speaker")
+        );
+
+        long[] offsets = new long[plays];
+        long offset = 0;
+        for (int i = plays - 1; i >= 0; i--) {
+            offsets[i] = offset;
+            offset += random.nextInt(20) == 0 ? 3_600 + random.nextInt(36_000) : 150 + random.nextInt(120);
+        }
+
+        List<PlayedTrack> history = new ArrayList<>(plays);
+        for (int i = 0; i < plays; i++) {
+            // Skew towards a smaller set of favourites, like a real history
+            int trackIndex = random.nextInt(4) == 0 ? random.nextInt(trackCount) : random.nextInt(Math.max(1, trackCount / 10));
+            history.add(new PlayedTrack(tracks.get(trackIndex), CONTEXT_TYPES[random.nextInt(CONTEXT_TYPES.length)],
+                    devices.get(random.nextInt(devices.size())), random.nextInt(101), end.minusSeconds(offsets[i])));
+        }
+        return history;
+    }
+
+    private static List<Artist> pickArtists(Random random, List<Artist> artists) {
+        int count = random.nextInt(6) == 0 ? 2 + random.nextInt(2) : 1;
+        List<Artist> picked = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Artist artist = artists.get(random.nextInt(artists.size()));
+            if (!picked.contains(artist)) picked.add(artist);
+        }
+        return picked;
+    }
+}
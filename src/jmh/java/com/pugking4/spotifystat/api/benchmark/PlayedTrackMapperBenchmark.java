@@ -0,0 +1,37 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.PlayedTrackMapper;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result set mapping as done by {@code TrackRepository.mapResultSetToPlayedTracks}, over in-memory result sets so
+ * only the mapper's own work is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PlayedTrackMapperBenchmark {
+    @Param({"10000", "100000"})
+    public int plays;
+
+    private HistoryResultSets resultSets;
+
+    @Setup
+    public void setUp() {
+        resultSets = new HistoryResultSets(PlayHistoryGenerator.generate(plays, Instant.now()));
+    }
+
+    @Benchmark
+    public List<PlayedTrack> map() throws SQLException {
+        return new PlayedTrackMapper(resultSets.connection()).map(resultSets.history());
+    }
+}
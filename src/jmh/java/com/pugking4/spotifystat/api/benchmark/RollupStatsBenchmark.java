@@ -0,0 +1,98 @@
+package com.pugking4.spotifystat.api.benchmark;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.RollupSum;
+import com.pugking4.spotifystat.api.stats.DailyRollup;
+import com.pugking4.spotifystat.api.stats.RollupDimension;
+import com.pugking4.spotifystat.api.stats.RollupStats;
+import com.pugking4.spotifystat.api.stats.RollupTotals;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RollupStats} for a period starting at midnight about a tenth of the history back, with the rollup last
+ * updated an hour before the newest play. {@code of} replays the per-key rows {@code DailyRollupRepository.sumBetween}
+ * would return and adds the tail after the high-water mark from the snapshot, as a request does. Metric benchmarks
+ * share one instance built during setup, so they measure the metric alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RollupStatsBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int plays;
+
+    private HistorySnapshot history;
+    private Instant from;
+    private Instant to;
+    private Instant highWaterMark;
+    private List<DailyRollup.Row> summedRows;
+    private RollupStats rollupStats;
+
+    @Setup
+    public void setUp() {
+        history = new HistoryResultSets(PlayHistoryGenerator.generate(plays, Instant.now())).load();
+        ZoneId zone = ZoneId.systemDefault();
+        from = LocalDate.ofInstant(history.get(history.size() - history.size() / 10).timeFinished(), zone).atStartOfDay(zone).toInstant();
+        to = history.highWaterMark().plusSeconds(1);
+        highWaterMark = history.highWaterMark().minusSeconds(3_600);
+
+        int fromIndex = history.firstIndexAtOrAfter(from);
+        int toIndex = history.firstIndexAfter(highWaterMark);
+        summedRows = sumByKey(DailyRollup.aggregate(history.subList(fromIndex, toIndex)).rows());
+        rollupStats = of();
+    }
+
+    private static List<DailyRollup.Row> sumByKey(List<DailyRollup.Row> rows) {
+        Map<RollupDimension, Map<String, long[]>> sums = new EnumMap<>(RollupDimension.class);
+        for (DailyRollup.Row row : rows) {
+            long[] sum = sums.computeIfAbsent(row.dimension(), _ -> new HashMap<>()).computeIfAbsent(row.key(), _ -> new long[2]);
+            sum[0] += row.playCount();
+            sum[1] += row.listeningMs();
+        }
+        List<DailyRollup.Row> summed = new ArrayList<>();
+        sums.forEach((dimension, keys) -> keys.forEach((key, sum) ->
+                summed.add(new DailyRollup.Row(dimension, null, key, Math.toIntExact(sum[0]), sum[1]))));
+        return summed;
+    }
+
+    @Benchmark
+    public RollupStats of() {
+        RollupTotals totals = new RollupTotals();
+        summedRows.forEach(totals::add);
+        return RollupStats.of(new RollupSum(totals, highWaterMark), history, from, to);
+    }
+
+    @Benchmark
+    public int totalPlays() {
+        return rollupStats.totalPlays();
+    }
+
+    @Benchmark
+    public long totalListeningTime() {
+        return rollupStats.totalListeningTime();
+    }
+
+    @Benchmark
+    public Object topTracks() {
+        return rollupStats.topTracks(5);
+    }
+
+    @Benchmark
+    public Object calculateListeningTimeHeatmap() {
+        return rollupStats.calculateListeningTimeHeatmap(15);
+    }
+
+    @Benchmark
+    public Object calculateArtistDistribution() {
+        return rollupStats.calculateArtistDistribution();
+    }
+}
@@ -0,0 +1,9 @@
+package com.pugking4.spotifystat.api.data;
+
+import java.time.Instant;
+
+/**
+ * A refresh that brought in plays finished before the day it ran on, which can change calendar periods already
+ * over: the highest id it read and the earliest finish time among its plays.
+ */
+record Backfill(long lastId, Instant earliestTimeFinished) {}
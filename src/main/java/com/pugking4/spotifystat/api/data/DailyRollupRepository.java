@@ -0,0 +1,164 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.api.stats.DailyRollup;
+import com.pugking4.spotifystat.api.stats.RollupDimension;
+import com.pugking4.spotifystat.api.stats.RollupTotals;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Maintains {@code daily_play_rollup}, per-day aggregates of {@code track_history}, and sums it over date ranges.
+ * <p>
+ * Updates run on a schedule, off the request path, and are incremental: each one aggregates the rows added after the
+ * highest id stored in {@code rollup_state}, adds them onto the existing day rows, and moves the id in the same
+ * transaction. Going by id rather than finish time picks up rows inserted late or sharing a finish time with the last
+ * row folded in.
+ */
+@Repository
+public class DailyRollupRepository {
+    private static final String ROLLUP_NAME = "daily_play_rollup";
+
+    private record State(long lastId, Instant highWaterMark) {}
+
+    private final DataSource dataSource;
+    private final TrackRepository trackRepository;
+
+    public DailyRollupRepository(DataSource dataSource, TrackRepository trackRepository) {
+        this.dataSource = dataSource;
+        this.trackRepository = trackRepository;
+    }
+
+    /**
+     * Folds rows added to {@code track_history} since the last update into the rollup. The first update after the
+     * tables are created aggregates the whole history.
+     */
+    @Scheduled(initialDelayString = "${rollup.update-interval-ms:60000}", fixedDelayString = "${rollup.update-interval-ms:60000}")
+    public synchronized void update() {
+        try (Connection db = dataSource.getConnection()) {
+            db.setAutoCommit(false);
+            try {
+                State state = readState(db, "FOR UPDATE");
+                HistoryBatch batch = trackRepository.findAddedAfter(state.lastId());
+                if (!batch.plays().isEmpty()) {
+                    upsertRows(db, DailyRollup.aggregate(batch.plays()));
+                    Instant latest = batch.plays().getLast().timeFinished();
+                    if (state.highWaterMark() != null && state.highWaterMark().isAfter(latest)) latest = state.highWaterMark();
+                    saveState(db, new State(batch.lastId(), latest));
+                }
+                db.commit();
+            } catch (SQLException | RuntimeException e) {
+                db.rollback();
+                throw e;
+            } finally {
+                db.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private State readState(Connection db, String lock) throws SQLException {
+        String sql = """
+                SELECT last_id, high_water
+                FROM rollup_state
+                WHERE name = ?
+                %s;
+            """.formatted(lock);
+
+        try (PreparedStatement st = db.prepareStatement(sql)) {
+            st.setString(1, ROLLUP_NAME);
+            try (ResultSet rs = st.executeQuery()) {
+                if (!rs.next()) return new State(0, null);
+                Timestamp highWater = rs.getTimestamp("high_water");
+                return new State(rs.getLong("last_id"), highWater == null ? null : highWater.toInstant());
+            }
+        }
+    }
+
+    private void upsertRows(Connection db, DailyRollup rollup) throws SQLException {
+        String sql = """
+                INSERT INTO daily_play_rollup (dimension, day, key, play_count, listening_ms)
+                VALUES (?, ?, ?, ?, ?)
+                ON CONFLICT (dimension, day, key) DO UPDATE
+                SET play_count = daily_play_rollup.play_count + EXCLUDED.play_count,
+                    listening_ms = daily_play_rollup.listening_ms + EXCLUDED.listening_ms;
+            """;
+
+        try (PreparedStatement st = db.prepareStatement(sql)) {
+            for (DailyRollup.Row row : rollup.rows()) {
+                st.setString(1, row.dimension().name());
+                st.setDate(2, Date.valueOf(row.day()));
+                st.setString(3, row.key());
+                st.setInt(4, row.playCount());
+                st.setLong(5, row.listeningMs());
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+    }
+
+    private void saveState(Connection db, State state) throws SQLException {
+        String sql = """
+                INSERT INTO rollup_state (name, last_id, high_water)
+                VALUES (?, ?, ?)
+                ON CONFLICT (name) DO UPDATE
+                SET last_id = EXCLUDED.last_id,
+                    high_water = EXCLUDED.high_water;
+            """;
+
+        try (PreparedStatement st = db.prepareStatement(sql)) {
+            st.setString(1, ROLLUP_NAME);
+            st.setLong(2, state.lastId());
+            st.setTimestamp(3, state.highWaterMark() == null ? null : Timestamp.from(state.highWaterMark()));
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Sums the rollup over {@code [from, to)}. The state row is share-locked while the days are summed, so an update
+     * cannot commit in between and the high-water mark returned is the one the sums were taken at.
+     */
+    public RollupSum sumBetween(LocalDate from, LocalDate to) {
+        String sql = """
+                SELECT dimension, key, SUM(play_count) AS play_count, SUM(listening_ms) AS listening_ms
+                FROM daily_play_rollup
+                WHERE day >= ? AND day < ?
+                GROUP BY dimension, key;
+            """;
+
+        try (Connection db = dataSource.getConnection()) {
+            db.setAutoCommit(false);
+            try (PreparedStatement st = db.prepareStatement(sql)) {
+                State state = readState(db, "FOR SHARE");
+                st.setDate(1, Date.valueOf(from));
+                st.setDate(2, Date.valueOf(to));
+
+                RollupTotals totals = new RollupTotals();
+                try (ResultSet rs = st.executeQuery()) {
+                    while (rs.next()) {
+                        totals.add(
+                                RollupDimension.valueOf(rs.getString("dimension")),
+                                rs.getString("key"),
+                                rs.getLong("play_count"),
+                                rs.getLong("listening_ms")
+                        );
+                    }
+                }
+                db.commit();
+                return new RollupSum(totals, state.highWaterMark());
+            } catch (SQLException | RuntimeException e) {
+                db.rollback();
+                throw e;
+            } finally {
+                db.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class DatabaseConfig {
+    @Value("${database.url:jdbc:postgresql://localhost:5433/track-database}")
+    private String url;
+    @Value("${database.username}")
+    private String username;
+    @Value("${database.password}")
+    private String password;
+
+    @Value("${database.pool.maximum-size:10}")
+    private int maximumPoolSize;
+    @Value("${database.pool.minimum-idle:2}")
+    private int minimumIdle;
+    @Value("${database.pool.connection-timeout-ms:5000}")
+    private long connectionTimeoutMs;
+    @Value("${database.pool.validation-timeout-ms:2000}")
+    private long validationTimeoutMs;
+    @Value("${database.pool.keepalive-ms:120000}")
+    private long keepaliveMs;
+    @Value("${database.pool.max-lifetime-ms:1800000}")
+    private long maxLifetimeMs;
+
+    @Value("${database.statement-cache.prepare-threshold:3}")
+    private int prepareThreshold;
+    @Value("${database.statement-cache.queries:256}")
+    private int statementCacheQueries;
+    @Value("${database.statement-cache.size-mib:5}")
+    private int statementCacheSizeMiB;
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource trackDataSource() {
+        if (username == null || password == null) {
+            throw new IllegalStateException("Database credentials not configured");
+        }
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("track-database");
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+
+        // Broken connections fail validation and are evicted, so the pool reconnects instead of the process restarting
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(minimumIdle);
+        config.setConnectionTimeout(connectionTimeoutMs);
+        config.setValidationTimeout(validationTimeoutMs);
+        config.setKeepaliveTime(keepaliveMs);
+        config.setMaxLifetime(maxLifetimeMs);
+
+        // Server-side prepared statement cache, kept per physical connection by the driver
+        config.addDataSourceProperty("prepareThreshold", prepareThreshold);
+        config.addDataSourceProperty("preparedStatementCacheQueries", statementCacheQueries);
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", statementCacheSizeMiB);
+
+        return new HikariDataSource(config);
+    }
+}
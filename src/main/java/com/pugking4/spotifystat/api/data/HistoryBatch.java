@@ -0,0 +1,11 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+
+import java.util.List;
+
+/**
+ * Plays added to the history after a known row, oldest first. {@code lastId} is the highest {@code track_history} id
+ * among them, or the id asked after when there are none, so it can be passed straight to the next request.
+ */
+public record HistoryBatch(List<PlayedTrack> plays, long lastId) {}
@@ -0,0 +1,327 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.api.stats.ListeningDays;
+import com.pugking4.spotifystat.api.stats.Session;
+import com.pugking4.spotifystat.common.dto.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only columnar store behind {@link PlayHistoryCache}.
+ * <p>
+ * A play is a row across parallel primitive arrays: finish time in epoch microseconds, track index, device index,
+ * context type index and popularity. Tracks, albums, artists, devices and context types are each held once in
+ * dictionary tables, so the per-play cost is a few bytes rather than a {@code PlayedTrack} record graph with its own
+ * copies of every string.
+ * <p>
+ * Only the cache's refresh thread appends. Arrays are replaced rather than resized in place and existing slots are
+ * never rewritten, so a {@link HistorySnapshot} taken earlier keeps reading the arrays it was given.
+ * <p>
+ * A track, album or artist row that differs from the held entry replaces it, so followers, popularity and the like
+ * follow the latest row read. The dictionary array is copied before the first replacement after a snapshot was taken,
+ * which leaves that snapshot's entries as they were. Tracks that are not played again keep the artist instances they
+ * were built with; the artist dictionary itself, which the artist stats read, is always current.
+ */
+final class HistoryColumns {
+    private static final byte NO_POPULARITY = -1;
+    private static final long SESSION_GAP_MICROS = Session.MAX_GAP_MINUTES * 60 * 1_000_000L;
+    private static final long HOUR_MICROS = 3_600_000_000L;
+
+    private long[] timeFinishedMicros = new long[0];
+    private int[] trackIndexes = new int[0];
+    private short[] deviceIndexes = new short[0];
+    private short[] contextIndexes = new short[0];
+    private byte[] popularities = new byte[0];
+    private int size;
+    // Highest track_history id held, the watermark for the next refresh
+    private long lastId;
+
+    // Refreshes that brought in plays from an earlier day, oldest first; replaced rather than added to
+    private List<Backfill> backfills = List.of();
+
+    // Index of the first play of each session; a play only ever extends the latest session or starts a new one
+    private int[] sessionStarts = new int[0];
+    private int sessionCount;
+
+    // Aggregates of each clock hour that has plays, laid out as in HourBuckets and added once a play from a later hour
+    // shows the hour is over. Entries are only ever appended past the published count, so snapshots share the arrays;
+    // hourBounds[hourCount] is where the latest hour, only in the columns, starts
+    private int[] hourBounds = {0};
+    private long[] hourListeningMsBefore = {0};
+    private int[] hourTrackOffsets = {0};
+    private int[] hourTrackPlays = new int[0];
+    private int hourCount;
+
+    private final Map<String, Integer> trackIds = new ConcurrentHashMap<>();
+    private Track[] tracks = new Track[0];
+    private int[][] trackArtistIndexes = new int[0][];
+    // Index of each track's first play, written once when the track is interned by a play
+    private int[] trackFirstPlays = new int[0];
+    private int trackCount;
+    private boolean tracksPublished;
+
+    private final Map<String, Integer> artistIds = new ConcurrentHashMap<>();
+    private Artist[] artists = new Artist[0];
+    private int artistCount;
+    private boolean artistsPublished;
+
+    private final Map<String, Album> albums = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> deviceNames = new ConcurrentHashMap<>();
+    private Device[] devices = new Device[0];
+    private int deviceCount;
+
+    // Context types can be null, which the concurrent maps cannot hold, so they are looked up by scanning
+    private final List<String> contextTypes = new ArrayList<>();
+    private String[] contextTypeValues = new String[0];
+
+    void append(List<PlayedTrack> plays, long lastId) {
+        this.lastId = Math.max(this.lastId, lastId);
+        int required = size + plays.size();
+        if (required > timeFinishedMicros.length) {
+            int capacity = Math.max(required, timeFinishedMicros.length + (timeFinishedMicros.length >> 1));
+            timeFinishedMicros = Arrays.copyOf(timeFinishedMicros, capacity);
+            trackIndexes = Arrays.copyOf(trackIndexes, capacity);
+            deviceIndexes = Arrays.copyOf(deviceIndexes, capacity);
+            contextIndexes = Arrays.copyOf(contextIndexes, capacity);
+            popularities = Arrays.copyOf(popularities, capacity);
+        }
+
+        for (PlayedTrack playedTrack : plays) {
+            timeFinishedMicros[size] = toEpochMicros(playedTrack.timeFinished());
+            int knownTracks = trackCount;
+            trackIndexes[size] = internTrack(playedTrack.track());
+            if (trackIndexes[size] == knownTracks) trackFirstPlays[knownTracks] = size;
+            deviceIndexes[size] = (short) internDevice(playedTrack.device());
+            contextIndexes[size] = (short) internContextType(playedTrack.contextType());
+            popularities[size] = playedTrack.currentPopularity() == null ? NO_POPULARITY : playedTrack.currentPopularity().byteValue();
+            indexSession(size);
+            indexHour(size);
+            size++;
+        }
+    }
+
+    HistorySnapshot snapshot(ListeningDays listeningDays) {
+        tracksPublished = true;
+        artistsPublished = true;
+        HistorySnapshot.Dictionaries dictionaries = new HistorySnapshot.Dictionaries(
+                trackIds, tracks, trackArtistIndexes, trackFirstPlays, trackCount,
+                artistIds, artists, artistCount,
+                devices, deviceCount, contextTypeValues
+        );
+        return new HistorySnapshot(timeFinishedMicros, trackIndexes, deviceIndexes, contextIndexes, popularities, size,
+                lastId, sessionStarts, sessionCount,
+                new HourBuckets(hourCount, hourBounds, hourListeningMsBefore, hourTrackOffsets, hourTrackPlays), backfills,
+                dictionaries, listeningDays);
+    }
+
+    void addBackfills(List<Backfill> added) {
+        List<Backfill> all = new ArrayList<>(backfills);
+        all.addAll(added);
+        backfills = List.copyOf(all);
+    }
+
+    /**
+     * Fills empty columns with data read back from a {@link HistorySnapshotFile}. Dictionary entries are interned in
+     * file order, so they get the same indexes the columns refer to.
+     */
+    void restore(long[] timeFinishedMicros, int[] trackIndexes, short[] deviceIndexes, short[] contextIndexes,
+                 byte[] popularities, long lastId, List<Track> tracks, List<Device> devices, List<String> contextTypes) {
+        if (size != 0) throw new IllegalStateException("Columns already hold plays");
+        for (int i = 0; i < tracks.size(); i++) {
+            if (internTrack(tracks.get(i)) != i) throw new IllegalStateException("Duplicate track in snapshot file: " + tracks.get(i).id());
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            if (internDevice(devices.get(i)) != i) throw new IllegalStateException("Duplicate device in snapshot file: " + devices.get(i).name());
+        }
+        for (int i = 0; i < contextTypes.size(); i++) {
+            if (internContextType(contextTypes.get(i)) != i) throw new IllegalStateException("Duplicate context type in snapshot file");
+        }
+
+        this.timeFinishedMicros = timeFinishedMicros;
+        this.trackIndexes = trackIndexes;
+        this.deviceIndexes = deviceIndexes;
+        this.contextIndexes = contextIndexes;
+        this.popularities = popularities;
+        this.size = timeFinishedMicros.length;
+        this.lastId = lastId;
+        BitSet played = new BitSet(trackCount);
+        for (int i = 0; i < size; i++) {
+            if (!played.get(trackIndexes[i])) {
+                played.set(trackIndexes[i]);
+                trackFirstPlays[trackIndexes[i]] = i;
+            }
+            indexSession(i);
+            indexHour(i);
+        }
+    }
+
+    private void indexSession(int index) {
+        if (index > 0 && timeFinishedMicros[index] - timeFinishedMicros[index - 1] <= SESSION_GAP_MICROS) return;
+
+        if (sessionCount == sessionStarts.length) sessionStarts = Arrays.copyOf(sessionStarts, Math.max(16, sessionCount * 2));
+        sessionStarts[sessionCount++] = index;
+    }
+
+    private void indexHour(int index) {
+        if (index == 0 || Math.floorDiv(timeFinishedMicros[index], HOUR_MICROS) == Math.floorDiv(timeFinishedMicros[index - 1], HOUR_MICROS)) return;
+
+        closeHour(hourBounds[hourCount], index);
+    }
+
+    private void closeHour(int start, int end) {
+        int[] played = Arrays.copyOfRange(trackIndexes, start, end);
+        Arrays.sort(played);
+        if (played.length > 0 && played[played.length - 1] >= HourBuckets.MAX_TRACKS) {
+            throw new IllegalStateException("Too many distinct tracks to aggregate by hour: " + trackCount);
+        }
+
+        int entries = hourTrackOffsets[hourCount];
+        if (entries + played.length > hourTrackPlays.length) {
+            hourTrackPlays = Arrays.copyOf(hourTrackPlays, Math.max(entries + played.length, hourTrackPlays.length * 2));
+        }
+        long listeningMs = 0;
+        for (int i = 0; i < played.length; i++) {
+            if (i > 0 && played[i] == played[i - 1] && HourBuckets.plays(hourTrackPlays[entries - 1]) < HourBuckets.MAX_PLAYS) {
+                hourTrackPlays[entries - 1]++;
+            } else {
+                hourTrackPlays[entries++] = HourBuckets.pack(played[i], 1);
+            }
+            listeningMs += tracks[played[i]].durationMs();
+        }
+
+        if (hourCount + 2 > hourBounds.length) {
+            int capacity = Math.max(16, hourBounds.length * 2);
+            hourBounds = Arrays.copyOf(hourBounds, capacity);
+            hourListeningMsBefore = Arrays.copyOf(hourListeningMsBefore, capacity);
+            hourTrackOffsets = Arrays.copyOf(hourTrackOffsets, capacity);
+        }
+        hourCount++;
+        hourBounds[hourCount] = end;
+        hourListeningMsBefore[hourCount] = hourListeningMsBefore[hourCount - 1] + listeningMs;
+        hourTrackOffsets[hourCount] = entries;
+    }
+
+    /**
+     * Interns the tracks of {@code plays} again without adding plays, so their rows replace older catalogue entries.
+     */
+    void updateCatalogue(List<PlayedTrack> plays) {
+        for (PlayedTrack playedTrack : plays) {
+            internTrack(playedTrack.track());
+        }
+    }
+
+    private int internTrack(Track track) {
+        Integer index = trackIds.get(track.id());
+        // Held entries are built from canonical artists, which compare equal to the row's while nothing changed
+        if (index != null && tracks[index].equals(track)) return index;
+
+        List<Artist> trackArtists = new ArrayList<>(track.artists().size());
+        int[] artistIndexes = new int[track.artists().size()];
+        for (int i = 0; i < artistIndexes.length; i++) {
+            artistIndexes[i] = internArtist(track.artists().get(i));
+            trackArtists.add(artists[artistIndexes[i]]);
+        }
+        Track canonical = new Track(track.id(), track.name(), internAlbum(track.album()), track.durationMs(),
+                track.isExplicit(), track.isLocal(), List.copyOf(trackArtists));
+
+        if (index != null) {
+            if (tracksPublished) {
+                tracks = tracks.clone();
+                trackArtistIndexes = trackArtistIndexes.clone();
+                tracksPublished = false;
+            }
+            tracks[index] = canonical;
+            trackArtistIndexes[index] = artistIndexes;
+            return index;
+        }
+
+        if (trackCount == tracks.length) {
+            tracks = Arrays.copyOf(tracks, Math.max(16, trackCount * 2));
+            trackArtistIndexes = Arrays.copyOf(trackArtistIndexes, tracks.length);
+            trackFirstPlays = Arrays.copyOf(trackFirstPlays, tracks.length);
+            tracksPublished = false;
+        }
+        tracks[trackCount] = canonical;
+        trackArtistIndexes[trackCount] = artistIndexes;
+        trackIds.put(track.id(), trackCount);
+        return trackCount++;
+    }
+
+    private Album internAlbum(Album album) {
+        Album held = albums.get(album.id());
+        if (held != null && held.equals(album)) return held;
+
+        Album canonical = new Album(album.id(), album.name(), album.cover(), album.releaseDate(),
+                album.releaseDatePrecision(), album.albumType(), album.artists().stream().map(this::canonicalArtist).toList());
+        albums.put(album.id(), canonical);
+        return canonical;
+    }
+
+    private int internArtist(Artist artist) {
+        Integer index = artistIds.get(artist.id());
+        if (index != null) {
+            if (!artists[index].equals(artist)) {
+                if (artistsPublished) {
+                    artists = artists.clone();
+                    artistsPublished = false;
+                }
+                artists[index] = artist;
+            }
+            return index;
+        }
+
+        if (artistCount == artists.length) {
+            artists = Arrays.copyOf(artists, Math.max(16, artistCount * 2));
+            artistsPublished = false;
+        }
+        artists[artistCount] = artist;
+        artistIds.put(artist.id(), artistCount);
+        return artistCount++;
+    }
+
+    private Artist canonicalArtist(Artist artist) {
+        int index = internArtist(artist);
+        return artists[index];
+    }
+
+    private int internDevice(Device device) {
+        Integer index = deviceNames.get(device.name());
+        if (index != null) return index;
+
+        if (deviceCount == devices.length) devices = Arrays.copyOf(devices, Math.max(4, deviceCount * 2));
+        devices[deviceCount] = device;
+        deviceNames.put(device.name(), deviceCount);
+        return deviceCount++;
+    }
+
+    private int internContextType(String contextType) {
+        int index = contextTypes.indexOf(contextType);
+        if (index >= 0) return index;
+
+        contextTypes.add(contextType);
+        contextTypeValues = contextTypes.toArray(String[]::new);
+        return contextTypes.size() - 1;
+    }
+
+    /**
+     * Postgres timestamps carry microseconds, so that is the unit kept; instants outside the representable range
+     * saturate, which keeps bounds such as {@link Instant#MAX} usable in searches.
+     */
+    static long toEpochMicros(Instant instant) {
+        long seconds = instant.getEpochSecond();
+        if (seconds >= Long.MAX_VALUE / 1_000_000) return Long.MAX_VALUE;
+        if (seconds <= Long.MIN_VALUE / 1_000_000) return Long.MIN_VALUE;
+        return seconds * 1_000_000 + instant.getNano() / 1_000;
+    }
+
+    static Instant fromEpochMicros(long micros) {
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000), Math.floorMod(micros, 1_000_000) * 1_000L);
+    }
+}
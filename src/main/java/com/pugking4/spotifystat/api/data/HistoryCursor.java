@@ -0,0 +1,25 @@
+package com.pugking4.spotifystat.api.data;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Position in the play history, newest first, written as {@code <time_finished>,<id>}. The id breaks ties between
+ * plays that finished at the same instant, so every row has exactly one position.
+ */
+public record HistoryCursor(Instant timeFinished, long id) {
+    public static HistoryCursor parse(String value) {
+        int separator = value.lastIndexOf(',');
+        if (separator < 0) throw new IllegalArgumentException("Cursor must be <time_finished>,<id>: " + value);
+        try {
+            return new HistoryCursor(Instant.parse(value.substring(0, separator)), Long.parseLong(value.substring(separator + 1)));
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Cursor must be <time_finished>,<id>: " + value, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return timeFinished + "," + id;
+    }
+}
@@ -0,0 +1,11 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+
+import java.util.List;
+
+/**
+ * One page of play history, newest first. {@code nextCursor} is the {@code before} value for the following page, or
+ * null on the last page.
+ */
+public record HistoryPage(List<PlayedTrack> items, String nextCursor) {}
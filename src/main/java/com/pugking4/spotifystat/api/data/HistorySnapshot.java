@@ -0,0 +1,350 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.api.stats.ListeningDays;
+import com.pugking4.spotifystat.api.stats.Session;
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.Device;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import com.pugking4.spotifystat.common.dto.Track;
+
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Read-only view of the play history as it was when the snapshot was taken, ordered by {@code timeFinished} ascending.
+ * <p>
+ * Snapshots share the cache's column arrays and dictionaries. The cache only ever writes past the end of an existing
+ * snapshot, so a snapshot never changes after it has been published. As a {@code List} it hands out
+ * {@link PlayedTrack} records assembled from the columns on access; the column accessors read the same data without
+ * building records, for metrics that only need indexes and counts.
+ */
+public final class HistorySnapshot extends AbstractList<PlayedTrack> implements RandomAccess {
+    static final HistorySnapshot EMPTY = new HistoryColumns().snapshot(ListeningDays.EMPTY);
+
+    record Dictionaries(Map<String, Integer> trackIds, Track[] tracks, int[][] trackArtistIndexes, int[] trackFirstPlays, int trackCount,
+                        Map<String, Integer> artistIds, Artist[] artists, int artistCount,
+                        Device[] devices, int deviceCount, String[] contextTypes) {}
+
+    private final long[] timeFinishedMicros;
+    private final int[] trackIndexes;
+    private final short[] deviceIndexes;
+    private final short[] contextIndexes;
+    private final byte[] popularities;
+    private final int size;
+    private final long lastId;
+    private final int[] sessionStarts;
+    private final int sessionCount;
+    private final HourBuckets hours;
+    private final List<Backfill> backfills;
+    private final Dictionaries dictionaries;
+    private final ListeningDays listeningDays;
+
+    HistorySnapshot(long[] timeFinishedMicros, int[] trackIndexes, short[] deviceIndexes, short[] contextIndexes,
+                    byte[] popularities, int size, long lastId, int[] sessionStarts, int sessionCount, HourBuckets hours,
+                    List<Backfill> backfills, Dictionaries dictionaries, ListeningDays listeningDays) {
+        this.timeFinishedMicros = timeFinishedMicros;
+        this.trackIndexes = trackIndexes;
+        this.deviceIndexes = deviceIndexes;
+        this.contextIndexes = contextIndexes;
+        this.popularities = popularities;
+        this.size = size;
+        this.lastId = lastId;
+        this.sessionStarts = sessionStarts;
+        this.sessionCount = sessionCount;
+        this.hours = hours;
+        this.backfills = backfills;
+        this.dictionaries = dictionaries;
+        this.listeningDays = listeningDays;
+    }
+
+    @Override
+    public PlayedTrack get(int index) {
+        Objects.checkIndex(index, size);
+        byte popularity = popularities[index];
+        return new PlayedTrack(
+                dictionaries.tracks()[trackIndexes[index]],
+                dictionaries.contextTypes()[contextIndexes[index]],
+                dictionaries.devices()[deviceIndexes[index]],
+                popularity < 0 ? null : (int) popularity,
+                timeFinished(index)
+        );
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the plays finished strictly between {@code from} and {@code to}, matching the repository's period
+     * queries. The result is a view over this snapshot located by binary search, so nothing is copied.
+     */
+    public List<PlayedTrack> between(Instant from, Instant to) {
+        int start = firstIndexAfter(from);
+        int end = Math.max(start, firstIndexAtOrAfter(to));
+        return subList(start, end);
+    }
+
+    /**
+     * Returns the index of the first play finished after {@code time}, or {@code size()} if there is none.
+     */
+    public int firstIndexAfter(Instant time) {
+        long micros = HistoryColumns.toEpochMicros(time);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeFinishedMicros[mid] > micros) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first play finished at or after {@code time}, or {@code size()} if there is none.
+     */
+    public int firstIndexAtOrAfter(Instant time) {
+        long micros = HistoryColumns.toEpochMicros(time);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeFinishedMicros[mid] < micros) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    public Instant timeFinished(int index) {
+        return HistoryColumns.fromEpochMicros(timeFinishedMicros[index]);
+    }
+
+    /**
+     * Returns the dictionary index of the track played at {@code index}, in {@code [0, trackCount())}.
+     */
+    public int trackIndex(int index) {
+        return trackIndexes[index];
+    }
+
+    /**
+     * Returns the popularity recorded with the play at {@code index}, or -1 if there was none.
+     */
+    public int popularity(int index) {
+        return popularities[index];
+    }
+
+    public String contextType(int index) {
+        return dictionaries.contextTypes()[contextIndexes[index]];
+    }
+
+    /**
+     * Returns the number of listening sessions, where a session is a run of plays with no gap longer than
+     * {@link Session#MAX_GAP_MINUTES}.
+     */
+    public int sessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Returns the index of the first play of a session, in {@code [0, size())}.
+     */
+    public int sessionStart(int session) {
+        return sessionStarts[session];
+    }
+
+    /**
+     * Returns the session the play at {@code index} belongs to.
+     */
+    public int sessionOf(int index) {
+        int low = 0;
+        int high = sessionCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sessionStarts[mid] > index) high = mid;
+            else low = mid + 1;
+        }
+        return low - 1;
+    }
+
+    /**
+     * Counts the plays at indexes {@code [from, to)} per track, indexed like {@link #track(int)}. Clock hours that lie
+     * wholly inside the range are added from per-hour aggregates, so only the plays of the partial hours at either
+     * end are read one by one.
+     */
+    public int[] countTrackPlays(int from, int to) {
+        int[] counts = new int[trackCount()];
+        int firstHour = firstHourAtOrAfter(from);
+        int endHour = Math.max(firstHour, hoursEndingBy(to));
+        int wholeFrom = hours.bounds()[firstHour];
+        int wholeTo = hours.bounds()[endHour];
+        if (firstHour == endHour) wholeFrom = wholeTo = to;
+
+        for (int i = from; i < wholeFrom; i++) {
+            counts[trackIndexes[i]]++;
+        }
+        for (int entry = hours.trackOffsets()[firstHour]; entry < hours.trackOffsets()[endHour]; entry++) {
+            int packed = hours.trackPlays()[entry];
+            counts[HourBuckets.track(packed)] += HourBuckets.plays(packed);
+        }
+        for (int i = wholeTo; i < to; i++) {
+            counts[trackIndexes[i]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the summed track duration of the plays at indexes {@code [from, to)}. The whole hours in the range come
+     * from the difference of two running totals, so only the partial hours at either end are read one by one.
+     */
+    public long listeningMs(int from, int to) {
+        int firstHour = firstHourAtOrAfter(from);
+        int endHour = Math.max(firstHour, hoursEndingBy(to));
+        if (firstHour == endHour) return sumDurations(from, to);
+
+        return sumDurations(from, hours.bounds()[firstHour])
+                + hours.listeningMsBefore()[endHour] - hours.listeningMsBefore()[firstHour]
+                + sumDurations(hours.bounds()[endHour], to);
+    }
+
+    private long sumDurations(int from, int to) {
+        long total = 0;
+        for (int i = from; i < to; i++) {
+            total += track(trackIndexes[i]).durationMs();
+        }
+        return total;
+    }
+
+    // The first closed hour starting at or after the play at index, or the hour count when there is none
+    private int firstHourAtOrAfter(int index) {
+        int low = 0;
+        int high = hours.count();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (hours.bounds()[mid] < index) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // How many closed hours end at or before the play at index
+    private int hoursEndingBy(int index) {
+        int low = 0;
+        int high = hours.count();
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (hours.bounds()[mid] <= index) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    public int trackCount() {
+        return dictionaries.trackCount();
+    }
+
+    public Track track(int trackIndex) {
+        return dictionaries.tracks()[trackIndex];
+    }
+
+    /**
+     * Returns the index of the first play of a track, in {@code [0, size())}.
+     */
+    public int firstPlayIndex(int trackIndex) {
+        return dictionaries.trackFirstPlays()[trackIndex];
+    }
+
+    /**
+     * Returns the dictionary indexes of a track's artists. The array is shared and must not be modified.
+     */
+    public int[] trackArtistIndexes(int trackIndex) {
+        return dictionaries.trackArtistIndexes()[trackIndex];
+    }
+
+    public int artistCount() {
+        return dictionaries.artistCount();
+    }
+
+    public Artist artist(int artistIndex) {
+        return dictionaries.artists()[artistIndex];
+    }
+
+    /**
+     * Returns the track with this id if it was played within this snapshot, otherwise null.
+     */
+    public Track findTrack(String id) {
+        Integer index = dictionaries.trackIds().get(id);
+        return index == null || index >= dictionaries.trackCount() ? null : dictionaries.tracks()[index];
+    }
+
+    /**
+     * Returns the artist with this id if it is credited on a track or album played within this snapshot, otherwise null.
+     */
+    public Artist findArtist(String id) {
+        Integer index = dictionaries.artistIds().get(id);
+        return index == null || index >= dictionaries.artistCount() ? null : dictionaries.artists()[index];
+    }
+
+    // Raw storage for HistorySnapshotFile; only the first size() entries of each column belong to this snapshot
+
+    Dictionaries dictionaries() {
+        return dictionaries;
+    }
+
+    long[] timeFinishedMicrosColumn() {
+        return timeFinishedMicros;
+    }
+
+    int[] trackIndexColumn() {
+        return trackIndexes;
+    }
+
+    short[] deviceIndexColumn() {
+        return deviceIndexes;
+    }
+
+    short[] contextIndexColumn() {
+        return contextIndexes;
+    }
+
+    byte[] popularityColumn() {
+        return popularities;
+    }
+
+    public ListeningDays listeningDays() {
+        return listeningDays;
+    }
+
+    public Instant highWaterMark() {
+        return size == 0 ? null : timeFinished(size - 1);
+    }
+
+    /**
+     * Returns the highest {@code track_history} id held, or 0 for an empty history. Unlike {@link #highWaterMark()} it
+     * also moves when a late row lands before the newest play, so it tells whether two snapshots hold the same plays.
+     */
+    public long lastId() {
+        return lastId;
+    }
+
+    List<Backfill> backfills() {
+        return backfills;
+    }
+
+    /**
+     * Returns the earliest finish time among plays that were read after {@code sinceLastId} but finished before the
+     * day they were read on, or null if there are none. Calendar periods end at a day boundary, so a period ending at
+     * or before the returned time is unaffected by every play added since.
+     */
+    public Instant earliestBackfillSince(long sinceLastId) {
+        Instant earliest = null;
+        for (Backfill backfill : backfills) {
+            if (backfill.lastId() <= sinceLastId) continue;
+            if (earliest == null || backfill.earliestTimeFinished().isBefore(earliest)) earliest = backfill.earliestTimeFinished();
+        }
+        return earliest;
+    }
+}
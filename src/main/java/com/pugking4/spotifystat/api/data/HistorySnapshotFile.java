@@ -0,0 +1,275 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.common.dto.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Binary copy of a {@link HistorySnapshot} on disk, so a restart can skip reloading the history from Postgres.
+ * <p>
+ * The file holds the dictionaries (artists, albums, tracks, devices, context types) and the highest
+ * {@code track_history} id held, followed by the play columns as flat big-endian arrays. It is read through a
+ * read-only memory mapping: the dictionaries are decoded, which costs in proportion to the catalogue, and the columns
+ * are bulk-copied straight from the mapping into the column arrays.
+ * Files are written to a temporary sibling and moved into place, so a crash mid-write leaves the old file intact.
+ */
+final class HistorySnapshotFile {
+    private static final int MAGIC = 0x53504853; // "SPHS"
+    private static final int VERSION = 2;
+
+    private HistorySnapshotFile() {}
+
+    static void write(Path path, HistorySnapshot snapshot) throws IOException {
+        HistorySnapshot.Dictionaries dictionaries = snapshot.dictionaries();
+        Map<String, Integer> artistRefs = new HashMap<>();
+        List<Artist> artists = new ArrayList<>();
+        Map<String, Integer> albumRefs = new HashMap<>();
+        List<Album> albums = new ArrayList<>();
+        for (int i = 0; i < dictionaries.trackCount(); i++) {
+            Track track = dictionaries.tracks()[i];
+            track.artists().forEach(a -> collect(a.id(), a, artistRefs, artists));
+            track.album().artists().forEach(a -> collect(a.id(), a, artistRefs, artists));
+            collect(track.album().id(), track.album(), albumRefs, albums);
+        }
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(artists.size());
+            for (Artist artist : artists) {
+                writeString(out, artist.id());
+                writeString(out, artist.name());
+                writeInteger(out, artist.followers());
+                writeStrings(out, artist.genres());
+                writeString(out, artist.image());
+                writeInteger(out, artist.popularity());
+                out.writeBoolean(artist.updatedAt() != null);
+                if (artist.updatedAt() != null) {
+                    out.writeLong(artist.updatedAt().getEpochSecond());
+                    out.writeInt(artist.updatedAt().getNano());
+                }
+            }
+
+            out.writeInt(albums.size());
+            for (Album album : albums) {
+                writeString(out, album.id());
+                writeString(out, album.name());
+                writeString(out, album.cover());
+                out.writeBoolean(album.releaseDate() != null);
+                if (album.releaseDate() != null) out.writeLong(album.releaseDate().toEpochDay());
+                writeString(out, album.releaseDatePrecision());
+                writeString(out, album.albumType());
+                writeRefs(out, album.artists(), artistRefs);
+            }
+
+            out.writeInt(dictionaries.trackCount());
+            for (int i = 0; i < dictionaries.trackCount(); i++) {
+                Track track = dictionaries.tracks()[i];
+                writeString(out, track.id());
+                writeString(out, track.name());
+                out.writeInt(albumRefs.get(track.album().id()));
+                writeInteger(out, track.durationMs());
+                writeBoolean(out, track.isExplicit());
+                writeBoolean(out, track.isLocal());
+                writeRefs(out, track.artists(), artistRefs);
+            }
+
+            out.writeInt(dictionaries.deviceCount());
+            for (int i = 0; i < dictionaries.deviceCount(); i++) {
+                writeString(out, dictionaries.devices()[i].name());
+                writeString(out, dictionaries.devices()[i].type());
+            }
+
+            out.writeInt(dictionaries.contextTypes().length);
+            for (String contextType : dictionaries.contextTypes()) {
+                writeString(out, contextType);
+            }
+
+            out.writeLong(snapshot.lastId());
+            int size = snapshot.size();
+            out.writeInt(size);
+            long[] timeFinishedMicros = snapshot.timeFinishedMicrosColumn();
+            for (int i = 0; i < size; i++) out.writeLong(timeFinishedMicros[i]);
+            int[] trackIndexes = snapshot.trackIndexColumn();
+            for (int i = 0; i < size; i++) out.writeInt(trackIndexes[i]);
+            short[] deviceIndexes = snapshot.deviceIndexColumn();
+            for (int i = 0; i < size; i++) out.writeShort(deviceIndexes[i]);
+            short[] contextIndexes = snapshot.contextIndexColumn();
+            for (int i = 0; i < size; i++) out.writeShort(contextIndexes[i]);
+            out.write(snapshot.popularityColumn(), 0, size);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a file written by {@link #write} into new columns.
+     *
+     * @throws IOException if the file cannot be read or was not written by this version
+     */
+    static HistoryColumns read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a history snapshot file of version " + VERSION + ": " + path);
+            }
+
+            Artist[] artists = new Artist[in.getInt()];
+            for (int i = 0; i < artists.length; i++) {
+                String id = readString(in);
+                String name = readString(in);
+                Integer followers = readInteger(in);
+                List<String> genres = readStrings(in);
+                String image = readString(in);
+                Integer popularity = readInteger(in);
+                Instant updatedAt = in.get() != 0 ? Instant.ofEpochSecond(in.getLong(), in.getInt()) : null;
+                artists[i] = new Artist(id, name, followers, genres, image, popularity, updatedAt);
+            }
+
+            Album[] albums = new Album[in.getInt()];
+            for (int i = 0; i < albums.length; i++) {
+                String id = readString(in);
+                String name = readString(in);
+                String cover = readString(in);
+                LocalDate releaseDate = in.get() != 0 ? LocalDate.ofEpochDay(in.getLong()) : null;
+                String releaseDatePrecision = readString(in);
+                String albumType = readString(in);
+                albums[i] = new Album(id, name, cover, releaseDate, releaseDatePrecision, albumType, readRefs(in, artists));
+            }
+
+            int trackCount = in.getInt();
+            List<Track> tracks = new ArrayList<>(trackCount);
+            for (int i = 0; i < trackCount; i++) {
+                String id = readString(in);
+                String name = readString(in);
+                Album album = albums[in.getInt()];
+                Integer durationMs = readInteger(in);
+                Boolean isExplicit = readBoolean(in);
+                Boolean isLocal = readBoolean(in);
+                tracks.add(new Track(id, name, album, durationMs, isExplicit, isLocal, readRefs(in, artists)));
+            }
+
+            List<Device> devices = new ArrayList<>();
+            int deviceCount = in.getInt();
+            for (int i = 0; i < deviceCount; i++) {
+                devices.add(new Device(readString(in), readString(in)));
+            }
+
+            List<String> contextTypes = new ArrayList<>();
+            int contextTypeCount = in.getInt();
+            for (int i = 0; i < contextTypeCount; i++) {
+                contextTypes.add(readString(in));
+            }
+
+            long lastId = in.getLong();
+            int size = in.getInt();
+            long[] timeFinishedMicros = new long[size];
+            in.asLongBuffer().get(timeFinishedMicros);
+            in.position(in.position() + size * Long.BYTES);
+            int[] trackIndexes = new int[size];
+            in.asIntBuffer().get(trackIndexes);
+            in.position(in.position() + size * Integer.BYTES);
+            short[] deviceIndexes = new short[size];
+            in.asShortBuffer().get(deviceIndexes);
+            in.position(in.position() + size * Short.BYTES);
+            short[] contextIndexes = new short[size];
+            in.asShortBuffer().get(contextIndexes);
+            in.position(in.position() + size * Short.BYTES);
+            byte[] popularities = new byte[size];
+            in.get(popularities);
+
+            HistoryColumns columns = new HistoryColumns();
+            columns.restore(timeFinishedMicros, trackIndexes, deviceIndexes, contextIndexes, popularities, lastId, tracks, devices, contextTypes);
+            return columns;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt history snapshot file: " + path, e);
+        }
+    }
+
+    private static <T> void collect(String id, T value, Map<String, Integer> refs, List<T> values) {
+        if (refs.putIfAbsent(id, values.size()) == null) values.add(value);
+    }
+
+    private static void writeRefs(DataOutputStream out, List<Artist> artists, Map<String, Integer> refs) throws IOException {
+        out.writeInt(artists.size());
+        for (Artist artist : artists) {
+            out.writeInt(refs.get(artist.id()));
+        }
+    }
+
+    private static List<Artist> readRefs(ByteBuffer in, Artist[] artists) {
+        Artist[] refs = new Artist[in.getInt()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = artists[in.getInt()];
+        }
+        return List.of(refs);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values == null ? -1 : values.size());
+        if (values == null) return;
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0) return null;
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeInt(value);
+    }
+
+    private static Integer readInteger(ByteBuffer in) {
+        return in.get() != 0 ? in.getInt() : null;
+    }
+
+    private static void writeBoolean(DataOutputStream out, Boolean value) throws IOException {
+        out.writeByte(value == null ? -1 : value ? 1 : 0);
+    }
+
+    private static Boolean readBoolean(ByteBuffer in) {
+        byte value = in.get();
+        return value < 0 ? null : value == 1;
+    }
+}
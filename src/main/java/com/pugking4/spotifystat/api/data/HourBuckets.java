@@ -0,0 +1,26 @@
+package com.pugking4.spotifystat.api.data;
+
+/**
+ * The first {@code count} closed clock hours of the columns, stored flat so an hour costs 16 bytes plus 4 per track
+ * played in it rather than an object and two arrays. Hour {@code h} is the column rows {@code [bounds[h], bounds[h + 1])}
+ * and the plays before row {@code bounds[h]} add up to {@code listeningMsBefore[h]}. The hour's distinct tracks are
+ * {@code trackPlays[trackOffsets[h]]} up to {@code trackPlays[trackOffsets[h + 1]]}, each a track dictionary index in
+ * the upper 24 bits and its play count in the lower 8; a track played more often than that in an hour takes two
+ * entries.
+ */
+record HourBuckets(int count, int[] bounds, long[] listeningMsBefore, int[] trackOffsets, int[] trackPlays) {
+    static final int MAX_TRACKS = 1 << 24;
+    static final int MAX_PLAYS = 0xFF;
+
+    static int pack(int track, int plays) {
+        return track << 8 | plays;
+    }
+
+    static int track(int packed) {
+        return packed >>> 8;
+    }
+
+    static int plays(int packed) {
+        return packed & MAX_PLAYS;
+    }
+}
@@ -0,0 +1,249 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.api.stats.ListeningDays;
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import com.pugking4.spotifystat.common.dto.Track;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resident, append-only copy of {@code track_history}, held column-wise in {@link HistoryColumns}.
+ * <p>
+ * The full history is loaded once at startup, or restored from a {@link HistorySnapshotFile} when one is configured.
+ * After that, a refresh only pulls rows with an id above the highest one already held, so the cost of keeping up to
+ * date depends on how much was added since the last refresh rather than on the size of the history. A row inserted
+ * late, finishing before plays already held, cannot be appended in time order; the columns are then rebuilt in
+ * memory with it merged in.
+ * <p>
+ * Refreshes run on a schedule rather than on the request path. Requests always get the snapshot already held, so an
+ * unreachable database leaves the history a little behind instead of failing or holding up requests. Each refresh,
+ * from the query to the new snapshot, is timed as {@code history.refresh}, tagged by whether it found nothing, appended,
+ * merged late rows or failed.
+ */
+@Component
+public class PlayHistoryCache {
+    private static final Logger log = LoggerFactory.getLogger(PlayHistoryCache.class);
+
+    private final TrackRepository trackRepository;
+    private final Path snapshotFile;
+    private final long snapshotWriteIntervalMs;
+    private final MeterRegistry registry;
+
+    private final Object refreshLock = new Object();
+    private HistoryColumns columns = new HistoryColumns();
+    private volatile HistorySnapshot snapshot = HistorySnapshot.EMPTY;
+
+    private final Object snapshotWriteLock = new Object();
+    private final AtomicBoolean snapshotWriteScheduled = new AtomicBoolean();
+    private volatile long lastSnapshotWriteMs;
+    private volatile long writtenLastId;
+
+    public PlayHistoryCache(TrackRepository trackRepository) {
+        this(trackRepository, "", 0, Metrics.globalRegistry);
+    }
+
+    /**
+     * @param snapshotFile where to keep a binary copy of the history between restarts, or blank for none
+     */
+    @Autowired
+    public PlayHistoryCache(TrackRepository trackRepository,
+                            @Value("${history.snapshot-file:}") String snapshotFile,
+                            @Value("${history.snapshot-write-interval-ms:600000}") long snapshotWriteIntervalMs,
+                            MeterRegistry registry) {
+        this.trackRepository = trackRepository;
+        this.registry = registry;
+        this.snapshotFile = snapshotFile.isBlank() ? null : Path.of(snapshotFile);
+        this.snapshotWriteIntervalMs = snapshotWriteIntervalMs;
+    }
+
+    /**
+     * Restores the history from the snapshot file when there is a usable one, then catches up on rows added after its
+     * highest id. Without a file this is a full load.
+     */
+    @PostConstruct
+    public void load() {
+        synchronized (refreshLock) {
+            if (snapshotFile != null && Files.exists(snapshotFile)) {
+                try {
+                    HistoryColumns restored = HistorySnapshotFile.read(snapshotFile);
+                    columns = restored;
+                    snapshot = restored.snapshot(ListeningDays.of(restored.snapshot(ListeningDays.EMPTY)));
+                    writtenLastId = snapshot.lastId();
+                    lastSnapshotWriteMs = System.currentTimeMillis();
+                } catch (IOException e) {
+                    log.warn("Ignoring history snapshot file {}, loading the full history instead", snapshotFile, e);
+                }
+            }
+            try {
+                refreshLocked();
+            } catch (RuntimeException e) {
+                if (snapshot.isEmpty()) throw e;
+                log.warn("Could not catch up on plays added after the history snapshot file, serving it as read", e);
+            }
+        }
+        // Startup only has to wait for the history itself; the file is for the next restart
+        writeSnapshotFileInBackground();
+    }
+
+    /**
+     * Writes the current history to the snapshot file, if one is configured and the history changed since the last
+     * write. A write already in progress is waited for first.
+     */
+    @PreDestroy
+    public void writeSnapshotFile() {
+        if (snapshotFile == null) return;
+        synchronized (snapshotWriteLock) {
+            HistorySnapshot current = snapshot;
+            if (current.isEmpty() || current.lastId() == writtenLastId) return;
+            try {
+                HistorySnapshotFile.write(snapshotFile, current);
+                writtenLastId = current.lastId();
+                lastSnapshotWriteMs = System.currentTimeMillis();
+            } catch (IOException e) {
+                log.warn("Could not write history snapshot file {}", snapshotFile, e);
+            }
+        }
+    }
+
+    // Snapshots are immutable, so the file is written off the startup and request paths, one write queued at a time
+    private void writeSnapshotFileInBackground() {
+        if (snapshotFile == null || !snapshotWriteScheduled.compareAndSet(false, true)) return;
+        Thread.ofVirtual().start(() -> {
+            try {
+                writeSnapshotFile();
+            } finally {
+                snapshotWriteScheduled.set(false);
+            }
+        });
+    }
+
+    /**
+     * Returns the history as of the last successful refresh.
+     */
+    public HistorySnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the history's copy of a track that appears in it.
+     */
+    public Track findTrack(String id) {
+        return snapshot.findTrack(id);
+    }
+
+    /**
+     * Returns the history's copy of an artist credited on a track or album that appears in it.
+     */
+    public Artist findArtist(String id) {
+        return snapshot.findArtist(id);
+    }
+
+    /**
+     * Converts a tracking period, given with its ends in either order, to {@code (from, to)} instants in the JVM zone,
+     * the same way the repository binds them.
+     */
+    public static Pair<Instant, Instant> toInstantBounds(Pair<LocalDateTime, LocalDateTime> trackingPeriod) {
+        Instant left = Timestamp.valueOf(trackingPeriod.left()).toInstant();
+        Instant right = Timestamp.valueOf(trackingPeriod.right()).toInstant();
+        return left.isBefore(right) ? new Pair<>(left, right) : new Pair<>(right, left);
+    }
+
+    public void refresh() {
+        synchronized (refreshLock) {
+            refreshLocked();
+        }
+    }
+
+    /**
+     * Pulls newer plays every {@code history.refresh-interval-ms}. A failed refresh is logged and the held snapshot
+     * stays current until the next run manages to reach the database.
+     */
+    @Scheduled(initialDelayString = "${history.refresh-interval-ms:10000}", fixedDelayString = "${history.refresh-interval-ms:10000}")
+    public void refreshInBackground() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh the play history, serving the snapshot held: {}", e.toString());
+        }
+    }
+
+    private void refreshLocked() {
+        long startNanos = System.nanoTime();
+        String result = "failed";
+        try {
+            HistoryBatch batch = trackRepository.findAddedAfter(snapshot.lastId());
+            result = batch.plays().isEmpty() ? "none" : append(batch);
+        } finally {
+            Timer.builder("history.refresh").tag("result", result).register(registry).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Adds the batch to the held history, returning "merged" when it had to be merged in and "appended" otherwise.
+     */
+    private String append(HistoryBatch batch) {
+        List<PlayedTrack> newPlays = batch.plays();
+        int insertAt = snapshot.firstIndexAfter(newPlays.getFirst().timeFinished());
+        boolean late = insertAt < snapshot.size();
+        if (late) {
+            log.info("Rebuilding play history to merge {} plays added late", newPlays.size());
+            columns = merged(snapshot, insertAt, batch);
+        } else {
+            columns.append(newPlays, batch.lastId());
+        }
+        // The first load has nothing computed from it yet that an older play could change
+        Instant startOfToday = LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant();
+        if (!snapshot.isEmpty() && newPlays.getFirst().timeFinished().isBefore(startOfToday)) {
+            columns.addBackfills(List.of(new Backfill(batch.lastId(), newPlays.getFirst().timeFinished())));
+        }
+        snapshot = columns.snapshot(snapshot.listeningDays().plus(newPlays));
+
+        if (System.currentTimeMillis() - lastSnapshotWriteMs >= snapshotWriteIntervalMs) {
+            writeSnapshotFileInBackground();
+        }
+        return late ? "merged" : "appended";
+    }
+
+    /**
+     * Builds new columns holding {@code current} with the batch merged in from {@code insertAt}, the first held play
+     * finished after the batch's oldest. Plays before that are copied across unchanged; the rest are re-sorted with
+     * the batch, held plays first on equal finish times. The old columns are left alone for existing snapshots.
+     * Held plays carry the catalogue as it was, so the batch's tracks are interned again last to keep their rows.
+     */
+    private static HistoryColumns merged(HistorySnapshot current, int insertAt, HistoryBatch batch) {
+        List<PlayedTrack> tail = new ArrayList<>(current.subList(insertAt, current.size()));
+        tail.addAll(batch.plays());
+        tail.sort(Comparator.comparing(PlayedTrack::timeFinished));
+
+        HistoryColumns rebuilt = new HistoryColumns();
+        rebuilt.addBackfills(current.backfills());
+        rebuilt.append(current.subList(0, insertAt), current.lastId());
+        rebuilt.append(tail, batch.lastId());
+        rebuilt.updateCatalogue(batch.plays());
+        return rebuilt;
+    }
+}
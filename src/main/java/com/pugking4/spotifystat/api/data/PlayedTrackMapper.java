@@ -0,0 +1,204 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.common.dto.*;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Maps {@code track_history} result sets to {@link PlayedTrack} records.
+ * <p>
+ * Artists are loaded for the whole result set at once, one {@code ANY(?)} query for track artists and one for
+ * album artists, so the number of statements issued does not grow with the number of rows. Each artist id maps to a
+ * single {@link Artist} instance, and tracks/albums sharing an id share their artist lists. Each of those queries is
+ * timed as {@code history.artist.lookup}, with the number of ids it asked for as {@code history.artist.lookup.owners},
+ * both tagged by owner type.
+ */
+public class PlayedTrackMapper {
+    private static final String ALBUM_ARTISTS_SQL = """
+            SELECT aa.album_id AS owner_id, a.id, a.name, a.followers, a.genres, a.image, a.popularity, a.updated_at
+            FROM album_artist AS aa
+                JOIN artists AS a ON aa.artist_id = a.id
+            WHERE aa.album_id = ANY(?);
+        """;
+
+    private static final String TRACK_ARTISTS_SQL = """
+            SELECT ta.track_id AS owner_id, a.id, a.name, a.followers, a.genres, a.image, a.popularity, a.updated_at
+            FROM track_artist AS ta
+                JOIN artists AS a ON ta.artist_id = a.id
+            WHERE ta.track_id = ANY(?);
+        """;
+
+    private final Connection db;
+    private final MeterRegistry registry;
+    private final Map<String, Artist> artistsById = new HashMap<>();
+    private final Map<String, List<Artist>> albumArtists = new HashMap<>();
+    private final Map<String, List<Artist>> trackArtists = new HashMap<>();
+
+    public PlayedTrackMapper(Connection db) {
+        this(db, Metrics.globalRegistry);
+    }
+
+    public PlayedTrackMapper(Connection db, MeterRegistry registry) {
+        this.db = db;
+        this.registry = registry;
+    }
+
+    public List<PlayedTrack> map(ResultSet rs) throws SQLException {
+        List<HistoryRow> rows = new ArrayList<>();
+        while (rs.next()) {
+            rows.add(readRow(rs));
+        }
+        rs.close();
+        return toPlayedTracks(rows);
+    }
+
+    /**
+     * Maps every row, keeping the highest id seen so the caller can ask for rows added after it next time.
+     */
+    public HistoryBatch mapBatch(ResultSet rs, long lastId) throws SQLException {
+        List<HistoryRow> rows = new ArrayList<>();
+        while (rs.next()) {
+            HistoryRow row = readRow(rs);
+            lastId = Math.max(lastId, row.historyId());
+            rows.add(row);
+        }
+        rs.close();
+        return new HistoryBatch(toPlayedTracks(rows), lastId);
+    }
+
+    /**
+     * Maps at most {@code limit} rows into a page. The result set should hold up to {@code limit + 1} rows in keyset
+     * order; the extra row only signals that another page follows.
+     */
+    public HistoryPage mapPage(ResultSet rs, int limit) throws SQLException {
+        List<HistoryRow> rows = new ArrayList<>(limit + 1);
+        while (rows.size() <= limit && rs.next()) {
+            rows.add(readRow(rs));
+        }
+        rs.close();
+
+        String nextCursor = null;
+        if (rows.size() > limit) {
+            rows.removeLast();
+            HistoryRow last = rows.getLast();
+            nextCursor = new HistoryCursor(last.timePlayed(), last.historyId()).toString();
+        }
+        return new HistoryPage(toPlayedTracks(rows), nextCursor);
+    }
+
+    private List<PlayedTrack> toPlayedTracks(List<HistoryRow> rows) throws SQLException {
+        Set<String> albumIds = new HashSet<>();
+        Set<String> trackIds = new HashSet<>();
+        for (HistoryRow row : rows) {
+            if (!albumArtists.containsKey(row.albumId())) albumIds.add(row.albumId());
+            if (!trackArtists.containsKey(row.trackId())) trackIds.add(row.trackId());
+        }
+
+        loadArtists("album", ALBUM_ARTISTS_SQL, albumIds, albumArtists);
+        loadArtists("track", TRACK_ARTISTS_SQL, trackIds, trackArtists);
+
+        List<PlayedTrack> playedTracks = new ArrayList<>(rows.size());
+        for (HistoryRow row : rows) {
+            playedTracks.add(row.toPlayedTrack(albumArtists.get(row.albumId()), trackArtists.get(row.trackId())));
+        }
+        return playedTracks;
+    }
+
+    private HistoryRow readRow(ResultSet rs) throws SQLException {
+        long historyId = rs.getLong("id");
+        String contextType = rs.getString("context_type");
+        String albumId = rs.getString("album_id");
+        String trackId = rs.getString("track_id");
+        String deviceName = rs.getString("device_name");
+        Integer currentPopularity = rs.getInt("current_popularity");
+        Instant timePlayed = rs.getTimestamp("time_finished").toInstant();
+
+        // Extract track data
+        String trackName = rs.getString("track_name");
+        Integer durationMs = rs.getInt("duration_ms");
+        Boolean isExplicit = rs.getBoolean("is_explicit");
+        Boolean isLocal = rs.getBoolean("is_local");
+
+        // Extract album data
+        String albumName = rs.getString("album_name");
+        String cover = rs.getString("cover");
+        LocalDate releaseDate = rs.getTimestamp("release_date").toLocalDateTime().toLocalDate();
+        String releaseDatePrecision = rs.getString("release_date_precision");
+        String albumType = rs.getString("album_type");
+
+        // Extract device data
+        String deviceType = rs.getString("type");
+
+        return new HistoryRow(historyId, contextType, albumId, trackId, deviceName, currentPopularity, timePlayed,
+                trackName, durationMs, isExplicit, isLocal,
+                albumName, cover, releaseDate, releaseDatePrecision, albumType,
+                deviceType);
+    }
+
+    private void loadArtists(String owner, String sql, Set<String> ownerIds, Map<String, List<Artist>> artistsByOwner) throws SQLException {
+        if (ownerIds.isEmpty()) return;
+
+        DistributionSummary.builder("history.artist.lookup.owners").tag("owner", owner).register(registry).record(ownerIds.size());
+        Timer.Sample sample = Timer.start(registry);
+        try (PreparedStatement st = db.prepareStatement(sql)) {
+            st.setArray(1, db.createArrayOf("varchar", ownerIds.toArray()));
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    String ownerId = rs.getString("owner_id");
+                    Artist artist = artistsById.computeIfAbsent(rs.getString("id"), _ -> readArtist(rs));
+                    artistsByOwner.computeIfAbsent(ownerId, _ -> new ArrayList<>()).add(artist);
+                }
+            }
+        } finally {
+            sample.stop(Timer.builder("history.artist.lookup").tag("owner", owner).register(registry));
+        }
+        // Remember owners without artists too, so later chunks do not ask for them again
+        for (String ownerId : ownerIds) {
+            artistsByOwner.putIfAbsent(ownerId, List.of());
+        }
+    }
+
+    private static Artist readArtist(ResultSet rs) {
+        try {
+            String id = rs.getString("id");
+            String name = rs.getString("name");
+            Integer followers = (Integer) rs.getObject("followers");
+            String rawGenres = rs.getString("genres");
+            List<String> genres = null;
+            if (rawGenres != null && !rawGenres.isEmpty()) {
+                genres = List.of(rawGenres.split(","));
+            }
+            String image = rs.getString("image");
+            Integer popularity = (Integer) rs.getObject("popularity");
+            Timestamp timeStampAt = rs.getTimestamp("updated_at");
+            Instant updatedAt = null;
+            if (timeStampAt != null) {
+                updatedAt = timeStampAt.toInstant();
+            }
+
+            return new Artist(id, name, followers, genres, image, popularity, updatedAt);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private record HistoryRow(long historyId, String contextType, String albumId, String trackId, String deviceName,
+                              Integer currentPopularity, Instant timePlayed,
+                              String trackName, Integer durationMs, Boolean isExplicit, Boolean isLocal,
+                              String albumName, String cover, LocalDate releaseDate, String releaseDatePrecision,
+                              String albumType, String deviceType) {
+        PlayedTrack toPlayedTrack(List<Artist> albumArtists, List<Artist> trackArtists) {
+            Album album = new Album(albumId, albumName, cover, releaseDate, releaseDatePrecision, albumType, albumArtists);
+            Track track = new Track(trackId, trackName, album, durationMs, isExplicit, isLocal, trackArtists);
+            Device device = new Device(deviceName, deviceType);
+            return new PlayedTrack(track, contextType, device, currentPopularity, timePlayed);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.pugking4.spotifystat.api.data;
+
+import com.pugking4.spotifystat.api.stats.RollupTotals;
+
+import java.time.Instant;
+
+/**
+ * Rollup rows summed over a range of days, with the latest finish time of any play folded into them, or null when
+ * the rollup is still empty.
+ */
+public record RollupSum(RollupTotals totals, Instant highWaterMark) {}
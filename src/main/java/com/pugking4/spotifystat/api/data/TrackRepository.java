@@ -1,142 +1,64 @@
 package com.pugking4.spotifystat.api.data;
 import java.sql.*;
 
-import com.pugking4.spotifystat.api.stats.Calendar;
-import com.pugking4.spotifystat.api.stats.TimeUtility;
+import com.pugking4.spotifystat.api.stats.PipelineMetrics;
 import com.pugking4.spotifystat.common.dto.*;
-import jakarta.annotation.PostConstruct;
-import org.springframework.beans.factory.annotation.Value;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
+import javax.sql.DataSource;
+
 import java.time.*;
 import java.util.*;
-
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reads plays from {@code track_history}. The period and added-after queries are timed as {@code history.query},
+ * including mapping and artist loading, with the rows they return as {@code history.query.rows}; both are tagged by
+ * query and by window, bucketed as in {@link PipelineMetrics#windowTag}, or "new" for rows added after a known id.
+ */
 @Repository
 public class TrackRepository {
-    private Connection db;
-    private final static String url = "jdbc:postgresql://localhost:5433/track-database";
-    @Value("${database.username}")
-    private String username;
-    @Value("${database.password}")
-    private String password;
-
-    @PostConstruct
-    private void init() {
-        if (username == null || password == null) {
-            throw new IllegalStateException("Database credentials not configured");
-        }
-        try {
-            Properties props = new Properties();
-            props.setProperty("user", username);
-            props.setProperty("password", password);
-            db = DriverManager.getConnection(url, props);
-        } catch (SQLException e) {
-            throw new RuntimeException("Database initialization failed", e);
-        }
-    }
-
-    private List<Artist> getAlbumArtists(String albumID) {
-        try {
-            String sql = """
-                    SELECT a.id, a.name, a.followers, a.genres, a.image, a.popularity, a.updated_at
-                    FROM (
-                        SELECT artist_id
-                        FROM album_artist
-                        WHERE album_id = ?
-                    ) AS aa
-                        JOIN artists AS a ON aa.artist_id = a.id;
-                """;
+    private final DataSource dataSource;
+    private final MeterRegistry registry;
 
-            PreparedStatement st = db.prepareStatement(sql);
-            st.setString(1, albumID);
-            return getCombinationArtists(st);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private List<Artist> getTrackArtists(String trackID) {
-        try {
-            String sql = """
-                    SELECT a.id, a.name, a.followers, a.genres, a.image, a.popularity, a.updated_at
-                    FROM (
-                        SELECT artist_id
-                        FROM track_artist
-                        WHERE track_id = ?
-                    ) AS ta
-                        JOIN artists AS a ON ta.artist_id = a.id;
-                """;
-
-            PreparedStatement st = db.prepareStatement(sql);
-            st.setString(1, trackID);
-            return getCombinationArtists(st);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+    public TrackRepository(DataSource dataSource) {
+        this(dataSource, Metrics.globalRegistry);
     }
 
-    private List<Artist> getCombinationArtists(PreparedStatement ps) {
-        List<Artist> artists = new ArrayList<>();
-        try {
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                String id = rs.getString("id");
-                String name = rs.getString("name");
-                Integer followers = (Integer) rs.getObject("followers");
-                String rawGenres = rs.getString("genres");
-                List<String> genres = null;
-                if (rawGenres != null && !rawGenres.isEmpty()) {
-                    genres = List.of(rawGenres.split(","));
-                }
-                String image = rs.getString("image");
-                Integer popularity = (Integer) rs.getObject("popularity");
-                Timestamp timeStampAt = rs.getTimestamp("updated_at");
-                Instant updatedAt = null;
-                if (timeStampAt != null) {
-                    updatedAt = timeStampAt.toInstant();
-                }
-
-                Artist artist = new Artist(id, name, followers, genres, image, popularity, updatedAt);
-                artists.add(artist);
-            }
-            rs.close();
-            ps.close();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-
-        return artists;
+    @Autowired
+    public TrackRepository(DataSource dataSource, MeterRegistry registry) {
+        this.dataSource = dataSource;
+        this.registry = registry;
     }
 
     public List<PlayedTrack> getRecentlyPlayedTracks(Integer limit) {
         return findInPeriod(null, limit);
     }
 
-    public List<PlayedTrack> findByPeriod(Calendar period, int offset) {
-        Pair<LocalDateTime, LocalDateTime> trackingPeriod = TimeUtility.getTrackingPeriod(period, offset);
-        return findInPeriod(trackingPeriod);
-    }
-
-    public List<PlayedTrack> findByHours(int hours, int offset) {
-        Pair<LocalDateTime, LocalDateTime> trackingPeriod = TimeUtility.getTrackingPeriod(hours, offset);
-        return findInPeriod(trackingPeriod);
-    }
-
-    public List<PlayedTrack> findAll() {
-        return findInPeriod(null);
-    }
-
-    public List<PlayedTrack> findInPeriod(Pair<LocalDateTime, LocalDateTime> trackingPeriod) {
-        try {
+    /**
+     * Returns the plays whose id is above {@code lastId}, oldest first, or every play when {@code lastId} is 0.
+     * Ids are assigned on insert, so this also picks up rows that were inserted late or share a finish time with
+     * the last play already read, which a watermark on {@code time_finished} would miss.
+     */
+    public HistoryBatch findAddedAfter(long lastId) {
+        long startNanos = System.nanoTime();
+        try (Connection db = dataSource.getConnection()) {
             PreparedStatement st;
-            if (trackingPeriod == null) {
+            if (lastId == 0) {
                 String sql = """
                     SELECT th.*, t.name as track_name, t.duration_ms, t.is_explicit, t.is_local, a.name as album_name, a.cover, a.release_date, a.release_date_precision, a.album_type, d.*
                     FROM track_history AS th
                         JOIN tracks AS t ON th.track_id = t.id
                         JOIN albums AS a ON th.album_id = a.id
                         JOIN devices as d ON th.device_name = d.name
-                    ORDER BY th.time_finished DESC;
+                    ORDER BY th.time_finished ASC, th.id ASC;
                 """;
                 st = db.prepareStatement(sql);
             } else {
@@ -146,17 +68,17 @@ public class TrackRepository {
                         JOIN tracks AS t ON th.track_id = t.id
                         JOIN albums AS a ON th.album_id = a.id
                         JOIN devices as d ON th.device_name = d.name
-                    WHERE th.time_finished > ? AND th.time_finished < ?
-                    ORDER BY th.time_finished DESC;
+                    WHERE th.id > ?
+                    ORDER BY th.time_finished ASC, th.id ASC;
                 """;
                 st = db.prepareStatement(sql);
-                st.setTimestamp(1, Timestamp.valueOf(trackingPeriod.right()));
-                st.setTimestamp(2, Timestamp.valueOf(trackingPeriod.left()));
+                st.setLong(1, lastId);
             }
 
-            List<PlayedTrack> playedTracks = mapResultSetToPlayedTracks(st.executeQuery());
+            HistoryBatch batch = new PlayedTrackMapper(db, registry).mapBatch(st.executeQuery(), lastId);
             st.close();
-            return playedTracks;
+            recordQuery("find-added-after", lastId == 0 ? "all" : "new", startNanos, batch.plays().size());
+            return batch;
 
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -164,7 +86,8 @@ public class TrackRepository {
     }
 
     public List<PlayedTrack> findInPeriod(Pair<LocalDateTime, LocalDateTime> trackingPeriod, Integer limit) {
-        try {
+        long startNanos = System.nanoTime();
+        try (Connection db = dataSource.getConnection()) {
             PreparedStatement st;
             if (trackingPeriod == null) {
                 String sql = """
@@ -195,8 +118,9 @@ public class TrackRepository {
                 st.setInt(3, limit);
             }
 
-            List<PlayedTrack> playedTracks = mapResultSetToPlayedTracks(st.executeQuery());
+            List<PlayedTrack> playedTracks = mapResultSetToPlayedTracks(db, st.executeQuery());
             st.close();
+            recordQuery("find-in-period-limited", windowTag(trackingPeriod), startNanos, playedTracks.size());
             return playedTracks;
 
         } catch (SQLException e) {
@@ -204,53 +128,81 @@ public class TrackRepository {
         }
     }
 
-    private List<PlayedTrack> mapResultSetToPlayedTracks(ResultSet rs) throws SQLException {
-        List<PlayedTrack> playedTracks = new ArrayList<>();
-
-        while (rs.next()) {
-            String contextType = rs.getString("context_type");
-            String albumId = rs.getString("album_id");
-            String trackId = rs.getString("track_id");
-            String deviceName = rs.getString("device_name");
-            Integer currentPopularity = rs.getInt("current_popularity");
-            Instant timePlayed = rs.getTimestamp("time_finished").toInstant();
-
-            // Extract track data
-            String trackName = rs.getString("track_name");
-            Integer durationMs = rs.getInt("duration_ms");
-            Boolean isExplicit = rs.getBoolean("is_explicit");
-            Boolean isLocal = rs.getBoolean("is_local");
-
-            // Extract album data
-            String albumName = rs.getString("album_name");
-            String cover = rs.getString("cover");
-            LocalDate releaseDate = rs.getTimestamp("release_date").toLocalDateTime().toLocalDate();
-            String releaseDatePrecision = rs.getString("release_date_precision");
-            String albumType = rs.getString("album_type");
-
-            // Extract device data
-            String deviceType = rs.getString("type");
+    /**
+     * Returns up to {@code limit} plays finished before {@code before}, newest first, or the newest plays when
+     * {@code before} is null. The keyset condition seeks straight to the cursor on the
+     * {@code (time_finished, id)} index, so a deep page costs the same as the first.
+     */
+    public HistoryPage findPage(HistoryCursor before, int limit) {
+        try (Connection db = dataSource.getConnection()) {
+            PreparedStatement st;
+            if (before == null) {
+                String sql = """
+                    SELECT th.*, t.name as track_name, t.duration_ms, t.is_explicit, t.is_local, a.name as album_name, a.cover, a.release_date, a.release_date_precision, a.album_type, d.*
+                    FROM track_history AS th
+                        JOIN tracks AS t ON th.track_id = t.id
+                        JOIN albums AS a ON th.album_id = a.id
+                        JOIN devices as d ON th.device_name = d.name
+                    ORDER BY th.time_finished DESC, th.id DESC
+                    LIMIT ?;
+                """;
+                st = db.prepareStatement(sql);
+                st.setInt(1, limit + 1);
+            } else {
+                String sql = """
+                    SELECT th.*, t.name as track_name, t.duration_ms, t.is_explicit, t.is_local, a.name as album_name, a.cover, a.release_date, a.release_date_precision, a.album_type, d.*
+                    FROM track_history AS th
+                        JOIN tracks AS t ON th.track_id = t.id
+                        JOIN albums AS a ON th.album_id = a.id
+                        JOIN devices as d ON th.device_name = d.name
+                    WHERE (th.time_finished, th.id) < (?, ?)
+                    ORDER BY th.time_finished DESC, th.id DESC
+                    LIMIT ?;
+                """;
+                st = db.prepareStatement(sql);
+                st.setTimestamp(1, Timestamp.from(before.timeFinished()));
+                st.setLong(2, before.id());
+                st.setInt(3, limit + 1);
+            }
 
-            // Get album artists
-            List<Artist> albumArtists = getAlbumArtists(albumId);
+            HistoryPage page = new PlayedTrackMapper(db, registry).mapPage(st.executeQuery(), limit);
+            st.close();
+            return page;
 
-            // Get track artists
-            List<Artist> trackArtists = getTrackArtists(trackId);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // Build Album record
-            Album album = new Album(albumId, albumName, cover, releaseDate, releaseDatePrecision, albumType, albumArtists);
+    /**
+     * Streams the most recent plays, newest first, to {@code sink} in chunks of {@code chunkSize}. A null limit streams
+     * the whole history. Each chunk is read as a {@link #findPage} keyset page on its own connection, which goes back
+     * to the pool before the chunk is handed on, so a slow client never holds a connection while it reads.
+     */
+    public void streamRecentlyPlayed(Integer limit, int chunkSize, Consumer<List<PlayedTrack>> sink) {
+        HistoryCursor cursor = null;
+        int remaining = limit == null ? Integer.MAX_VALUE : limit;
+        while (remaining > 0) {
+            HistoryPage page = findPage(cursor, Math.min(chunkSize, remaining));
+            if (!page.items().isEmpty()) sink.accept(page.items());
+            if (page.nextCursor() == null) return;
+            remaining -= page.items().size();
+            cursor = HistoryCursor.parse(page.nextCursor());
+        }
+    }
 
-            // Build Track record
-            Track track = new Track(trackId, trackName, album, durationMs, isExplicit, isLocal, trackArtists);
+    private List<PlayedTrack> mapResultSetToPlayedTracks(Connection db, ResultSet rs) throws SQLException {
+        return new PlayedTrackMapper(db, registry).map(rs);
+    }
 
-            // Build Device record
-            Device device = new Device(deviceName, deviceType);
+    private void recordQuery(String query, String window, long startNanos, int rows) {
+        Tags tags = Tags.of("query", query, "window", window);
+        Timer.builder("history.query").tags(tags).register(registry).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("history.query.rows").baseUnit("rows").tags(tags).register(registry).record(rows);
+    }
 
-            // Build PlayedTrack record
-            PlayedTrack playedTrack = new PlayedTrack(track, contextType, device, currentPopularity, timePlayed);
-            playedTracks.add(playedTrack);
-        }
-        rs.close();
-        return playedTracks;
+    private static String windowTag(Pair<LocalDateTime, LocalDateTime> trackingPeriod) {
+        // Calendar periods come as (later, earlier) and rolling ones as (earlier, later)
+        return trackingPeriod == null ? "all" : PipelineMetrics.windowTag(Duration.between(trackingPeriod.right(), trackingPeriod.left()).abs());
     }
 }
@@ -1,7 +1,11 @@
 package com.pugking4.spotifystat.api.stats;
 
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.info.BuildProperties;
 import org.springframework.stereotype.Service;
 import tools.jackson.databind.JsonNode;
@@ -10,20 +14,39 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runtime stats for {@code /stats/api}. Request rates, latencies and uptime come from Prometheus. When a Prometheus
+ * query fails or times out, request rates and latencies are answered from {@link LocalRequestMetrics} instead, which
+ * can also be made the primary source with {@code stats.api.local-metrics-primary}.
+ */
 @Service
 public class APIStatsService {
+    private static final Logger log = LoggerFactory.getLogger(APIStatsService.class);
+
     final MeterRegistry registry;
     final BuildProperties build;
     private final PrometheusClient prom;
+    private final LocalRequestMetrics localMetrics;
+    private final boolean localMetricsPrimary;
+    private final Counter fallbacks;
 
-    public APIStatsService(MeterRegistry registry, BuildProperties build, PrometheusClient prom) {
+    public APIStatsService(MeterRegistry registry, BuildProperties build, PrometheusClient prom,
+                           LocalRequestMetrics localMetrics,
+                           @Value("${stats.api.local-metrics-primary:false}") boolean localMetricsPrimary) {
         this.registry = registry;
         this.build = build;
         this.prom = prom;
+        this.localMetrics = localMetrics;
+        this.localMetricsPrimary = localMetricsPrimary;
+        this.fallbacks = Counter.builder("stats.api.local-fallbacks").register(registry);
     }
 
     public double getUptimeSeconds() {
@@ -46,35 +69,73 @@ public class APIStatsService {
     }
 
     public RequestsPerMinuteResponse getRequestsPerMinutes(int minutes) {
+        return PrometheusClient.await(getRequestsPerMinutesAsync(minutes, 1));
+    }
+
+    /**
+     * Request counts for the last {@code completeBuckets} complete buckets, oldest first, then the bucket in progress.
+     * The complete buckets come from one query and run alongside the partial bucket's query.
+     */
+    public CompletableFuture<RequestsPerMinuteResponse> getRequestsPerMinutesAsync(int minutes, int completeBuckets) {
+        if (localMetricsPrimary) {
+            return CompletableFuture.completedFuture(localMetrics.getRequestsPerMinutes(minutes, completeBuckets));
+        }
+        return queryRequestsPerMinutes(minutes, completeBuckets).exceptionally(e -> {
+            recordFallback(e);
+            return localMetrics.getRequestsPerMinutes(minutes, completeBuckets);
+        });
+    }
+
+    private CompletableFuture<RequestsPerMinuteResponse> queryRequestsPerMinutes(int minutes, int completeBuckets) {
         Instant now = Instant.now();
         Instant prevEnd = TimeBuckets.alignEnd(now, minutes);
         Instant nextEnd = prevEnd.plus(Duration.ofMinutes(minutes));
 
         long partialSec = TimeBuckets.clampRange(Duration.between(prevEnd, now).getSeconds());
-        Map<String, Double> complete = parseOutcome(prom.instantQuery(requestsPromQl(minutes + "m"), prevEnd));
-        Map<String, Double> partial = parseOutcome(prom.instantQuery(requestsPromQl(partialSec + "s"), now));
-
-        return new RequestsPerMinuteResponse(
-                minutes,
-                List.of(
-                        new RequestBucket(
-                                prevEnd.getEpochSecond(),
-                                true,
-                                complete.get("SUCCESS"),
-                                complete.get("CLIENT_ERROR"),
-                                complete.get("SERVER_ERROR")
-                        ),
-                        new RequestBucket(
-                                nextEnd.getEpochSecond(),
-                                false,
-                                partial.get("SUCCESS"),
-                                partial.get("CLIENT_ERROR"),
-                                partial.get("SERVER_ERROR")
-                        )
-                )
+        var complete = queryCompleteBuckets(requestsPromQl(minutes + "m"), minutes, completeBuckets, prevEnd, nextEnd, now);
+        var partial = prom.instantQueryAsync(requestsPromQl(partialSec + "s"), now, null);
+
+        return complete.thenCombine(partial, (completeResults, partialResult) -> {
+            List<RequestBucket> buckets = new ArrayList<>();
+            completeResults.forEach((end, result) -> buckets.add(toRequestBucket(end, true, parseOutcome(result))));
+            buckets.add(toRequestBucket(nextEnd, false, parseOutcome(partialResult)));
+            return new RequestsPerMinuteResponse(minutes, buckets);
+        });
+    }
+
+    private static RequestBucket toRequestBucket(Instant end, boolean complete, Map<String, Double> outcomes) {
+        return new RequestBucket(
+                end.getEpochSecond(),
+                complete,
+                outcomes.get("SUCCESS"),
+                outcomes.get("CLIENT_ERROR"),
+                outcomes.get("SERVER_ERROR")
         );
     }
 
+    /**
+     * A bucket ending at {@code prevEnd} is final once its last samples have been scraped, and is asked for again
+     * until the next bucket ends at {@code nextEnd}.
+     */
+    private static Instant completeBucketCacheUntil(Instant prevEnd, Instant nextEnd, Instant now) {
+        return TimeBuckets.isSettled(prevEnd, now) ? nextEnd : null;
+    }
+
+    /**
+     * Evaluates a bucket query at the end of each of the last {@code count} complete buckets. A single bucket is an
+     * instant query, more than one is a single range query stepping by the bucket length.
+     */
+    private CompletableFuture<SortedMap<Instant, JsonNode>> queryCompleteBuckets(String promQl, int minutes, int count,
+                                                                                Instant prevEnd, Instant nextEnd, Instant now) {
+        Instant cacheUntil = completeBucketCacheUntil(prevEnd, nextEnd, now);
+        if (count == 1) {
+            return prom.instantQueryAsync(promQl, prevEnd, cacheUntil)
+                    .thenApply(result -> new TreeMap<>(Map.of(prevEnd, result)));
+        }
+        Duration step = Duration.ofMinutes(minutes);
+        return prom.rangeQueryAsync(promQl, prevEnd.minus(step.multipliedBy(count - 1)), prevEnd, step, cacheUntil);
+    }
+
     private String latencyQuantilesPromQl(String selector, String rangeLiteral) {
         String bucketsRate =
                 "sum(rate(http_server_requests_seconds_bucket{" + selector + "}[" + rangeLiteral + "])) by (le)";
@@ -85,6 +146,29 @@ public class APIStatsService {
     }
 
     public LatencyResponse getLatencyPercentilesMs(String uri, int windowMinutes) {
+        return PrometheusClient.await(getLatencyPercentilesMsAsync(uri, windowMinutes, 1));
+    }
+
+    /**
+     * Latency percentiles for the last {@code completeBuckets} complete buckets, oldest first, then the bucket in
+     * progress. The complete buckets come from one query and run alongside the partial bucket's query.
+     */
+    public CompletableFuture<LatencyResponse> getLatencyPercentilesMsAsync(String uri, int windowMinutes, int completeBuckets) {
+        if (localMetricsPrimary) {
+            return CompletableFuture.completedFuture(localMetrics.getLatencyPercentilesMs(uri, windowMinutes, completeBuckets));
+        }
+        return queryLatencyPercentilesMs(uri, windowMinutes, completeBuckets).exceptionally(e -> {
+            recordFallback(e);
+            return localMetrics.getLatencyPercentilesMs(uri, windowMinutes, completeBuckets);
+        });
+    }
+
+    private void recordFallback(Throwable e) {
+        fallbacks.increment();
+        log.debug("Prometheus query failed, answering from local metrics", e);
+    }
+
+    private CompletableFuture<LatencyResponse> queryLatencyPercentilesMs(String uri, int windowMinutes, int completeBuckets) {
         Instant now = Instant.now();
         Instant prevEnd = TimeBuckets.alignEnd(now, windowMinutes);
         Instant nextEnd = prevEnd.plus(Duration.ofMinutes(windowMinutes));
@@ -95,46 +179,61 @@ public class APIStatsService {
 
         long partialSec = TimeBuckets.clampRange(Duration.between(prevEnd, now).getSeconds());
 
-        Map<String, Double> complete =
-                parseQuantilesMs(
-                        prom.instantQuery(
-                                latencyQuantilesPromQl(selector, windowMinutes + "m"),
-                                prevEnd
-                        )
-                );
-
-        Map<String, Double> partial =
-                parseQuantilesMs(
-                        prom.instantQuery(
-                                latencyQuantilesPromQl(selector, partialSec + "s"),
-                                now
-                        )
-                );
-
-        return new LatencyResponse(
-                windowMinutes,
-                List.of(
-                        new LatencyBucket(
-                                prevEnd.getEpochSecond(),
-                                true,
-                                windowMinutes * 60L,
-                                complete.get("p50_ms"),
-                                complete.get("p95_ms"),
-                                complete.get("p99_ms")
-                        ),
-                        new LatencyBucket(
-                                nextEnd.getEpochSecond(),
-                                false,
-                                partialSec,
-                                partial.get("p50_ms"),
-                                partial.get("p95_ms"),
-                                partial.get("p99_ms")
-                        )
-                )
+        var complete = queryCompleteBuckets(latencyQuantilesPromQl(selector, windowMinutes + "m"), windowMinutes, completeBuckets, prevEnd, nextEnd, now);
+        var partial = prom.instantQueryAsync(latencyQuantilesPromQl(selector, partialSec + "s"), now, null);
+
+        return complete.thenCombine(partial, (completeResults, partialResult) -> {
+            List<LatencyBucket> buckets = new ArrayList<>();
+            completeResults.forEach((end, result) -> buckets.add(toLatencyBucket(end, true, windowMinutes * 60L, parseQuantilesMs(result))));
+            buckets.add(toLatencyBucket(nextEnd, false, partialSec, parseQuantilesMs(partialResult)));
+            return new LatencyResponse(windowMinutes, buckets);
+        });
+    }
+
+    private static LatencyBucket toLatencyBucket(Instant end, boolean complete, long rangeSec, Map<String, Double> quantiles) {
+        return new LatencyBucket(
+                end.getEpochSecond(),
+                complete,
+                rangeSec,
+                quantiles.get("p50_ms"),
+                quantiles.get("p95_ms"),
+                quantiles.get("p99_ms")
         );
     }
 
+    /**
+     * Request rate and latency percentiles for every route over the last complete window, from one grouped query.
+     * Each series carries its route in {@code uri} and what it measures in {@code quantile}, with {@code requests}
+     * standing for the request count.
+     */
+    private String endpointStatsPromQl(String rangeLiteral) {
+        String bucketsRate =
+                "sum(rate(http_server_requests_seconds_bucket{job=\"spring-boot-app\"}[" + rangeLiteral + "])) by (uri, le)";
+        String requests =
+                "sum(increase(http_server_requests_seconds_count{job=\"spring-boot-app\"}[" + rangeLiteral + "])) by (uri)";
+
+        return "label_replace(" + requests + ", \"quantile\", \"requests\", \"\", \"\")\n"
+                + "or label_replace(histogram_quantile(0.50, " + bucketsRate + "), \"quantile\", \"0.50\", \"\", \"\")\n"
+                + "or label_replace(histogram_quantile(0.95, " + bucketsRate + "), \"quantile\", \"0.95\", \"\", \"\")\n"
+                + "or label_replace(histogram_quantile(0.99, " + bucketsRate + "), \"quantile\", \"0.99\", \"\", \"\")";
+    }
+
+    public CompletableFuture<EndpointStatsResponse> getEndpointStatsAsync(int windowMinutes) {
+        if (localMetricsPrimary) {
+            return CompletableFuture.completedFuture(localMetrics.getEndpointStats(windowMinutes));
+        }
 
+        Instant now = Instant.now();
+        Instant prevEnd = TimeBuckets.alignEnd(now, windowMinutes);
+        Instant nextEnd = prevEnd.plus(Duration.ofMinutes(windowMinutes));
+
+        return prom.instantQueryAsync(endpointStatsPromQl(windowMinutes + "m"), prevEnd, completeBucketCacheUntil(prevEnd, nextEnd, now))
+                .thenApply(result -> new EndpointStatsResponse(windowMinutes, prevEnd.getEpochSecond(), parseEndpointStats(result, windowMinutes)))
+                .exceptionally(e -> {
+                    recordFallback(e);
+                    return localMetrics.getEndpointStats(windowMinutes);
+                });
+    }
 
     public String getHostName() {
         try {
@@ -149,13 +248,18 @@ public class APIStatsService {
     }
 
     public Map<String, Double> getUptimePercentage() {
+        return PrometheusClient.await(getUptimePercentageAsync());
+    }
+
+    public CompletableFuture<Map<String, Double>> getUptimePercentageAsync() {
         Map<String, Integer> frames = Map.of(
                 "d1", 1,
                 "d7", 7
         );
 
-        Map<String, Double> out = new HashMap<>();
-        Instant now = Instant.now();
+        Map<String, CompletableFuture<Double>> queries = new HashMap<>();
+        // Averages over days barely move within a minute, so evaluate at the minute and reuse it until the next one
+        Instant minute = TimeBuckets.alignEnd(Instant.now(), 1);
 
         for (var entry : frames.entrySet()) {
             String label = entry.getKey();
@@ -166,15 +270,21 @@ public class APIStatsService {
                     days
             );
 
-            double pct =
-                    parseSingleValuePct(
-                            prom.instantQuery(promQl, now)
-                    );
-
-            out.put(label, pct);
+            // There is no local uptime history, so a failed frame reads as unknown rather than failing the response
+            queries.put(label, prom.instantQueryAsync(promQl, minute, minute.plus(Duration.ofMinutes(1)))
+                    .thenApply(this::parseSingleValuePct)
+                    .exceptionally(e -> {
+                        recordFallback(e);
+                        return -1.0;
+                    }));
         }
 
-        return out;
+        return CompletableFuture.allOf(queries.values().toArray(CompletableFuture[]::new))
+                .thenApply(_ -> {
+                    Map<String, Double> out = new HashMap<>();
+                    queries.forEach((label, query) -> out.put(label, query.join()));
+                    return out;
+                });
     }
 
 
@@ -213,6 +323,28 @@ public class APIStatsService {
         return out;
     }
 
+    private List<EndpointStats> parseEndpointStats(JsonNode result, int windowMinutes) {
+        // requests per minute, then p50, p95 and p99 in ms
+        Map<String, double[]> byUri = new TreeMap<>();
+
+        for (JsonNode ts : result) {
+            String uri = ts.path("metric").path("uri").asText("UNKNOWN");
+            double value = ts.path("value").get(1).asDouble();
+            double[] stats = byUri.computeIfAbsent(uri, _ -> new double[] {0.0, Double.NaN, Double.NaN, Double.NaN});
+
+            switch (ts.path("metric").path("quantile").asText()) {
+                case "requests" -> stats[0] = value / windowMinutes;
+                case "0.50" -> stats[1] = value * 1000.0;
+                case "0.95" -> stats[2] = value * 1000.0;
+                case "0.99" -> stats[3] = value * 1000.0;
+            }
+        }
+
+        List<EndpointStats> out = new ArrayList<>();
+        byUri.forEach((uri, stats) -> out.add(new EndpointStats(uri, stats[0], stats[1], stats[2], stats[3])));
+        return out;
+    }
+
     private double parseSingleValuePct(JsonNode result) {
         if (!result.isArray() || result.isEmpty()) {
             return 0.0;
@@ -1,5 +1,6 @@
 package com.pugking4.spotifystat.api.stats;
 
+import java.util.List;
 import java.util.Map;
 
 public record ApiStatsResponse(
@@ -11,5 +12,6 @@ public record ApiStatsResponse(
         RequestsPerMinuteResponse rollingRequests5m,
         LatencyResponse latency1m,
         LatencyResponse latency5m,
-        Map<String, Double> uptimePercentage
+        Map<String, Double> uptimePercentage,
+        List<PipelineStageStats> pipeline
 ) {}
@@ -0,0 +1,317 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.LocalTimeRange;
+import com.pugking4.spotifystat.common.dto.Track;
+import io.micrometer.core.instrument.Tags;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The {@link StatsComputation} metrics, answered straight from a {@link HistorySnapshot}'s columns.
+ * <p>
+ * Plays are counted into arrays indexed by the snapshot's track and artist dictionaries, so a scan touches only
+ * primitive arrays and never builds a {@code PlayedTrack}. Per-track play counts, which back the top tracks, artist
+ * distribution and play totals, merge the snapshot's per-hour aggregates, and listening time is a difference of its
+ * running totals, so only the partial hours at the window's ends are read play by play. All-time
+ * questions, such as whether a track was ever played outside the period, are answered from each track's first play
+ * and the counts after the period instead of a pass over the whole history. Results match {@link StatsComputation},
+ * up to which of several equal candidates is picked.
+ */
+public class ColumnarStats {
+    private final HistorySnapshot history;
+    private final int from;
+    private final int to;
+    private final int[] trackPlayCounts;
+    private final int[] artistPlayCounts;
+    private final List<Session> sessions;
+
+    /**
+     * Covers the plays finished strictly between {@code from} and {@code to}, like {@link HistorySnapshot#between}.
+     */
+    public ColumnarStats(HistorySnapshot history, Instant from, Instant to) {
+        this(history, from, to, null, null);
+    }
+
+    /**
+     * Like {@link #ColumnarStats(HistorySnapshot, Instant, Instant)}, timing the track counts, artist counts and
+     * session cut as {@code stats.pipeline} stages when {@code metrics} is given.
+     */
+    public ColumnarStats(HistorySnapshot history, Instant from, Instant to, PipelineMetrics metrics, Tags requestTags) {
+        this.history = history;
+        int fromIndex = history.firstIndexAfter(from);
+        int toIndex = Math.max(fromIndex, history.firstIndexAtOrAfter(to));
+        this.from = fromIndex;
+        this.to = toIndex;
+
+        int[] trackCounts = record(metrics, "columnar-track-counts", requestTags, () -> history.countTrackPlays(fromIndex, toIndex));
+        trackPlayCounts = trackCounts;
+        artistPlayCounts = record(metrics, "columnar-artist-counts", requestTags, () -> countArtistPlays(history, trackCounts));
+        // Only the first and last play of each session are read, the session itself is a view over the snapshot
+        sessions = record(metrics, "columnar-sessions", requestTags,
+                () -> StatsUtility.toSessions(StatsUtility.sessionsBetween(history, from, to), StatsUtility.SESSION_TIMING_FUZZ_PERCENTAGE));
+    }
+
+    private static <T> T record(PipelineMetrics metrics, String stage, Tags requestTags, Supplier<T> task) {
+        return metrics == null ? task.get() : metrics.record(stage, requestTags, task);
+    }
+
+    private static int[] countArtistPlays(HistorySnapshot history, int[] trackPlayCounts) {
+        int[] artistPlayCounts = new int[history.artistCount()];
+        for (int track = 0; track < trackPlayCounts.length; track++) {
+            if (trackPlayCounts[track] == 0) continue;
+            for (int artist : history.trackArtistIndexes(track)) {
+                artistPlayCounts[artist] += trackPlayCounts[track];
+            }
+        }
+        return artistPlayCounts;
+    }
+
+    public int totalPlays() {
+        return to - from;
+    }
+
+    public long totalListeningTime() {
+        return history.listeningMs(from, to);
+    }
+
+    public List<TrackPlayCount> topTracks(int limit) {
+        Map<Track, Integer> counts = new HashMap<>();
+        for (int track = 0; track < trackPlayCounts.length; track++) {
+            if (trackPlayCounts[track] > 0) counts.put(history.track(track), trackPlayCounts[track]);
+        }
+        return StatsUtility.rankTracks(counts, limit);
+    }
+
+    public SingleValueStats calculateAllSingleValueStats() {
+        return new SingleValueStats(
+                calculateTrackSingleValueStats(),
+                new SingleValueStats.AlbumStats(countAlbumsPlayed()),
+                new SingleValueStats.ArtistStats(countPlayed(artistPlayCounts)),
+                calculateMiscSingleValueStats()
+        );
+    }
+
+    private SingleValueStats.TrackStats calculateTrackSingleValueStats() {
+        int totalPlays = totalPlays();
+        long totalListeningTime = totalListeningTime();
+        int totalLocalTracksPlayed = 0;
+        int totalExplicitTracksPlayed = 0;
+        for (int track = 0; track < trackPlayCounts.length; track++) {
+            if (trackPlayCounts[track] == 0) continue;
+            if (history.track(track).isLocal()) totalLocalTracksPlayed += trackPlayCounts[track];
+            if (history.track(track).isExplicit()) totalExplicitTracksPlayed += trackPlayCounts[track];
+        }
+        long averageTrackDuration = totalPlays == 0 ? -1 : Math.round((double) totalListeningTime / totalPlays);
+
+        return new SingleValueStats.TrackStats(totalPlays, countPlayed(trackPlayCounts), totalListeningTime,
+                countTracksOnlyPlayedBetween(history, from, to), totalLocalTracksPlayed, totalExplicitTracksPlayed, averageTrackDuration,
+                calculateAverageTrackPopularity());
+    }
+
+    /**
+     * Counts tracks never played outside indexes {@code [from, to)}: their first play is inside and the per-hour
+     * aggregates find no play after, which for a period ending now or at the start of the current calendar period is
+     * a short tail.
+     */
+    private static int countTracksOnlyPlayedBetween(HistorySnapshot history, int from, int to) {
+        int[] laterPlayCounts = history.countTrackPlays(to, history.size());
+        int newTracks = 0;
+        for (int track = 0; track < laterPlayCounts.length; track++) {
+            int firstPlay = history.firstPlayIndex(track);
+            if (firstPlay >= from && firstPlay < to && laterPlayCounts[track] == 0) newTracks++;
+        }
+        return newTracks;
+    }
+
+    /**
+     * Returns {@code response}, computed for the plays finished strictly between {@code from} and {@code to} from an
+     * earlier snapshot holding the same plays in that period, with the fields that also depend on plays outside it
+     * recomputed from {@code history}: the new track count and both listening streaks.
+     */
+    public static TimePeriodStatsResponse withCurrentAllTimeFields(TimePeriodStatsResponse response, HistorySnapshot history, Instant from, Instant to) {
+        SingleValueStats stats = response.allSingleValueStats();
+        if (stats == null) return response;
+
+        int fromIndex = history.firstIndexAfter(from);
+        int toIndex = Math.max(fromIndex, history.firstIndexAtOrAfter(to));
+        SingleValueStats.TrackStats track = stats.track();
+        SingleValueStats.MiscStats misc = stats.misc();
+        ListeningDays listeningDays = history.listeningDays();
+        SingleValueStats current = new SingleValueStats(
+                new SingleValueStats.TrackStats(track.totalTracksPlayed(), track.totalUniqueTracksPlayed(), track.totalListeningTime(),
+                        countTracksOnlyPlayedBetween(history, fromIndex, toIndex), track.totalLocalTracksPlayed(),
+                        track.totalExplicitTracksPlayed(), track.averageTrackDuration(), track.averageTrackPopularity()),
+                stats.album(),
+                stats.artist(),
+                new SingleValueStats.MiscStats(misc.totalListeningSessions(), misc.averageListeningSessionLength(),
+                        misc.averagePercentageListeningToMusicDuringSession(),
+                        listeningDays.streakEndingAt(LocalDate.now(TimeUtility.LISTENING_ZONE)), listeningDays.longestStreak(),
+                        misc.activeDaysInPeriod(), misc.percentageTracksAddedToLikedAfterPlay(), misc.totalNewTracksAddedToLiked())
+        );
+        return new TimePeriodStatsResponse(response.topTracks(), current, response.longestTrack(), response.shortestTrack(),
+                response.longestListeningSession(), response.listeningTimeHeatmap(), response.artistDistribution(),
+                response.mostNicheArtist(), response.mostPopularArtist());
+    }
+
+    private float calculateAverageTrackPopularity() {
+        boolean[] counted = new boolean[trackPlayCounts.length];
+        for (int track = 0; track < trackPlayCounts.length; track++) {
+            counted[track] = trackPlayCounts[track] > 0 && StatsUtility.isTrackRecentlyReleased(history.track(track));
+        }
+
+        long popularityTotal = 0;
+        int plays = 0;
+        for (int i = from; i < to; i++) {
+            StatsSectionExecutor.checkCancelled();
+            int popularity = history.popularity(i);
+            if (!counted[history.trackIndex(i)] || popularity < 0) continue;
+            popularityTotal += popularity;
+            plays++;
+        }
+        return plays == 0 ? -1 : (float) ((double) popularityTotal / plays);
+    }
+
+    private int countAlbumsPlayed() {
+        Set<String> albumIds = new HashSet<>();
+        for (int track = 0; track < trackPlayCounts.length; track++) {
+            if (trackPlayCounts[track] > 0) albumIds.add(history.track(track).album().id());
+        }
+        return albumIds.size();
+    }
+
+    private static int countPlayed(int[] playCounts) {
+        int played = 0;
+        for (int playCount : playCounts) {
+            if (playCount > 0) played++;
+        }
+        return played;
+    }
+
+    private SingleValueStats.MiscStats calculateMiscSingleValueStats() {
+        long averageListeningSessionLength = Math.round(sessions.stream()
+                .mapToLong(x -> x.period().getDurationMs())
+                .average()
+                .orElse(-1));
+
+        // Sessions are consecutive runs from the start of the period, so each one's plays follow the previous one's
+        double[] sessionListeningShares = new double[sessions.size()];
+        int sessionStart = from;
+        for (int i = 0; i < sessions.size(); i++) {
+            int sessionEnd = sessionStart + sessions.get(i).playedTracks().size();
+            sessionListeningShares[i] = (double) history.listeningMs(sessionStart, sessionEnd) / sessions.get(i).period().getDurationMs();
+            sessionStart = sessionEnd;
+        }
+        float averagePercentageListeningToMusicDuringSession = (float) Arrays.stream(sessionListeningShares).average().orElse(-1);
+
+        ListeningDays listeningDays = history.listeningDays();
+        int listeningStreak = listeningDays.streakEndingAt(LocalDate.now(TimeUtility.LISTENING_ZONE));
+        int activeDaysInPeriod = totalPlays() == 0 ? 0 : listeningDays.activeDaysBetween(
+                LocalDate.ofInstant(history.timeFinished(from), TimeUtility.LISTENING_ZONE),
+                LocalDate.ofInstant(history.timeFinished(to - 1), TimeUtility.LISTENING_ZONE)
+        );
+
+        BitSet nonLikedSongs = new BitSet(trackPlayCounts.length);
+        BitSet likedSongs = new BitSet(trackPlayCounts.length);
+        for (int i = from; i < to; i++) {
+            StatsSectionExecutor.checkCancelled();
+            String contextType = history.contextType(i);
+            if ("playlist".equals(contextType) || "album".equals(contextType)) nonLikedSongs.set(history.trackIndex(i));
+            else if ("collection".equals(contextType)) likedSongs.set(history.trackIndex(i));
+        }
+        float percentageOfSongsAddedToLikedAfterPlay;
+        if (nonLikedSongs.isEmpty()) {
+            percentageOfSongsAddedToLikedAfterPlay = -1;
+        } else {
+            BitSet nonLikedAdded = (BitSet) nonLikedSongs.clone();
+            nonLikedAdded.and(likedSongs);
+            percentageOfSongsAddedToLikedAfterPlay = (float) nonLikedAdded.cardinality() / nonLikedSongs.cardinality();
+        }
+        // Every track played from the collection in the period was played from it all-time too
+        int totalNewTracksAddedToLiked = likedSongs.cardinality();
+
+        return new SingleValueStats.MiscStats(sessions.size(), averageListeningSessionLength,
+                averagePercentageListeningToMusicDuringSession, listeningStreak, listeningDays.longestStreak(),
+                activeDaysInPeriod, percentageOfSongsAddedToLikedAfterPlay, totalNewTracksAddedToLiked);
+    }
+
+    public Track findLongestTrack() {
+        return findPlayedTrack(Comparator.comparingLong(Track::durationMs));
+    }
+
+    public Track findShortestTrack() {
+        return findPlayedTrack(Comparator.comparingLong(Track::durationMs).reversed());
+    }
+
+    private Track findPlayedTrack(Comparator<Track> order) {
+        Track best = null;
+        for (int track = 0; track < trackPlayCounts.length; track++) {
+            if (trackPlayCounts[track] > 0 && (best == null || order.compare(history.track(track), best) > 0)) best = history.track(track);
+        }
+        return best;
+    }
+
+    public Session findLongestListeningSession() {
+        return sessions.stream()
+                .max(Comparator.comparingLong(x -> x.period().getDurationMs()))
+                .orElse(null);
+    }
+
+    public ListeningTimeHeatmap calculateListeningTimeHeatmap(int blockLengthMinutes) {
+        List<LocalTimeRange> timeRanges = StatsUtility.generateTimeRanges(blockLengthMinutes);
+        int blockLengthSeconds = blockLengthMinutes * 60;
+        int[] playCounts = new int[timeRanges.size()];
+        long[] durationTotals = new long[timeRanges.size()];
+
+        for (int i = from; i < to; i++) {
+            StatsSectionExecutor.checkCancelled();
+            int block = TimeUtility.secondOfListeningDay(history.timeFinished(i)) / blockLengthSeconds;
+            playCounts[block]++;
+            durationTotals[block] += history.track(history.trackIndex(i)).durationMs();
+        }
+
+        return StatsUtility.toHeatmap(timeRanges, playCounts, durationTotals);
+    }
+
+    public List<ArtistPercentage> calculateArtistDistribution() {
+        Map<Artist, Integer> counts = new HashMap<>();
+        for (int artist = 0; artist < artistPlayCounts.length; artist++) {
+            if (artistPlayCounts[artist] > 0) counts.put(history.artist(artist), artistPlayCounts[artist]);
+        }
+        return StatsUtility.toArtistDistribution(counts, totalPlays());
+    }
+
+    /**
+     * Returns the least popular artist played, the one with fewest followers among equals.
+     */
+    public Artist findMostNicheArtist() {
+        return findPlayedArtist(Comparator.comparingInt(Artist::popularity).reversed().thenComparing(Comparator.comparingInt(Artist::followers).reversed()));
+    }
+
+    /**
+     * Returns the most popular artist played, the one with most followers among equals.
+     */
+    public Artist findMostPopularArtist() {
+        return findPlayedArtist(Comparator.comparingInt(Artist::popularity).thenComparingInt(Artist::followers));
+    }
+
+    private Artist findPlayedArtist(Comparator<Artist> order) {
+        Artist best = null;
+        for (int artist = 0; artist < artistPlayCounts.length; artist++) {
+            if (artistPlayCounts[artist] == 0 || history.artist(artist).id().equals(StatsUtility.EXCLUDE_ARTIST)) continue;
+            if (best == null || order.compare(history.artist(artist), best) > 0) best = history.artist(artist);
+        }
+        return best;
+    }
+}
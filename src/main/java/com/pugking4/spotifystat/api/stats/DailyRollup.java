@@ -0,0 +1,59 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-day play counts and listening time for a batch of plays, one row per (dimension, day, key).
+ * <p>
+ * Days are calendar days in the JVM zone, the same zone {@link TimeUtility#getTrackingPeriod(Calendar, int)} uses for
+ * period boundaries, so a calendar period is always a whole number of days.
+ */
+public final class DailyRollup {
+    public record Row(RollupDimension dimension, LocalDate day, String key, int playCount, long listeningMs) {}
+
+    private record RowKey(RollupDimension dimension, LocalDate day, String key) {}
+
+    private final Map<RowKey, long[]> totals = new HashMap<>();
+
+    public static DailyRollup aggregate(List<PlayedTrack> playedTracks) {
+        DailyRollup rollup = new DailyRollup();
+        ZoneId zone = ZoneId.systemDefault();
+        for (PlayedTrack playedTrack : playedTracks) {
+            LocalDate day = LocalDate.ofInstant(playedTrack.timeFinished(), zone);
+            long durationMs = playedTrack.track().durationMs();
+
+            rollup.add(RollupDimension.TRACK, day, playedTrack.track().id(), durationMs);
+            rollup.add(RollupDimension.ALBUM, day, playedTrack.track().album().id(), durationMs);
+            rollup.add(RollupDimension.DEVICE, day, playedTrack.device().name(), durationMs);
+            rollup.add(RollupDimension.MINUTE, day, String.valueOf(TimeUtility.secondOfListeningDay(playedTrack.timeFinished()) / 60), durationMs);
+            for (Artist artist : playedTrack.track().artists()) {
+                rollup.add(RollupDimension.ARTIST, day, artist.id(), durationMs);
+            }
+        }
+        return rollup;
+    }
+
+    private void add(RollupDimension dimension, LocalDate day, String key, long durationMs) {
+        long[] total = totals.computeIfAbsent(new RowKey(dimension, day, key), _ -> new long[2]);
+        total[0]++;
+        total[1] += durationMs;
+    }
+
+    public List<Row> rows() {
+        List<Row> rows = new ArrayList<>(totals.size());
+        totals.forEach((key, total) -> rows.add(new Row(key.dimension(), key.day(), key.key(), Math.toIntExact(total[0]), total[1])));
+        return rows;
+    }
+
+    public boolean isEmpty() {
+        return totals.isEmpty();
+    }
+}
@@ -0,0 +1,9 @@
+package com.pugking4.spotifystat.api.stats;
+
+public record EndpointStats(
+        String uri,
+        double requestsPerMinute,
+        double p50Ms,
+        double p95Ms,
+        double p99Ms
+) {}
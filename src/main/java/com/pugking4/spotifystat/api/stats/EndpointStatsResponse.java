@@ -0,0 +1,9 @@
+package com.pugking4.spotifystat.api.stats;
+
+import java.util.List;
+
+public record EndpointStatsResponse(
+        int windowMinutes,
+        long timeEnd,
+        List<EndpointStats> endpoints
+) {}
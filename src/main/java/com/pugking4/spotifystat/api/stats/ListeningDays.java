@@ -0,0 +1,112 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable set of days with at least one play, one bit per epoch day in {@link TimeUtility#LISTENING_ZONE}.
+ * <p>
+ * Streaks and active day counts are answered from the bitmap with word-at-a-time scans, so they no longer depend on
+ * how many plays the history holds. New plays produce a new instance through {@link #plus(List)}; the bitmap is small
+ * (one bit per day), so copying it keeps published instances safe to read without locking.
+ */
+public final class ListeningDays {
+    public static final ListeningDays EMPTY = new ListeningDays(new BitSet(), 0);
+
+    private final BitSet days;
+    private final int longestStreak;
+
+    private ListeningDays(BitSet days, int longestStreak) {
+        this.days = days;
+        this.longestStreak = longestStreak;
+    }
+
+    public static ListeningDays of(List<PlayedTrack> playedTracks) {
+        return EMPTY.plus(playedTracks);
+    }
+
+    /**
+     * Builds the set from a history's time column without assembling any plays: from each active day it binary
+     * searches to the first play of a later day, so the cost grows with the number of active days rather than plays.
+     */
+    public static ListeningDays of(HistorySnapshot history) {
+        BitSet days = new BitSet();
+        int index = 0;
+        while (index < history.size()) {
+            LocalDate date = LocalDate.ofInstant(history.timeFinished(index), TimeUtility.LISTENING_ZONE);
+            days.set(toIndex(date));
+            index = history.firstIndexAtOrAfter(date.plusDays(1).atStartOfDay(TimeUtility.LISTENING_ZONE).toInstant());
+        }
+
+        int longest = 0;
+        for (int day = days.nextSetBit(0); day >= 0; day = days.nextSetBit(days.nextClearBit(day))) {
+            longest = Math.max(longest, days.nextClearBit(day) - day);
+        }
+        return new ListeningDays(days, longest);
+    }
+
+    public ListeningDays plus(List<PlayedTrack> playedTracks) {
+        if (playedTracks.isEmpty()) return this;
+
+        BitSet updated = (BitSet) days.clone();
+        BitSet added = new BitSet();
+        for (PlayedTrack playedTrack : playedTracks) {
+            int day = epochDay(playedTrack.timeFinished());
+            if (!updated.get(day)) {
+                updated.set(day);
+                added.set(day);
+            }
+        }
+
+        // Setting bits can only join runs, so the longest run is either the old one or one through a new day
+        int longest = longestStreak;
+        for (int day = added.nextSetBit(0); day >= 0; day = added.nextSetBit(updated.nextClearBit(day))) {
+            int runStart = updated.previousClearBit(day) + 1;
+            int runEnd = updated.nextClearBit(day);
+            longest = Math.max(longest, runEnd - runStart);
+        }
+        return new ListeningDays(updated, longest);
+    }
+
+    public boolean isActive(LocalDate date) {
+        return days.get(toIndex(date));
+    }
+
+    /**
+     * Returns the number of consecutive active days ending on {@code date}, or 0 if nothing was played that day.
+     */
+    public int streakEndingAt(LocalDate date) {
+        int day = toIndex(date);
+        if (!days.get(day)) return 0;
+        return day - days.previousClearBit(day);
+    }
+
+    public int longestStreak() {
+        return longestStreak;
+    }
+
+    /**
+     * Returns the number of active days between {@code from} and {@code to}, both inclusive.
+     */
+    public int activeDaysBetween(LocalDate from, LocalDate to) {
+        if (to.isBefore(from)) return 0;
+        return days.get(toIndex(from), toIndex(to) + 1).cardinality();
+    }
+
+    public int totalActiveDays() {
+        return days.cardinality();
+    }
+
+    static int epochDay(Instant instant) {
+        return toIndex(LocalDate.ofInstant(instant, TimeUtility.LISTENING_ZONE));
+    }
+
+    private static int toIndex(LocalDate date) {
+        return Math.toIntExact(Math.max(0, date.toEpochDay()));
+    }
+}
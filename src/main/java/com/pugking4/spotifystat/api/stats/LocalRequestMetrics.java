@@ -0,0 +1,247 @@
+package com.pugking4.spotifystat.api.stats;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling request counts and latency percentiles kept in-process from the {@code http.server.requests} timers, so
+ * {@code /stats/api} can still answer when Prometheus is slow or unreachable.
+ * <p>
+ * Each sample takes every timer's increase since the previous sample and adds it to a ring of fixed-length slots,
+ * per route: request counts by outcome and a latency histogram. The histograms use log-linear buckets, four per
+ * doubling from 0.25 ms in the manner of an HDR histogram, so percentiles have a bounded relative error at any
+ * latency. Latencies come from the timers' histogram buckets, which only exist when the timers publish a percentile
+ * histogram; the Prometheus latency queries depend on the same buckets. Reads take a sample first, so the bucket in
+ * progress is always current.
+ */
+@Component
+public class LocalRequestMetrics {
+    static final int SLOT_SECONDS = 15;
+
+    private static final double FIRST_BUCKET_MS = 0.25;
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int LATENCY_BUCKETS = BUCKETS_PER_DOUBLING * 18 + 1; // up to about 65 s
+    private static final List<String> OUTCOMES = List.of("SUCCESS", "CLIENT_ERROR", "SERVER_ERROR");
+    // Per route and slot: the outcome counts, all requests whatever their outcome, the latency buckets, then anything
+    // slower than the last bucket
+    private static final int ALL_REQUESTS = OUTCOMES.size();
+    private static final int FIRST_LATENCY_BUCKET = ALL_REQUESTS + 1;
+    private static final int COUNTS_LENGTH = FIRST_LATENCY_BUCKET + LATENCY_BUCKETS + 1;
+
+    private record TimerState(long count, double[] cumulativeBucketCounts) {}
+
+    private final MeterRegistry registry;
+    private final long[] slotNumbers;
+    private final List<Map<String, long[]>> slots;
+    private final Map<Meter.Id, TimerState> previous = new HashMap<>();
+
+    public LocalRequestMetrics(MeterRegistry registry,
+                               @Value("${stats.local-metrics.retention-minutes:60}") int retentionMinutes) {
+        this.registry = registry;
+        int slotCount = retentionMinutes * 60 / SLOT_SECONDS + 1;
+        this.slotNumbers = new long[slotCount];
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slotNumbers[i] = -1;
+            slots.add(new HashMap<>());
+        }
+    }
+
+    @Scheduled(fixedRateString = "${stats.local-metrics.sample-interval-ms:15000}")
+    public void sample() {
+        sample(Instant.now());
+    }
+
+    /**
+     * Same shape as {@link APIStatsService#getRequestsPerMinutesAsync}, answered from the local slots.
+     */
+    public RequestsPerMinuteResponse getRequestsPerMinutes(int minutes, int completeBuckets) {
+        Instant now = Instant.now();
+        sample(now);
+        Instant prevEnd = TimeBuckets.alignEnd(now, minutes);
+        Duration bucket = Duration.ofMinutes(minutes);
+
+        List<RequestBucket> buckets = new ArrayList<>();
+        for (int i = completeBuckets - 1; i >= 0; i--) {
+            Instant end = prevEnd.minus(bucket.multipliedBy(i));
+            buckets.add(toRequestBucket(end, true, sum(end.minus(bucket), end, null)));
+        }
+        buckets.add(toRequestBucket(prevEnd.plus(bucket), false, sum(prevEnd, now, null)));
+        return new RequestsPerMinuteResponse(minutes, buckets);
+    }
+
+    /**
+     * Same shape as {@link APIStatsService#getLatencyPercentilesMsAsync}, answered from the local slots.
+     */
+    public LatencyResponse getLatencyPercentilesMs(String uri, int windowMinutes, int completeBuckets) {
+        Instant now = Instant.now();
+        sample(now);
+        Instant prevEnd = TimeBuckets.alignEnd(now, windowMinutes);
+        Duration bucket = Duration.ofMinutes(windowMinutes);
+
+        List<LatencyBucket> buckets = new ArrayList<>();
+        for (int i = completeBuckets - 1; i >= 0; i--) {
+            Instant end = prevEnd.minus(bucket.multipliedBy(i));
+            buckets.add(toLatencyBucket(end, true, bucket.getSeconds(), sum(end.minus(bucket), end, uri)));
+        }
+        long partialSec = TimeBuckets.clampRange(Duration.between(prevEnd, now).getSeconds());
+        buckets.add(toLatencyBucket(prevEnd.plus(bucket), false, partialSec, sum(prevEnd, now, uri)));
+        return new LatencyResponse(windowMinutes, buckets);
+    }
+
+    /**
+     * Same shape as {@link APIStatsService#getEndpointStatsAsync}, answered from the local slots.
+     */
+    public EndpointStatsResponse getEndpointStats(int windowMinutes) {
+        Instant now = Instant.now();
+        sample(now);
+        Instant end = TimeBuckets.alignEnd(now, windowMinutes);
+
+        List<EndpointStats> endpoints = new ArrayList<>();
+        sumByUri(end.minus(Duration.ofMinutes(windowMinutes)), end).forEach((uri, counts) -> endpoints.add(new EndpointStats(
+                uri,
+                (double) counts[ALL_REQUESTS] / windowMinutes,
+                quantileMs(counts, 0.50),
+                quantileMs(counts, 0.95),
+                quantileMs(counts, 0.99)
+        )));
+        return new EndpointStatsResponse(windowMinutes, end.getEpochSecond(), endpoints);
+    }
+
+    synchronized void sample(Instant now) {
+        long slot = now.getEpochSecond() / SLOT_SECONDS;
+        for (Timer timer : registry.find("http.server.requests").timers()) {
+            HistogramSnapshot snapshot = timer.takeSnapshot();
+            CountAtBucket[] histogram = snapshot.histogramCounts();
+            double[] cumulative = new double[histogram.length];
+            for (int i = 0; i < histogram.length; i++) {
+                cumulative[i] = histogram[i].count();
+            }
+
+            // A timer seen for the first time was created by the requests it has counted so far
+            TimerState before = previous.put(timer.getId(), new TimerState(snapshot.count(), cumulative));
+            long requests = snapshot.count() - (before == null ? 0 : before.count());
+            if (requests <= 0) continue;
+
+            long[] counts = countsFor(slot, Objects.requireNonNullElse(timer.getId().getTag("uri"), "UNKNOWN"));
+            int outcome = OUTCOMES.indexOf(timer.getId().getTag("outcome"));
+            if (outcome >= 0) counts[outcome] += requests;
+            counts[ALL_REQUESTS] += requests;
+            if (histogram.length == 0) continue;
+
+            double previousIncrease = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                double increase = cumulative[i] - (before == null || before.cumulativeBucketCounts().length != histogram.length
+                        ? 0
+                        : before.cumulativeBucketCounts()[i]);
+                long inBucket = Math.round(increase - previousIncrease);
+                if (inBucket > 0) counts[FIRST_LATENCY_BUCKET + latencyBucket(histogram[i].bucket(TimeUnit.MILLISECONDS))] += inBucket;
+                previousIncrease = increase;
+            }
+            long slower = requests - Math.round(previousIncrease);
+            if (slower > 0) counts[COUNTS_LENGTH - 1] += slower;
+        }
+    }
+
+    private long[] countsFor(long slot, String uri) {
+        int index = (int) Math.floorMod(slot, (long) slotNumbers.length);
+        if (slotNumbers[index] != slot) {
+            slotNumbers[index] = slot;
+            slots.get(index).clear();
+        }
+        return slots.get(index).computeIfAbsent(uri, _ -> new long[COUNTS_LENGTH]);
+    }
+
+    /**
+     * Adds up the slots starting in {@code [from, to)}, plus the one holding {@code to} when it falls mid-slot.
+     *
+     * @param uri the route to include, or null or blank for all of them
+     */
+    private long[] sum(Instant from, Instant to, String uri) {
+        long[] total = new long[COUNTS_LENGTH];
+        sumByUri(from, to).forEach((route, counts) -> {
+            if (uri != null && !uri.isBlank() && !uri.equals(route)) return;
+            for (int i = 0; i < COUNTS_LENGTH; i++) {
+                total[i] += counts[i];
+            }
+        });
+        return total;
+    }
+
+    private synchronized Map<String, long[]> sumByUri(Instant from, Instant to) {
+        Map<String, long[]> totals = new TreeMap<>();
+        long lastSlot = Math.ceilDiv(to.getEpochSecond(), SLOT_SECONDS);
+        for (long slot = Math.max(from.getEpochSecond() / SLOT_SECONDS, lastSlot - slotNumbers.length); slot < lastSlot; slot++) {
+            int index = (int) Math.floorMod(slot, (long) slotNumbers.length);
+            if (slotNumbers[index] != slot) continue;
+            slots.get(index).forEach((uri, counts) -> {
+                long[] total = totals.computeIfAbsent(uri, _ -> new long[COUNTS_LENGTH]);
+                for (int i = 0; i < COUNTS_LENGTH; i++) {
+                    total[i] += counts[i];
+                }
+            });
+        }
+        return totals;
+    }
+
+    private static RequestBucket toRequestBucket(Instant end, boolean complete, long[] counts) {
+        return new RequestBucket(end.getEpochSecond(), complete, counts[0], counts[1], counts[2]);
+    }
+
+    private static LatencyBucket toLatencyBucket(Instant end, boolean complete, long rangeSec, long[] counts) {
+        return new LatencyBucket(end.getEpochSecond(), complete, rangeSec,
+                quantileMs(counts, 0.50), quantileMs(counts, 0.95), quantileMs(counts, 0.99));
+    }
+
+    static int latencyBucket(double ms) {
+        if (ms <= FIRST_BUCKET_MS) return 0;
+        // Nudged down so a value right on a bucket's upper bound stays in that bucket
+        int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING * Math.log(ms / FIRST_BUCKET_MS) / Math.log(2) - 1e-9);
+        return Math.min(bucket, LATENCY_BUCKETS);
+    }
+
+    private static double bucketUpperBoundMs(int bucket) {
+        return FIRST_BUCKET_MS * Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING);
+    }
+
+    /**
+     * Interpolates linearly inside the bucket holding the quantile, as {@code histogram_quantile} does. Returns NaN
+     * when there is no latency data, and the largest bucket bound when the quantile is slower than that.
+     */
+    static double quantileMs(long[] counts, double quantile) {
+        long total = 0;
+        for (int i = FIRST_LATENCY_BUCKET; i < COUNTS_LENGTH; i++) {
+            total += counts[i];
+        }
+        if (total == 0) return Double.NaN;
+
+        double rank = quantile * total;
+        long seen = 0;
+        for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+            long inBucket = counts[FIRST_LATENCY_BUCKET + bucket];
+            if (inBucket > 0 && seen + inBucket >= rank) {
+                double lower = bucket == 0 ? 0 : bucketUpperBoundMs(bucket - 1);
+                double upper = bucketUpperBoundMs(bucket);
+                return lower + (upper - lower) * (rank - seen) / inBucket;
+            }
+            seen += inBucket;
+        }
+        return bucketUpperBoundMs(LATENCY_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,101 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.api.data.Pair;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Timers for the stages a {@code /stats/time} request goes through between the HTTP timer's start and end, recorded
+ * as {@code stats.pipeline} and tagged by stage and by the request's mode, calendar period and window.
+ * <p>
+ * The window tag is the rolling window or the calendar period's length, bucketed to a handful of values so the series
+ * count stays fixed whatever {@code hours} is asked for. Prometheus needs every meter of a name to carry the same tag
+ * keys, so meters recorded outside a request use {@link #NO_REQUEST_TAGS}.
+ */
+@Component
+public class PipelineMetrics {
+    public static final Tags NO_REQUEST_TAGS = Tags.of("mode", "none", "calendar", "none", "window", "none");
+    // Request attribute holding the request's tags, for stages that run outside the controller method
+    public static final String REQUEST_TAGS_ATTRIBUTE = PipelineMetrics.class.getName() + ".requestTags";
+
+    // Each timer summarised on /stats/api, with the tag naming what it timed
+    private static final Map<String, String> STAGE_TAGS = Map.of(
+            "stats.pipeline", "stage",
+            "stats.section", "section",
+            "history.query", "query",
+            "history.refresh", "result",
+            "history.artist.lookup", "owner"
+    );
+
+    private final MeterRegistry registry;
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public static Tags requestTags(TimeStatsRequest request) {
+        return Tags.of(
+                "mode", request.mode().name().toLowerCase(Locale.ROOT),
+                "calendar", request.period() == null ? "none" : request.period().name().toLowerCase(Locale.ROOT),
+                "window", windowTag(request)
+        );
+    }
+
+    private static String windowTag(TimeStatsRequest request) {
+        if (request.hours() != null) return windowTag(Duration.ofHours(request.hours()));
+        if (request.period() == null) return "none";
+        Pair<LocalDateTime, LocalDateTime> trackingPeriod = TimeUtility.getTrackingPeriod(request.period(), request.offset());
+        return windowTag(Duration.between(trackingPeriod.right(), trackingPeriod.left()));
+    }
+
+    /**
+     * Returns the smallest of 1h, 6h, 1d, 7d, 31d and 366d that holds {@code window}, or "longer".
+     */
+    public static String windowTag(Duration window) {
+        long hours = window.toHours() + (window.toMinutesPart() > 0 ? 1 : 0);
+        if (hours <= 1) return "1h";
+        if (hours <= 6) return "6h";
+        if (hours <= 24) return "1d";
+        if (hours <= 24 * 7) return "7d";
+        if (hours <= 24 * 31) return "31d";
+        if (hours <= 24 * 366) return "366d";
+        return "longer";
+    }
+
+    public <T> T record(String stage, Tags requestTags, Supplier<T> task) {
+        return timer(stage, requestTags).record(task);
+    }
+
+    public Timer timer(String stage, Tags requestTags) {
+        return Timer.builder("stats.pipeline").tag("stage", stage).tags(requestTags).register(registry);
+    }
+
+    /**
+     * Adds up the pipeline, section, query, refresh and artist lookup timers across their tags, one entry per timed
+     * stage, ordered by name.
+     */
+    public List<PipelineStageStats> summary() {
+        Map<String, PipelineStageStats> stages = new TreeMap<>();
+        STAGE_TAGS.forEach((name, stageTag) -> {
+            for (Timer timer : registry.find(name).timers()) {
+                String stage = name + ":" + timer.getId().getTag(stageTag);
+                PipelineStageStats stats = new PipelineStageStats(stage, timer.count(),
+                        timer.totalTime(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS));
+                stages.merge(stage, stats, PipelineStageStats::plus);
+            }
+        });
+        return new ArrayList<>(stages.values());
+    }
+}
@@ -0,0 +1,19 @@
+package com.pugking4.spotifystat.api.stats;
+
+/**
+ * @param maxMs the slowest recent run, decaying over the registry's distribution expiry
+ */
+public record PipelineStageStats(
+        String stage,
+        long count,
+        double totalMs,
+        double maxMs
+) {
+    public double meanMs() {
+        return count == 0 ? 0 : totalMs / count;
+    }
+
+    PipelineStageStats plus(PipelineStageStats other) {
+        return new PipelineStageStats(stage, count + other.count, totalMs + other.totalMs, Math.max(maxMs, other.maxMs));
+    }
+}
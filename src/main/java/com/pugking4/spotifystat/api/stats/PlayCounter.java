@@ -0,0 +1,43 @@
+package com.pugking4.spotifystat.api.stats;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Counts plays per item in a single pass, keyed by the item's id. The first instance seen for an id represents it in
+ * the result.
+ */
+final class PlayCounter<T> {
+    private final Function<T, String> idFunction;
+    private final Map<String, Count<T>> counts = new HashMap<>();
+
+    PlayCounter(Function<T, String> idFunction) {
+        this.idFunction = idFunction;
+    }
+
+    void add(T item) {
+        add(item, 1);
+    }
+
+    void add(T item, int plays) {
+        counts.computeIfAbsent(idFunction.apply(item), _ -> new Count<>(item)).plays += plays;
+    }
+
+    Map<T, Integer> toMap() {
+        Map<T, Integer> map = HashMap.newHashMap(counts.size());
+        for (Count<T> count : counts.values()) {
+            map.put(count.item, count.plays);
+        }
+        return map;
+    }
+
+    private static final class Count<T> {
+        private final T item;
+        private int plays;
+
+        private Count(T item) {
+            this.item = item;
+        }
+    }
+}
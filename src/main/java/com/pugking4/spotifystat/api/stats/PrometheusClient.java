@@ -1,8 +1,14 @@
 package com.pugking4.spotifystat.api.stats;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import tools.jackson.databind.JsonNode;
 import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.node.ArrayNode;
+import tools.jackson.databind.node.JsonNodeFactory;
+import tools.jackson.databind.node.ObjectNode;
 
 import java.net.URI;
 import java.net.URLEncoder;
@@ -12,42 +18,186 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 
+/**
+ * Instant and range queries against the Prometheus HTTP API, sent asynchronously so that independent queries overlap.
+ * <p>
+ * Identical queries (same PromQL and evaluation times) that are in flight at the same time share one request.
+ * Results of queries over finished time ranges can also be kept until a caller-supplied instant, usually the next
+ * bucket boundary, after which the same evaluation time is no longer asked for.
+ */
 @Component
 public class PrometheusClient {
-    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private record QueryKey(String path, String promQl, long start, long end, long stepSeconds) {}
+
+    private record CachedResult(JsonNode result, Instant expiresAt) {}
+
+    // Response handling runs on virtual threads rather than the common pool
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
     private final ObjectMapper objectMapper;
-    private final URI baseUri = URI.create("http://localhost:9090");
+    private final URI baseUri;
+    private final Duration timeout;
+
+    private final Map<QueryKey, CompletableFuture<JsonNode>> inFlight = new ConcurrentHashMap<>();
+    private final Map<QueryKey, CachedResult> results;
+
+    private final Counter cacheHits;
+    private final Counter coalesced;
+    private final Counter sent;
 
-    public PrometheusClient(ObjectMapper objectMapper) {
+    public PrometheusClient(ObjectMapper objectMapper,
+                            MeterRegistry registry,
+                            @Value("${prometheus.url:http://localhost:9090}") String baseUrl,
+                            @Value("${prometheus.timeout-ms:5000}") long timeoutMs,
+                            @Value("${prometheus.cache.max-entries:64}") int maxCachedResults) {
         this.objectMapper = objectMapper;
+        this.baseUri = URI.create(baseUrl);
+        this.timeout = Duration.ofMillis(timeoutMs);
+        this.cacheHits = Counter.builder("prometheus.queries").tag("result", "cache-hit").register(registry);
+        this.coalesced = Counter.builder("prometheus.queries").tag("result", "coalesced").register(registry);
+        this.sent = Counter.builder("prometheus.queries").tag("result", "sent").register(registry);
+        this.results = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<QueryKey, CachedResult> eldest) {
+                return size() > maxCachedResults;
+            }
+        });
     }
 
     public JsonNode instantQuery(String promQl, Instant time) {
-        try {
-            String url = baseUri + "/api/v1/query"
-                    + "?query=" + URLEncoder.encode(promQl, StandardCharsets.UTF_8)
-                    + "&time=" + time.getEpochSecond();
+        return await(instantQueryAsync(promQl, time, null));
+    }
 
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .timeout(Duration.ofSeconds(5))
-                    .GET()
-                    .build();
+    /**
+     * Like {@link #instantQuery(String, Instant)}, but the result is reused for the same query and time until
+     * {@code cacheUntil}. Only pass a {@code cacheUntil} when the queried range is complete, so that asking again
+     * could not return anything different.
+     *
+     * @param cacheUntil when to stop reusing the result, or null to not cache it
+     */
+    public JsonNode instantQuery(String promQl, Instant time, Instant cacheUntil) {
+        return await(instantQueryAsync(promQl, time, cacheUntil));
+    }
 
-            HttpResponse<String> resp =
-                    httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Evaluates {@code promQl} at {@code time}, completing with the {@code data.result} vector.
+     *
+     * @param cacheUntil when to stop reusing the result, or null to not cache it
+     */
+    public CompletableFuture<JsonNode> instantQueryAsync(String promQl, Instant time, Instant cacheUntil) {
+        long epochSecond = time.getEpochSecond();
+        return query(new QueryKey("/api/v1/query", promQl, epochSecond, epochSecond, 0), cacheUntil);
+    }
 
-            JsonNode root = objectMapper.readTree(resp.body());
+    /**
+     * Evaluates {@code promQl} at every {@code step} from {@code start} to {@code end} inclusive in one request. Each
+     * evaluation time maps to its samples in the same shape as an instant query's result, empty where no series had
+     * a value.
+     *
+     * @param cacheUntil when to stop reusing the result, or null to not cache it
+     */
+    public CompletableFuture<SortedMap<Instant, JsonNode>> rangeQueryAsync(String promQl, Instant start, Instant end,
+                                                                          Duration step, Instant cacheUntil) {
+        QueryKey key = new QueryKey("/api/v1/query_range", promQl, start.getEpochSecond(), end.getEpochSecond(), step.getSeconds());
+        return query(key, cacheUntil).thenApply(matrix -> toVectors(matrix, key));
+    }
 
-            if (!"success".equals(root.path("status").asText())) {
-                throw new IllegalStateException(
-                        "Prometheus error: " + root.path("error").asText());
+    /**
+     * Waits for a query, rethrowing its failure as it would have been thrown by a blocking call.
+     */
+    public static <T> T await(CompletableFuture<T> query) {
+        try {
+            return query.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private CompletableFuture<JsonNode> query(QueryKey key, Instant cacheUntil) {
+        CachedResult cached = results.get(key);
+        if (cached != null && Instant.now().isBefore(cached.expiresAt())) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(cached.result());
+        }
+
+        CompletableFuture<JsonNode> query = new CompletableFuture<>();
+        CompletableFuture<JsonNode> existing = inFlight.putIfAbsent(key, query);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.copy();
+        }
+
+        send(key).whenComplete((result, failure) -> {
+            if (failure == null && cacheUntil != null && Instant.now().isBefore(cacheUntil)) {
+                results.put(key, new CachedResult(result, cacheUntil));
+            }
+            inFlight.remove(key, query);
+            if (failure == null) {
+                query.complete(result);
+            } else {
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                query.completeExceptionally(cause instanceof IllegalStateException
+                        ? cause
+                        : new IllegalStateException("Prometheus query failed: " + key.promQl(), cause));
             }
+        });
+        return query.copy();
+    }
+
+    private CompletableFuture<JsonNode> send(QueryKey key) {
+        sent.increment();
+        String url = baseUri + key.path()
+                + "?query=" + URLEncoder.encode(key.promQl(), StandardCharsets.UTF_8)
+                + (key.stepSeconds() == 0
+                        ? "&time=" + key.start()
+                        : "&start=" + key.start() + "&end=" + key.end() + "&step=" + key.stepSeconds());
+
+        HttpRequest req = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(timeout)
+                .GET()
+                .build();
 
-            return root.path("data").path("result");
-        } catch (Exception e) {
-            throw new IllegalStateException("Prometheus query failed: " + promQl, e);
+        return httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString())
+                .thenApply(resp -> {
+                    JsonNode root = objectMapper.readTree(resp.body());
+
+                    if (!"success".equals(root.path("status").asText())) {
+                        throw new IllegalStateException(
+                                "Prometheus error: " + root.path("error").asText());
+                    }
+
+                    return root.path("data").path("result");
+                });
+    }
+
+    private static SortedMap<Instant, JsonNode> toVectors(JsonNode matrix, QueryKey key) {
+        SortedMap<Instant, JsonNode> vectors = new TreeMap<>();
+        for (long time = key.start(); time <= key.end(); time += key.stepSeconds()) {
+            vectors.put(Instant.ofEpochSecond(time), JsonNodeFactory.instance.arrayNode());
+        }
+
+        for (JsonNode series : matrix) {
+            for (JsonNode value : series.path("values")) {
+                Instant time = Instant.ofEpochSecond(value.get(0).asLong());
+                ObjectNode sample = JsonNodeFactory.instance.objectNode();
+                sample.set("metric", series.path("metric"));
+                sample.set("value", value);
+                ((ArrayNode) vectors.computeIfAbsent(time, _ -> JsonNodeFactory.instance.arrayNode())).add(sample);
+            }
         }
+        return vectors;
     }
 }
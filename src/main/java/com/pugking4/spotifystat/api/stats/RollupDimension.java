@@ -0,0 +1,13 @@
+package com.pugking4.spotifystat.api.stats;
+
+/**
+ * What a {@link DailyRollup} row counts. {@code MINUTE} keys are the minute of the day in
+ * {@link TimeUtility#LISTENING_ZONE}, which any heatmap block size can be summed from.
+ */
+public enum RollupDimension {
+    TRACK,
+    ARTIST,
+    ALBUM,
+    DEVICE,
+    MINUTE
+}
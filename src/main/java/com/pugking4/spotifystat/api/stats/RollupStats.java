@@ -0,0 +1,101 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.RollupSum;
+import com.pugking4.spotifystat.common.dto.Artist;
+import com.pugking4.spotifystat.common.dto.LocalTimeRange;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import com.pugking4.spotifystat.common.dto.Track;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The count-based {@link StatsComputation} metrics, answered from summed daily rollups instead of raw plays.
+ * <p>
+ * Rollup keys whose track or artist cannot be looked up, such as rows the rollup folded in before the history cache
+ * refreshed, still count towards the totals but are left out of the rankings.
+ */
+public class RollupStats {
+    private final RollupTotals totals;
+    private final Function<String, Track> trackLookup;
+    private final Function<String, Artist> artistLookup;
+    private final int totalPlays;
+
+    public RollupStats(RollupTotals totals, Function<String, Track> trackLookup, Function<String, Artist> artistLookup) {
+        this.totals = totals;
+        this.trackLookup = trackLookup;
+        this.artistLookup = artistLookup;
+        this.totalPlays = Math.toIntExact(totals.get(RollupDimension.TRACK).values().stream()
+                .mapToLong(x -> x[0])
+                .sum());
+    }
+
+    /**
+     * Answers the plays finished strictly between {@code from} and {@code to}, like {@link ColumnarStats} over the
+     * same snapshot, from {@code sum}, the rollup summed over the days from {@code from} until {@code to}. Plays
+     * finished after the rollup's high-water mark are aggregated from {@code history}, so a period reaching past the
+     * last update needs only that tail rather than every play. Plays finished exactly at {@code from} belong to the
+     * first day's rows but not to the period, so they are taken off again.
+     * <p>
+     * Rows added out of time order after the last update are missing until the next one folds them in.
+     */
+    public static RollupStats of(RollupSum sum, HistorySnapshot history, Instant from, Instant to) {
+        RollupTotals totals = sum.totals();
+        Instant highWaterMark = sum.highWaterMark();
+
+        int tailFrom = history.firstIndexAfter(highWaterMark == null || highWaterMark.isBefore(from) ? from : highWaterMark);
+        int tailTo = Math.max(tailFrom, history.firstIndexAtOrAfter(to));
+        DailyRollup.aggregate(history.subList(tailFrom, tailTo)).rows().forEach(totals::add);
+
+        if (highWaterMark != null && !highWaterMark.isBefore(from)) {
+            List<PlayedTrack> atFrom = history.subList(history.firstIndexAtOrAfter(from), history.firstIndexAfter(from));
+            DailyRollup.aggregate(atFrom).rows().forEach(totals::subtract);
+        }
+        return new RollupStats(totals, history::findTrack, history::findArtist);
+    }
+
+    public int totalPlays() {
+        return totalPlays;
+    }
+
+    public long totalListeningTime() {
+        return totals.get(RollupDimension.TRACK).values().stream()
+                .mapToLong(x -> x[1])
+                .sum();
+    }
+
+    public List<TrackPlayCount> topTracks(int limit) {
+        PlayCounter<Track> trackCounter = new PlayCounter<>(Track::id);
+        totals.get(RollupDimension.TRACK).forEach((id, total) -> {
+            Track track = trackLookup.apply(id);
+            if (track != null) trackCounter.add(track, Math.toIntExact(total[0]));
+        });
+        return StatsUtility.rankTracks(trackCounter.toMap(), limit);
+    }
+
+    public List<ArtistPercentage> calculateArtistDistribution() {
+        PlayCounter<Artist> artistCounter = new PlayCounter<>(Artist::id);
+        totals.get(RollupDimension.ARTIST).forEach((id, total) -> {
+            Artist artist = artistLookup.apply(id);
+            if (artist != null) artistCounter.add(artist, Math.toIntExact(total[0]));
+        });
+        return StatsUtility.toArtistDistribution(artistCounter.toMap(), totalPlays);
+    }
+
+    public ListeningTimeHeatmap calculateListeningTimeHeatmap(int blockLengthMinutes) {
+        List<LocalTimeRange> timeRanges = StatsUtility.generateTimeRanges(blockLengthMinutes);
+        int[] playCounts = new int[timeRanges.size()];
+        long[] durationTotals = new long[timeRanges.size()];
+
+        for (Map.Entry<String, long[]> minute : totals.get(RollupDimension.MINUTE).entrySet()) {
+            int block = Integer.parseInt(minute.getKey()) / blockLengthMinutes;
+            playCounts[block] += Math.toIntExact(minute.getValue()[0]);
+            durationTotals[block] += minute.getValue()[1];
+        }
+
+        return StatsUtility.toHeatmap(timeRanges, playCounts, durationTotals);
+    }
+}
@@ -0,0 +1,38 @@
+package com.pugking4.spotifystat.api.stats;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rollup rows summed over a range of days, per dimension and key.
+ */
+public final class RollupTotals {
+    private final Map<RollupDimension, Map<String, long[]>> totals = new EnumMap<>(RollupDimension.class);
+
+    /**
+     * Adds onto the key's totals, dropping the key once no plays are left on it.
+     */
+    public void add(RollupDimension dimension, String key, long playCount, long listeningMs) {
+        Map<String, long[]> keys = totals.computeIfAbsent(dimension, _ -> new HashMap<>());
+        long[] total = keys.computeIfAbsent(key, _ -> new long[2]);
+        total[0] += playCount;
+        total[1] += listeningMs;
+        if (total[0] == 0) keys.remove(key);
+    }
+
+    public void add(DailyRollup.Row row) {
+        add(row.dimension(), row.key(), row.playCount(), row.listeningMs());
+    }
+
+    public void subtract(DailyRollup.Row row) {
+        add(row.dimension(), row.key(), -row.playCount(), -row.listeningMs());
+    }
+
+    /**
+     * Returns {@code [playCount, listeningMs]} per key for the dimension.
+     */
+    Map<String, long[]> get(RollupDimension dimension) {
+        return totals.getOrDefault(dimension, Map.of());
+    }
+}
@@ -9,6 +9,11 @@ import java.util.List;
 import java.util.Map;
 
 public record Session(InstantTimeRange period, List<PlayedTrack> playedTracks) {
+    /**
+     * A play finished more than this long after the previous one starts a new session.
+     */
+    public static final int MAX_GAP_MINUTES = 15;
+
     public Map<String, Object> toMap() {
         Map<String, Object> map = new HashMap<>();
         map.put("time_range", period.toMap());
@@ -4,5 +4,5 @@ public record SingleValueStats(TrackStats track, AlbumStats album, ArtistStats a
     record TrackStats(int totalTracksPlayed, int totalUniqueTracksPlayed, long totalListeningTime, int totalNewTracksPlayed, int totalLocalTracksPlayed, int totalExplicitTracksPlayed, long averageTrackDuration, float averageTrackPopularity) {}
     record AlbumStats(int totalUniqueAlbumsPlayed) {}
     record ArtistStats(int totalUniqueArtistsPlayed) {}
-    record MiscStats(int totalListeningSessions, double averageListeningSessionLength, float averagePercentageListeningToMusicDuringSession, int currentListeningStreak, float percentageTracksAddedToLikedAfterPlay, int totalNewTracksAddedToLiked) {}
+    record MiscStats(int totalListeningSessions, double averageListeningSessionLength, float averagePercentageListeningToMusicDuringSession, int currentListeningStreak, int longestListeningStreak, int activeDaysInPeriod, float percentageTracksAddedToLikedAfterPlay, int totalNewTracksAddedToLiked) {}
 }
\ No newline at end of file
@@ -4,16 +4,18 @@ import com.pugking4.spotifystat.common.dto.*;
 
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalTime;
-import java.time.ZoneId;
 import java.util.*;
 import java.util.stream.Collectors;
 
+/**
+ * Reference implementation of the {@code /stats/time} metrics over plain lists of plays, written for clarity rather
+ * than speed. Requests are served by {@link ColumnarStats} and {@link RollupStats}; the tests check both against this.
+ */
 public class StatsComputation {
     private final List<PlayedTrack> allTimePlayedTracks;
     private final List<PlayedTrack> periodPlayedTracks;
+    private final ListeningDays allTimeListeningDays;
 
-    private final List<PlayedTrack> excludedPlayedTrackData;
     private final List<Track> tracks;
     private final List<Album> albums;
     private final List<Artist> artists; //flat
@@ -21,27 +23,19 @@ public class StatsComputation {
     private final Set<Album> distinctAlbums;
     private final Set<Artist> distinctArtists; //flat
 
-    private final Map<Track, Integer> trackPlayCounts;
-    private final Map<Artist, Integer> artistPlayCounts;
     private final int totalPlays;
 
     private final List<Artist> filteredArtists;
     private final List<PlayedTrack> recentlyReleasedTracks;
 
     private final List<Session> sessions;
-
-    private final String EXCLUDE_ARTIST = "0LyfQWJT6nXafLPZqxe9Of"; // excludes "Various Artists" artist
-    private static final int MINIMUM_DAYS_SINCE_RELEASE_POPULARITY = 5;
-
-    private static final int MAX_LISTENING_SESSION_GAP_MINUTES = 15;
-    private static final float PERCENTAGE_OF_TRACK_NEEDED_TO_TRACK = 0.70F;
-    private static final int TIME_BLOCK_LENGTH_MINUTES = 15; // must be a factor of 60
+    private final Instant firstPlay;
+    private final Instant lastPlay;
 
     public StatsComputation(List<PlayedTrack> periodPlayedTracks, List<PlayedTrack> allTimePlayedTracks) {
         this.periodPlayedTracks = periodPlayedTracks;
         this.allTimePlayedTracks = allTimePlayedTracks;
-        this.excludedPlayedTrackData = new ArrayList<>(allTimePlayedTracks);
-        this.excludedPlayedTrackData.removeAll(periodPlayedTracks);
+        this.allTimeListeningDays = ListeningDays.of(allTimePlayedTracks);
         this.tracks = periodPlayedTracks.stream()
                 .map(PlayedTrack::track)
                 .toList();
@@ -56,69 +50,37 @@ public class StatsComputation {
         this.distinctAlbums = new HashSet<>(albums);
         this.distinctArtists = new HashSet<>(artists);
 
-        trackPlayCounts = tracks.stream()
-                .collect(Collectors.groupingBy(
-                        Track::id,
-                        Collectors.summingInt(_ -> 1)
-                ))
-                .entrySet().stream()
-                .collect(Collectors.toMap(
-                        e -> distinctTracks.stream()
-                                .filter(t -> t.id().equals(e.getKey()))
-                                .findFirst().orElseThrow(),
-                        Map.Entry::getValue
-                ));
-
-        artistPlayCounts = artists.stream()
-                .collect(Collectors.groupingBy(
-                        Artist::id,
-                        Collectors.summingInt(_ -> 1)
-                ))
-                .entrySet().stream()
-                .collect(Collectors.toMap(
-                        e -> distinctArtists.stream()
-                                .filter(t -> t.id().equals(e.getKey()))
-                                .findFirst().orElseThrow(),
-                        Map.Entry::getValue
-                ));
-
         totalPlays = periodPlayedTracks.size();
 
         filteredArtists = artists.stream()
-                .filter(a -> !a.id().equals(EXCLUDE_ARTIST))
+                .filter(a -> !a.id().equals(StatsUtility.EXCLUDE_ARTIST))
                 .toList();
 
         recentlyReleasedTracks = periodPlayedTracks.stream()
-                .filter(this::isTrackRecentlyReleased)
+                .filter(x -> StatsUtility.isTrackRecentlyReleased(x.track()))
                 .toList();
 
-        sessions = calculateSessions(0.05f);
+        List<List<PlayedTrack>> sessionPlays = splitIntoSessions(periodPlayedTracks);
+        sessions = StatsUtility.toSessions(sessionPlays, StatsUtility.SESSION_TIMING_FUZZ_PERCENTAGE);
+        // Sessions are in time order, so the period's first and last plays open and close them
+        firstPlay = sessionPlays.isEmpty() ? null : sessionPlays.getFirst().getFirst().timeFinished();
+        lastPlay = sessionPlays.isEmpty() ? null : sessionPlays.getLast().getLast().timeFinished();
     }
 
     public List<TrackPlayCount> topTracks(int limit) {
-        return trackPlayCounts.entrySet().stream()
-                .sorted(Map.Entry.<Track, Integer>comparingByValue().reversed())
-                .limit(limit)
-                .map(e -> new TrackPlayCount(e.getKey(), e.getValue()))
-                .toList();
+        PlayCounter<Track> trackCounter = new PlayCounter<>(Track::id);
+        tracks.forEach(trackCounter::add);
+        return StatsUtility.rankTracks(trackCounter.toMap(), limit);
     }
 
-    private boolean isTrackRecentlyReleased(PlayedTrack track) {
-        LocalDate release = track.track().album().releaseDate();
-        LocalDate threshold = LocalDate.now().minusDays(MINIMUM_DAYS_SINCE_RELEASE_POPULARITY);
-        return !release.isAfter(threshold);
-    }
+
 
     private SingleValueStats.TrackStats calculateTrackSingleValueStats() {
         int totalUniqueTracksPlayed = distinctTracks.size();
         long totalListeningTime = tracks.stream()
                 .mapToLong(Track::durationMs)
                 .sum();
-        Set<Track> newPlayedTracks = new HashSet<>(tracks);
-        newPlayedTracks.removeAll(excludedPlayedTrackData.stream()
-                .map(PlayedTrack::track)
-                .collect(Collectors.toSet()));
-        int totalNewTracksPlayed = newPlayedTracks.size();
+        int totalNewTracksPlayed = countTracksOnlyPlayedInPeriod();
         int totalLocalTracksPlayed = Math.toIntExact(tracks.stream()
                 .filter(Track::isLocal)
                 .count());
@@ -137,6 +99,27 @@ public class StatsComputation {
         return new SingleValueStats.TrackStats(totalPlays, totalUniqueTracksPlayed, totalListeningTime, totalNewTracksPlayed, totalLocalTracksPlayed, totalExplicitTracksPlayed, averageTrackDuration, averageTrackPopularity);
     }
 
+    /**
+     * Counts tracks whose every play falls inside the period, i.e. tracks never played outside it. The period is a
+     * subset of all-time, so a track qualifies exactly when its period play count equals its all-time play count.
+     */
+    private int countTracksOnlyPlayedInPeriod() {
+        Map<String, int[]> periodCounts = new HashMap<>();
+        for (Track track : tracks) {
+            periodCounts.computeIfAbsent(track.id(), _ -> new int[1])[0]++;
+        }
+        for (PlayedTrack playedTrack : allTimePlayedTracks) {
+            int[] count = periodCounts.get(playedTrack.track().id());
+            if (count != null) count[0]--;
+        }
+
+        int newTracks = 0;
+        for (int[] count : periodCounts.values()) {
+            if (count[0] >= 0) newTracks++;
+        }
+        return newTracks;
+    }
+
     private SingleValueStats.AlbumStats calculateAlbumSingleValueStats() {
         int totalUniqueAlbumsPlayed = distinctAlbums.size();
 
@@ -163,6 +146,8 @@ public class StatsComputation {
                 .average()
                 .orElse(-1);
         int listeningStreak = calculateListeningStreakInDays();
+        int longestListeningStreak = allTimeListeningDays.longestStreak();
+        int activeDaysInPeriod = calculateActiveDaysInPeriod();
 
         Set<Track> nonLikedSongs = periodPlayedTracks.stream()
                 .filter(x -> x.contextType().equals("playlist") || x.contextType().equals("album"))
@@ -190,57 +175,41 @@ public class StatsComputation {
                 .filter(allLikedSongs::contains)
                 .count());
 
-        return new SingleValueStats.MiscStats(totalListeningSessions, averageListeningSessionLength, averagePercentageListeningToMusicDuringSession, listeningStreak, percentageOfSongsAddedToLikedAfterPlay, totalNewTracksAddedToLiked);
+        return new SingleValueStats.MiscStats(totalListeningSessions, averageListeningSessionLength, averagePercentageListeningToMusicDuringSession, listeningStreak, longestListeningStreak, activeDaysInPeriod, percentageOfSongsAddedToLikedAfterPlay, totalNewTracksAddedToLiked);
     }
 
     public SingleValueStats calculateAllSingleValueStats() {
         return new SingleValueStats(calculateTrackSingleValueStats(), calculateAlbumSingleValueStats(), calculateArtistSingleValueStats(), calculateMiscSingleValueStats());
     }
 
-    private List<Session> calculateSessions(float timingFuzzPercentage) {
-        if (periodPlayedTracks.isEmpty()) return Collections.emptyList();
+    /**
+     * Splits plays into runs with no gap longer than {@link Session#MAX_GAP_MINUTES}, in time order.
+     */
+    private static List<List<PlayedTrack>> splitIntoSessions(List<PlayedTrack> playedTracks) {
+        if (playedTracks.isEmpty()) return Collections.emptyList();
 
-        List<PlayedTrack> playedTracksSorted = new ArrayList<>(periodPlayedTracks);
+        List<PlayedTrack> playedTracksSorted = new ArrayList<>(playedTracks);
         playedTracksSorted.sort(Comparator.comparing(PlayedTrack::timeFinished));
 
-        List<Session> sessions = new ArrayList<>();
+        List<List<PlayedTrack>> sessionPlays = new ArrayList<>();
         List<PlayedTrack> currentSessionPlayedTracks = new ArrayList<>();
         Instant previousSong = playedTracksSorted.getFirst().timeFinished();
 
         for (PlayedTrack playedTrack : playedTracksSorted) {
             Instant currentSong = playedTrack.timeFinished();
-            if (currentSong.isAfter(previousSong.plusSeconds(MAX_LISTENING_SESSION_GAP_MINUTES * 60))) {
-                if (!currentSessionPlayedTracks.isEmpty()) {
-                    PlayedTrack startingTrack = currentSessionPlayedTracks.getFirst();
-                    PlayedTrack endingTrack =  currentSessionPlayedTracks.getLast();
-                    sessions.add(new Session( new InstantTimeRange(
-                            startingTrack.timeFinished().minusMillis(
-                                        Math.round(startingTrack.track().durationMs() * (PERCENTAGE_OF_TRACK_NEEDED_TO_TRACK - timingFuzzPercentage))
-                                ),
-                            endingTrack.timeFinished().plusMillis(
-                                        Math.round(endingTrack.track().durationMs() * ((1 - PERCENTAGE_OF_TRACK_NEEDED_TO_TRACK) - timingFuzzPercentage))
-                                )
-                    ),
-                            new ArrayList<>(currentSessionPlayedTracks)));
-                    currentSessionPlayedTracks.clear();
-                }
+            if (currentSong.isAfter(previousSong.plusSeconds(Session.MAX_GAP_MINUTES * 60))) {
+                sessionPlays.add(currentSessionPlayedTracks);
+                currentSessionPlayedTracks = new ArrayList<>();
             }
             currentSessionPlayedTracks.add(playedTrack);
             previousSong = currentSong;
         }
+        sessionPlays.add(currentSessionPlayedTracks);
 
-        if (!currentSessionPlayedTracks.isEmpty()) {
-            sessions.add(new Session( new InstantTimeRange(
-                    currentSessionPlayedTracks.getFirst().timeFinished(),
-                    currentSessionPlayedTracks.getLast().timeFinished()
-            ),
+        return sessionPlays;
+    }
 
-                    currentSessionPlayedTracks
-            ));
-        }
 
-        return sessions;
-    }
 
     public Track findLongestTrack() {
         return distinctTracks.stream()
@@ -255,24 +224,19 @@ public class StatsComputation {
     }
 
     private int calculateListeningStreakInDays() {
-        ZoneId aus = ZoneId.of("Australia/Sydney");
-        LocalDate checkingDate = LocalDate.now(aus);
-
-        boolean dayFound;
-        int streak = 0;
-
-        do {
-            LocalDate dateForLambda = checkingDate;
-            dayFound = allTimePlayedTracks.stream()
-                    .anyMatch(x -> {
-                        LocalDate playedDate = x.timeFinished().atZone(aus).toLocalDate();
-                        return playedDate.isEqual(dateForLambda);
-                    });
-            checkingDate = checkingDate.minusDays(1);
-            if (dayFound) streak++;
-        } while (dayFound);
-
-        return streak;
+        return allTimeListeningDays.streakEndingAt(LocalDate.now(TimeUtility.LISTENING_ZONE));
+    }
+
+    /**
+     * Counts days with plays between the period's first and last play. The period is a contiguous slice of all-time,
+     * so every all-time active day in that range is also active in the period, and the count is a bitmap range query.
+     */
+    private int calculateActiveDaysInPeriod() {
+        if (firstPlay == null) return 0;
+        return allTimeListeningDays.activeDaysBetween(
+                LocalDate.ofInstant(firstPlay, TimeUtility.LISTENING_ZONE),
+                LocalDate.ofInstant(lastPlay, TimeUtility.LISTENING_ZONE)
+        );
     }
 
     public Session findLongestListeningSession() {
@@ -282,56 +246,40 @@ public class StatsComputation {
 
     }
 
-    private List<LocalTimeRange> generateTimeRanges() {
-        List<LocalTimeRange> timeBlocks = new ArrayList<>();
-        for (int i = 1; i < 1 + (60 / TIME_BLOCK_LENGTH_MINUTES) * 24; i++) {
-            LocalTime startTime = LocalTime.MIDNIGHT.plusMinutes(TIME_BLOCK_LENGTH_MINUTES * (i - 1));
-            LocalTime endTime = LocalTime.MIDNIGHT.plusMinutes(TIME_BLOCK_LENGTH_MINUTES * i);
-            timeBlocks.add(new LocalTimeRange(startTime, endTime));
-        }
-        return timeBlocks;
-    }
 
     public ListeningTimeHeatmap calculateListeningTimeHeatmap() {
-        List<LocalTimeRange> timeRanges = generateTimeRanges();
-        List<TimeBlock> heatmap = new ArrayList<>();
-        ZoneId aus = ZoneId.of("Australia/Sydney");
-
-        for (LocalTimeRange range : timeRanges) {
-            List<PlayedTrack> timeBlockPlayedTracks = periodPlayedTracks.stream()
-                    .filter(x -> range.isWithin(LocalTime.ofInstant(x.timeFinished(), aus)))
-                    .toList();
-            int playCount = timeBlockPlayedTracks.size();
-            long durationTotal = timeBlockPlayedTracks.stream().mapToLong(x -> x.track().durationMs()).sum();
-            TimeBlock tb = new TimeBlock(range, playCount, durationTotal);
-            heatmap.add(tb);
-        }
-
-        int maxPlayCount = Math.toIntExact(heatmap.stream()
-                .mapToLong(TimeBlock::playCount)
-                .max()
-                .orElse(-1));
+        return calculateListeningTimeHeatmap(StatsUtility.TIME_BLOCK_LENGTH_MINUTES);
+    }
 
-        long maxDurationTotal = heatmap.stream()
-                .mapToLong(TimeBlock::durationTotal)
-                .max()
-                .orElse(-1);
+    /**
+     * Buckets plays by time of day in a single pass: the block index comes straight from the epoch second shifted by
+     * the zone offset in effect at that instant.
+     *
+     * @param blockLengthMinutes length of each block, must be a factor of 60
+     */
+    public ListeningTimeHeatmap calculateListeningTimeHeatmap(int blockLengthMinutes) {
+        List<LocalTimeRange> timeRanges = StatsUtility.generateTimeRanges(blockLengthMinutes);
+        int blockLengthSeconds = blockLengthMinutes * 60;
+        int[] playCounts = new int[timeRanges.size()];
+        long[] durationTotals = new long[timeRanges.size()];
+
+        for (PlayedTrack playedTrack : periodPlayedTracks) {
+            int block = TimeUtility.secondOfListeningDay(playedTrack.timeFinished()) / blockLengthSeconds;
+            playCounts[block]++;
+            durationTotals[block] += playedTrack.track().durationMs();
+        }
 
-        return new ListeningTimeHeatmap(heatmap, 0, maxPlayCount, 0, maxDurationTotal);
+        return StatsUtility.toHeatmap(timeRanges, playCounts, durationTotals);
     }
 
+
     public List<ArtistPercentage> calculateArtistDistribution() {
-        return artistPlayCounts.entrySet().stream()
-                .map( apc -> {
-                    int playCount = apc.getValue();
-                    double percentage = (double) playCount /  totalPlays;
-                    return new ArtistPercentage(apc.getKey(), playCount, percentage);
-                })
-                .sorted(Comparator.comparingDouble(ArtistPercentage::percentageOfTracks))
-                .toList()
-                .reversed();
+        PlayCounter<Artist> artistCounter = new PlayCounter<>(Artist::id);
+        artists.forEach(artistCounter::add);
+        return StatsUtility.toArtistDistribution(artistCounter.toMap(), totalPlays);
     }
 
+
     public Artist findMostNicheArtist() {
         int minPop = filteredArtists.stream()
                 .mapToInt(Artist::popularity)
@@ -355,17 +303,4 @@ public class StatsComputation {
                 .max(Comparator.comparingInt(Artist::followers))
                 .orElse(null);
     }
-
-    public PlayedTrack findMostPopularTrack() {
-        return recentlyReleasedTracks.stream()
-                .max(Comparator.comparingInt(PlayedTrack::currentPopularity))
-                .orElse(null);
-    }
-
-    public PlayedTrack findMostNicheTrack() {
-        return recentlyReleasedTracks.stream()
-                .min(Comparator.comparingInt(PlayedTrack::currentPopularity))
-                .orElse(null);
-    }
 }
-
@@ -1,30 +1,66 @@
 package com.pugking4.spotifystat.api.stats;
 
+import com.pugking4.spotifystat.api.data.DailyRollupRepository;
+import com.pugking4.spotifystat.api.data.HistoryCursor;
+import com.pugking4.spotifystat.api.data.HistoryPage;
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.Pair;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.RollupSum;
 import com.pugking4.spotifystat.api.data.TrackRepository;
 import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import io.micrometer.core.instrument.Tags;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import org.jspecify.annotations.NonNull;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tools.jackson.databind.ObjectMapper;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 @RestController
 class StatsController {
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int STREAM_CHUNK_SIZE = 500;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_API_BUCKETS = 60;
+    private static final int MAX_ENDPOINT_WINDOW_MINUTES = 60;
 
     private final TrackRepository trackRepository;
+    private final PlayHistoryCache playHistoryCache;
+    private final DailyRollupRepository dailyRollupRepository;
+    private final TimeStatsCache timeStatsCache;
+    private final StatsSectionExecutor statsSectionExecutor;
     private final APIStatsService apiStatsService;
+    private final PipelineMetrics pipelineMetrics;
+    private final ObjectMapper objectMapper;
 
-    public StatsController(TrackRepository trackRepository, APIStatsService apiStatsService) {
+    public StatsController(TrackRepository trackRepository, PlayHistoryCache playHistoryCache, DailyRollupRepository dailyRollupRepository, TimeStatsCache timeStatsCache, StatsSectionExecutor statsSectionExecutor, APIStatsService apiStatsService, PipelineMetrics pipelineMetrics, ObjectMapper objectMapper) {
         this.trackRepository = trackRepository;
+        this.playHistoryCache = playHistoryCache;
+        this.dailyRollupRepository = dailyRollupRepository;
+        this.timeStatsCache = timeStatsCache;
+        this.statsSectionExecutor = statsSectionExecutor;
         this.apiStatsService = apiStatsService;
+        this.pipelineMetrics = pipelineMetrics;
+        this.objectMapper = objectMapper;
     }
 
     @RequestMapping("/")
@@ -99,49 +135,155 @@ class StatsController {
          */
     }
 
+    /**
+     * Serialization is timed by {@link TimedStatsResponseConverter}, under the request's tags left on the request.
+     */
     @GetMapping("/stats/time")
-    public ResponseEntity<TimePeriodStatsResponse> timeStats(@Valid TimeStatsRequest timeStatsRequest) {
-        if (timeStatsRequest.mode() == TimeMode.CALENDAR) {
-            return new ResponseEntity<>(getTimeStats(trackRepository.findByPeriod(timeStatsRequest.period(), timeStatsRequest.offset())), HttpStatus.OK);
-        } else {
-            return new ResponseEntity<>(getTimeStats(trackRepository.findByHours(timeStatsRequest.hours(), timeStatsRequest.offset())), HttpStatus.OK);
-        }
+    public ResponseEntity<TimePeriodStatsResponse> timeStats(@Valid TimeStatsRequest timeStatsRequest, HttpServletRequest servletRequest) {
+        Tags requestTags = PipelineMetrics.requestTags(timeStatsRequest);
+        servletRequest.setAttribute(PipelineMetrics.REQUEST_TAGS_ATTRIBUTE, requestTags);
+        HistorySnapshot history = playHistoryCache.snapshot();
+        TimePeriodStatsResponse cached = timeStatsCache.find(timeStatsRequest, history);
+        if (cached != null) return new ResponseEntity<>(cached, HttpStatus.OK);
+
+        StatsSectionExecutor.Batch batch = statsSectionExecutor.newBatch(requestTags);
+        TimePeriodStatsResponse response = computeTimeStats(timeStatsRequest, history, batch, requestTags);
+        // A response with timed out sections is served once but never cached
+        if (batch.isComplete()) timeStatsCache.put(timeStatsRequest, history, response);
+        return new ResponseEntity<>(response, HttpStatus.OK);
     }
 
-    private TimePeriodStatsResponse getTimeStats(List<PlayedTrack> playedTracks) {
-        List<PlayedTrack> allTimeData = trackRepository.findAll();
-        StatsComputation service = new StatsComputation(playedTracks, allTimeData);
+    private TimePeriodStatsResponse computeTimeStats(TimeStatsRequest timeStatsRequest, HistorySnapshot history, StatsSectionExecutor.Batch batch, Tags requestTags) {
+        Pair<LocalDateTime, LocalDateTime> trackingPeriod = timeStatsRequest.mode() == TimeMode.CALENDAR
+                ? TimeUtility.getTrackingPeriod(timeStatsRequest.period(), timeStatsRequest.offset())
+                : TimeUtility.getTrackingPeriod(timeStatsRequest.hours(), timeStatsRequest.offset());
+        return getTimeStats(timeStatsRequest, history, PlayHistoryCache.toInstantBounds(trackingPeriod), batch, requestTags);
+    }
+
+    /**
+     * Computes every section from {@code allTimeData}, the same snapshot the response is cached under.
+     */
+    private TimePeriodStatsResponse getTimeStats(TimeStatsRequest timeStatsRequest, HistorySnapshot allTimeData, Pair<Instant, Instant> bounds, StatsSectionExecutor.Batch batch, Tags requestTags) {
+        RollupStats rollupStats = pipelineMetrics.record("rollup-setup", requestTags, () -> findRollupStats(timeStatsRequest, allTimeData, bounds));
+        ColumnarStats columnarStats = new ColumnarStats(allTimeData, bounds.left(), bounds.right(), pipelineMetrics, requestTags);
+        int blockMinutes = timeStatsRequest.heatmapBlockMinutes();
+
+        // The sections only read the snapshot and the counts taken from it, so they can run side by side
+        var topTracks = batch.submit("top-tracks", () -> rollupStats != null ? rollupStats.topTracks(5) : columnarStats.topTracks(5));
+        var singleValueStats = batch.submit("single-value", columnarStats::calculateAllSingleValueStats);
+        var longestTrack = batch.submit("longest-track", columnarStats::findLongestTrack);
+        var shortestTrack = batch.submit("shortest-track", columnarStats::findShortestTrack);
+        var longestSession = batch.submit("longest-session", columnarStats::findLongestListeningSession);
+        var heatmap = batch.submit("heatmap", () -> rollupStats != null
+                ? rollupStats.calculateListeningTimeHeatmap(blockMinutes)
+                : columnarStats.calculateListeningTimeHeatmap(blockMinutes));
+        var artistDistribution = batch.submit("artist-distribution", () -> rollupStats != null
+                ? rollupStats.calculateArtistDistribution()
+                : columnarStats.calculateArtistDistribution());
+        var mostNicheArtist = batch.submit("most-niche-artist", columnarStats::findMostNicheArtist);
+        var mostPopularArtist = batch.submit("most-popular-artist", columnarStats::findMostPopularArtist);
 
         return new TimePeriodStatsResponse(
-                service.topTracks(5),
-                service.calculateAllSingleValueStats(),
-                service.findLongestTrack(),
-                service.findShortestTrack(),
-                service.findLongestListeningSession(),
-                service.calculateListeningTimeHeatmap(),
-                service.calculateArtistDistribution(),
-                service.findMostNicheArtist(),
-                service.findMostPopularArtist()
+                topTracks.await(),
+                singleValueStats.await(),
+                longestTrack.await(),
+                shortestTrack.await(),
+                longestSession.await(),
+                heatmap.await(),
+                artistDistribution.await(),
+                mostNicheArtist.await(),
+                mostPopularArtist.await()
         );
     }
 
+    /**
+     * Long calendar periods sum their count-based sections from the daily rollups, plus the plays the rollup has not
+     * reached yet, rather than counting every play. Returns null when the request should be computed from raw plays.
+     */
+    private RollupStats findRollupStats(TimeStatsRequest timeStatsRequest, HistorySnapshot allTimeData, Pair<Instant, Instant> bounds) {
+        if (timeStatsRequest.mode() != TimeMode.CALENDAR) return null;
+        if (timeStatsRequest.period() != Calendar.MONTH && timeStatsRequest.period() != Calendar.YEAR) return null;
+
+        Pair<LocalDateTime, LocalDateTime> trackingPeriod = TimeUtility.getTrackingPeriod(timeStatsRequest.period(), timeStatsRequest.offset());
+        RollupSum sum = dailyRollupRepository.sumBetween(trackingPeriod.right().toLocalDate(), trackingPeriod.left().toLocalDate());
+        return RollupStats.of(sum, allTimeData, bounds.left(), bounds.right());
+    }
+
     @GetMapping("/stats/recently-played")
     public ResponseEntity<List<PlayedTrack>> recentlyPlayed(@RequestParam @Min(1) @NonNull Integer limit) {
         return new ResponseEntity<>(trackRepository.getRecentlyPlayedTracks(limit), HttpStatus.OK);
     }
 
+    /**
+     * Pages through the play history, newest first. Pass the previous page's {@code nextCursor} as {@code before}.
+     */
+    @GetMapping("/stats/history")
+    public ResponseEntity<HistoryPage> history(@RequestParam(required = false) String before,
+                                               @RequestParam(defaultValue = "50") @Min(1) @Max(MAX_PAGE_SIZE) Integer limit) {
+        HistoryCursor cursor;
+        try {
+            cursor = before == null ? null : HistoryCursor.parse(before);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        return new ResponseEntity<>(trackRepository.findPage(cursor, limit), HttpStatus.OK);
+    }
+
+    /**
+     * Writes recently played tracks as newline-delimited JSON while they are read from the database. Without a limit
+     * the whole history is exported.
+     */
+    @GetMapping(value = "/stats/recently-played/stream", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> recentlyPlayedStream(@RequestParam(required = false) @Min(1) Integer limit) {
+        StreamingResponseBody body = out -> trackRepository.streamRecentlyPlayed(limit, STREAM_CHUNK_SIZE, chunk -> writeNdjson(out, chunk));
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    private void writeNdjson(OutputStream out, List<PlayedTrack> playedTracks) {
+        try {
+            for (PlayedTrack playedTrack : playedTracks) {
+                out.write(objectMapper.writeValueAsBytes(playedTrack));
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param buckets how many complete buckets to return for each rolling window, ahead of the one in progress
+     */
     @GetMapping("/stats/api")
-    public ApiStatsResponse api() {
+    public ApiStatsResponse api(@RequestParam(defaultValue = "1") @Min(1) @Max(MAX_API_BUCKETS) int buckets) {
+        // The Prometheus queries are independent, so they are all sent before waiting on any of them
+        var rollingRequests1m = apiStatsService.getRequestsPerMinutesAsync(1, buckets);
+        var rollingRequests5m = apiStatsService.getRequestsPerMinutesAsync(5, buckets);
+        var latency1m = apiStatsService.getLatencyPercentilesMsAsync("", 1, buckets);
+        var latency5m = apiStatsService.getLatencyPercentilesMsAsync("", 5, buckets);
+        var uptimePercentage = apiStatsService.getUptimePercentageAsync();
+
         return new ApiStatsResponse(
                 apiStatsService.getUptimeSeconds(),
                 apiStatsService.getTotalRequests(),
                 apiStatsService.getVersion(),
                 apiStatsService.getHostName(),
-                apiStatsService.getRequestsPerMinutes(1),
-                apiStatsService.getRequestsPerMinutes(5),
-                apiStatsService.getLatencyPercentilesMs("", 1),
-                apiStatsService.getLatencyPercentilesMs("", 5),
-                apiStatsService.getUptimePercentage()
+                PrometheusClient.await(rollingRequests1m),
+                PrometheusClient.await(rollingRequests5m),
+                PrometheusClient.await(latency1m),
+                PrometheusClient.await(latency5m),
+                PrometheusClient.await(uptimePercentage),
+                pipelineMetrics.summary()
         );
     }
+
+    /**
+     * Request rate and p50/p95/p99 latency for each route over the last complete window.
+     *
+     * @param window window length in minutes
+     */
+    @GetMapping("/stats/api/endpoints")
+    public EndpointStatsResponse apiEndpoints(@RequestParam(defaultValue = "5") @Min(1) @Max(MAX_ENDPOINT_WINDOW_MINUTES) int window) {
+        return PrometheusClient.await(apiStatsService.getEndpointStatsAsync(window));
+    }
 }
@@ -0,0 +1,118 @@
+package com.pugking4.spotifystat.api.stats;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the independent sections of a stats response concurrently on virtual threads.
+ * <p>
+ * Each section gets {@code stats.section-timeout-ms} from its own submission, so a section submitted late in a batch
+ * still has the full timeout. A section that has not finished by then is cancelled and reads as null, and so does a
+ * section that throws, so one slow or broken metric degrades its own field instead of failing the
+ * whole response. Cancelling only interrupts the section's thread, so long loops call {@link #checkCancelled()} to
+ * stop early. Section run times are recorded as {@code stats.section} timers, timeouts as
+ * {@code stats.section.timeouts} and failures as {@code stats.section.failures}, all tagged by section and by the
+ * batch's request tags.
+ */
+@Component
+public class StatsSectionExecutor {
+    private static final Logger log = LoggerFactory.getLogger(StatsSectionExecutor.class);
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final MeterRegistry registry;
+    private final long timeoutMs;
+
+    public StatsSectionExecutor(MeterRegistry registry, @Value("${stats.section-timeout-ms:2000}") long timeoutMs) {
+        this.registry = registry;
+        this.timeoutMs = timeoutMs;
+    }
+
+    public Batch newBatch() {
+        return newBatch(PipelineMetrics.NO_REQUEST_TAGS);
+    }
+
+    /**
+     * @param requestTags tags describing the request, from {@link PipelineMetrics#requestTags}
+     */
+    public Batch newBatch(Tags requestTags) {
+        return new Batch(requestTags);
+    }
+
+    /**
+     * Throws if the section running on this thread has been cancelled.
+     */
+    public static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) throw new CancellationException("Stats section cancelled");
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public final class Batch {
+        private final Tags requestTags;
+        private volatile boolean complete = true;
+
+        private Batch(Tags requestTags) {
+            this.requestTags = requestTags;
+        }
+
+        public <T> Section<T> submit(String name, Callable<T> task) {
+            Timer timer = Timer.builder("stats.section").tag("section", name).tags(requestTags).register(registry);
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            return new Section<>(this, name, deadlineNanos, executor.submit(() -> timer.recordCallable(task)));
+        }
+
+        /**
+         * Returns false if any section of this batch timed out or failed.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    public final class Section<T> {
+        private final Batch batch;
+        private final String name;
+        private final long deadlineNanos;
+        private final Future<T> future;
+
+        private Section(Batch batch, String name, long deadlineNanos, Future<T> future) {
+            this.batch = batch;
+            this.name = name;
+            this.deadlineNanos = deadlineNanos;
+            this.future = future;
+        }
+
+        public T await() {
+            try {
+                return future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                Counter.builder("stats.section.timeouts").tag("section", name).tags(batch.requestTags).register(registry).increment();
+                batch.complete = false;
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                batch.complete = false;
+                return null;
+            } catch (ExecutionException e) {
+                log.warn("Stats section {} failed", name, e.getCause());
+                Counter.builder("stats.section.failures").tag("section", name).tags(batch.requestTags).register(registry).increment();
+                batch.complete = false;
+                return null;
+            }
+        }
+    }
+}
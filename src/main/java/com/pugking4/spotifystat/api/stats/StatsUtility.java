@@ -0,0 +1,131 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.common.dto.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rules and response shapes shared by the {@code /stats/time} implementations, so {@link ColumnarStats},
+ * {@link RollupStats} and the {@link StatsComputation} reference rank, bucket and cut sessions the same way.
+ */
+public class StatsUtility {
+    static final String EXCLUDE_ARTIST = "0LyfQWJT6nXafLPZqxe9Of"; // excludes "Various Artists" artist
+    private static final int MINIMUM_DAYS_SINCE_RELEASE_POPULARITY = 5;
+
+    private static final float PERCENTAGE_OF_TRACK_NEEDED_TO_TRACK = 0.70F;
+    static final float SESSION_TIMING_FUZZ_PERCENTAGE = 0.05F;
+    static final int TIME_BLOCK_LENGTH_MINUTES = 15; // default, must be a factor of 60
+
+    static List<TrackPlayCount> rankTracks(Map<Track, Integer> trackPlayCounts, int limit) {
+        return trackPlayCounts.entrySet().stream()
+                .sorted(Map.Entry.<Track, Integer>comparingByValue().reversed())
+                .limit(limit)
+                .map(e -> new TrackPlayCount(e.getKey(), e.getValue()))
+                .toList();
+    }
+
+    static boolean isTrackRecentlyReleased(Track track) {
+        LocalDate release = track.album().releaseDate();
+        LocalDate threshold = LocalDate.now().minusDays(MINIMUM_DAYS_SINCE_RELEASE_POPULARITY);
+        return !release.isAfter(threshold);
+    }
+
+    /**
+     * Splits the plays finished strictly between {@code from} and {@code to} into runs with no gap longer than
+     * {@link Session#MAX_GAP_MINUTES}.
+     * The gap between two plays does not depend on the window, so the window's sessions are the history's sessions
+     * clipped to it, and each one is a view over the snapshot.
+     */
+    static List<List<PlayedTrack>> sessionsBetween(HistorySnapshot history, Instant from, Instant to) {
+        int start = history.firstIndexAfter(from);
+        int end = Math.max(start, history.firstIndexAtOrAfter(to));
+
+        List<List<PlayedTrack>> sessionPlays = new ArrayList<>();
+        int session = history.sessionOf(start);
+        for (int runStart = start; runStart < end; session++) {
+            int runEnd = Math.min(end, session + 1 < history.sessionCount() ? history.sessionStart(session + 1) : history.size());
+            sessionPlays.add(history.subList(runStart, runEnd));
+            runStart = runEnd;
+        }
+        return sessionPlays;
+    }
+
+    static List<Session> toSessions(List<List<PlayedTrack>> sessionPlays, float timingFuzzPercentage) {
+        List<Session> sessions = new ArrayList<>(sessionPlays.size());
+        for (int i = 0; i < sessionPlays.size() - 1; i++) {
+            List<PlayedTrack> playedTracks = sessionPlays.get(i);
+            PlayedTrack startingTrack = playedTracks.getFirst();
+            PlayedTrack endingTrack =  playedTracks.getLast();
+            sessions.add(new Session( new InstantTimeRange(
+                    startingTrack.timeFinished().minusMillis(
+                                Math.round(startingTrack.track().durationMs() * (PERCENTAGE_OF_TRACK_NEEDED_TO_TRACK - timingFuzzPercentage))
+                        ),
+                    endingTrack.timeFinished().plusMillis(
+                                Math.round(endingTrack.track().durationMs() * ((1 - PERCENTAGE_OF_TRACK_NEEDED_TO_TRACK) - timingFuzzPercentage))
+                        )
+            ),
+                    playedTracks));
+        }
+
+        if (!sessionPlays.isEmpty()) {
+            List<PlayedTrack> playedTracks = sessionPlays.getLast();
+            sessions.add(new Session( new InstantTimeRange(
+                    playedTracks.getFirst().timeFinished(),
+                    playedTracks.getLast().timeFinished()
+            ),
+
+                    playedTracks
+            ));
+        }
+
+        return sessions;
+    }
+
+    static List<LocalTimeRange> generateTimeRanges(int blockLengthMinutes) {
+        List<LocalTimeRange> timeBlocks = new ArrayList<>();
+        for (int i = 1; i < 1 + (60 / blockLengthMinutes) * 24; i++) {
+            LocalTime startTime = LocalTime.MIDNIGHT.plusMinutes(blockLengthMinutes * (i - 1));
+            LocalTime endTime = LocalTime.MIDNIGHT.plusMinutes(blockLengthMinutes * i);
+            timeBlocks.add(new LocalTimeRange(startTime, endTime));
+        }
+        return timeBlocks;
+    }
+
+    static ListeningTimeHeatmap toHeatmap(List<LocalTimeRange> timeRanges, int[] playCounts, long[] durationTotals) {
+        List<TimeBlock> heatmap = new ArrayList<>(timeRanges.size());
+        for (int i = 0; i < timeRanges.size(); i++) {
+            heatmap.add(new TimeBlock(timeRanges.get(i), playCounts[i], durationTotals[i]));
+        }
+
+        int maxPlayCount = Math.toIntExact(heatmap.stream()
+                .mapToLong(TimeBlock::playCount)
+                .max()
+                .orElse(-1));
+
+        long maxDurationTotal = heatmap.stream()
+                .mapToLong(TimeBlock::durationTotal)
+                .max()
+                .orElse(-1);
+
+        return new ListeningTimeHeatmap(heatmap, 0, maxPlayCount, 0, maxDurationTotal);
+    }
+
+    static List<ArtistPercentage> toArtistDistribution(Map<Artist, Integer> artistPlayCounts, int totalPlays) {
+        return artistPlayCounts.entrySet().stream()
+                .map( apc -> {
+                    int playCount = apc.getValue();
+                    double percentage = (double) playCount /  totalPlays;
+                    return new ArtistPercentage(apc.getKey(), playCount, percentage);
+                })
+                .sorted(Comparator.comparingDouble(ArtistPercentage::percentageOfTracks))
+                .toList()
+                .reversed();
+    }
+}
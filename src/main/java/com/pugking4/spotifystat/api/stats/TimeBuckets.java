@@ -17,5 +17,12 @@ public final class TimeBuckets {
     public static long clampRange(long seconds) {
         return Math.max(seconds, 2 * SCRAPE_SEC);
     }
+
+    /**
+     * Whether samples up to {@code end} have had time to be scraped, so a query over a range ending there is final.
+     */
+    public static boolean isSettled(Instant end, Instant now) {
+        return !now.isBefore(end.plusSeconds(2 * SCRAPE_SEC));
+    }
 }
 
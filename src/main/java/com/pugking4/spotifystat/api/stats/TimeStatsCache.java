@@ -0,0 +1,118 @@
+package com.pugking4.spotifystat.api.stats;
+
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.Pair;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result cache for {@code /stats/time}.
+ * <p>
+ * Calendar periods end at the start of the current day/week/month/year, so their plays only change when a play from
+ * an earlier day arrives late. The key includes the resolved period, so "offset 0" moves on when the calendar does.
+ * A calendar entry is kept until evicted: while the history holds no new plays and the listening day is the same it
+ * is served as stored; once either moves on, a late play finished before the period's end drops it, and otherwise
+ * only the fields that also depend on plays outside the period, the new track count and the listening streaks, are
+ * recomputed. Rolling windows are still open: they are kept for a short TTL and dropped as soon as new plays arrive.
+ */
+@Component
+public class TimeStatsCache {
+    private record Key(TimeStatsRequest request, Pair<LocalDateTime, LocalDateTime> period) {}
+
+    private record CachedResponse(TimePeriodStatsResponse response, long lastId, LocalDate listeningDay, long expiresAtMs) {}
+
+    private final long openTtlMs;
+    private final Map<Key, CachedResponse> entries;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public TimeStatsCache(MeterRegistry registry,
+                          @Value("${stats.cache.max-entries:256}") int maxEntries,
+                          @Value("${stats.cache.open-ttl-seconds:30}") long openTtlSeconds) {
+        this.openTtlMs = openTtlSeconds * 1000;
+        this.hits = Counter.builder("stats.time.cache.requests").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("stats.time.cache.requests").tag("result", "miss").register(registry);
+        this.evictions = Counter.builder("stats.time.cache.evictions").register(registry);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResponse> eldest) {
+                boolean evict = size() > maxEntries;
+                if (evict) evictions.increment();
+                return evict;
+            }
+        });
+        registry.gaugeMapSize("stats.time.cache.size", Tags.empty(), entries);
+    }
+
+    /**
+     * Returns the cached response for the request, or null (counted as a miss) if there is none still valid for the
+     * given history.
+     */
+    public TimePeriodStatsResponse find(TimeStatsRequest request, HistorySnapshot history) {
+        boolean closed = isClosed(request);
+        Key key = keyFor(request, closed);
+        CachedResponse cached = entries.get(key);
+        TimePeriodStatsResponse response = cached == null ? null
+                : closed ? revalidateClosed(key, cached, history)
+                : revalidateOpen(cached, history);
+        if (response != null) {
+            hits.increment();
+            return response;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches a response computed from {@code history}. Callers should only store complete responses.
+     */
+    public void put(TimeStatsRequest request, HistorySnapshot history, TimePeriodStatsResponse response) {
+        boolean closed = isClosed(request);
+        long expiresAtMs = closed ? Long.MAX_VALUE : System.currentTimeMillis() + openTtlMs;
+        entries.put(keyFor(request, closed), new CachedResponse(response, history.lastId(), LocalDate.now(TimeUtility.LISTENING_ZONE), expiresAtMs));
+    }
+
+    private static boolean isClosed(TimeStatsRequest request) {
+        return request.mode() == TimeMode.CALENDAR;
+    }
+
+    private static Key keyFor(TimeStatsRequest request, boolean closed) {
+        return new Key(request, closed ? TimeUtility.getTrackingPeriod(request.period(), request.offset()) : null);
+    }
+
+    private TimePeriodStatsResponse revalidateOpen(CachedResponse cached, HistorySnapshot history) {
+        boolean valid = System.currentTimeMillis() < cached.expiresAtMs()
+                && cached.lastId() == history.lastId()
+                && cached.listeningDay().equals(LocalDate.now(TimeUtility.LISTENING_ZONE));
+        return valid ? cached.response() : null;
+    }
+
+    private TimePeriodStatsResponse revalidateClosed(Key key, CachedResponse cached, HistorySnapshot history) {
+        LocalDate listeningDay = LocalDate.now(TimeUtility.LISTENING_ZONE);
+        if (cached.lastId() == history.lastId() && cached.listeningDay().equals(listeningDay)) return cached.response();
+        // A request still holding an older snapshot computes from it rather than rolling the entry back
+        if (history.lastId() < cached.lastId()) return null;
+
+        Pair<Instant, Instant> bounds = PlayHistoryCache.toInstantBounds(key.period());
+        Instant backfill = history.earliestBackfillSince(cached.lastId());
+        if (backfill != null && backfill.isBefore(bounds.right())) return null;
+
+        TimePeriodStatsResponse response = ColumnarStats.withCurrentAllTimeFields(cached.response(), history, bounds.left(), bounds.right());
+        entries.put(key, new CachedResponse(response, history.lastId(), listeningDay, cached.expiresAtMs()));
+        return response;
+    }
+}
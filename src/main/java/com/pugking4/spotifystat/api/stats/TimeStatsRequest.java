@@ -13,8 +13,19 @@ public record TimeStatsRequest(
         Integer offset,
 
         @Min(1)
-        Integer hours
+        Integer hours,
+
+        Integer blockMinutes
 ) {
+    public int heatmapBlockMinutes() {
+        return blockMinutes == null ? StatsUtility.TIME_BLOCK_LENGTH_MINUTES : blockMinutes;
+    }
+
+    @AssertTrue(message = "blockMinutes must be a factor of 60")
+    public boolean isBlockMinutesValid() {
+        return blockMinutes == null || (blockMinutes > 0 && 60 % blockMinutes == 0);
+    }
+
     @AssertTrue(message = "offset must be smaller than hours when hours is provided")
     public boolean isOffsetValid() {
         return hours == null || offset < hours;
@@ -3,10 +3,25 @@ package com.pugking4.spotifystat.api.stats;
 import com.pugking4.spotifystat.api.data.Pair;
 
 import java.time.DayOfWeek;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
 
 public class TimeUtility {
+    public static final ZoneId LISTENING_ZONE = ZoneId.of("Australia/Sydney");
+    private static final ZoneRules LISTENING_ZONE_RULES = LISTENING_ZONE.getRules();
+
+    /**
+     * Returns the second of the day in {@link #LISTENING_ZONE} at which {@code instant} falls, without building a
+     * zoned date-time.
+     */
+    public static int secondOfListeningDay(Instant instant) {
+        long localSeconds = instant.getEpochSecond() + LISTENING_ZONE_RULES.getOffset(instant).getTotalSeconds();
+        return (int) Math.floorMod(localSeconds, 86_400L);
+    }
+
     public static Pair<LocalDateTime, LocalDateTime> getTrackingPeriod(Calendar mode, int offset) {
         return switch(mode) {
             case DAY -> new Pair<>(LocalDate.now().minusDays(offset).atStartOfDay(), LocalDate.now().minusDays(offset + 1).atStartOfDay());
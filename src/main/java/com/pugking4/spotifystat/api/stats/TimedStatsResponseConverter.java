@@ -0,0 +1,71 @@
+package com.pugking4.spotifystat.api.stats;
+
+import io.micrometer.core.instrument.Tags;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link TimePeriodStatsResponse} bodies as JSON, timing the write as the {@code serialization} stage of
+ * {@code stats.pipeline} under the tags {@link StatsController} left on the request. Spring Boot registers converter
+ * beans ahead of its own, so this one takes those bodies and every other type goes to the default JSON converter.
+ */
+@Component
+class TimedStatsResponseConverter implements HttpMessageConverter<TimePeriodStatsResponse> {
+    private final ObjectMapper objectMapper;
+    private final PipelineMetrics pipelineMetrics;
+
+    TimedStatsResponseConverter(ObjectMapper objectMapper, PipelineMetrics pipelineMetrics) {
+        this.objectMapper = objectMapper;
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+        return TimePeriodStatsResponse.class.isAssignableFrom(clazz)
+                && (mediaType == null || mediaType.isCompatibleWith(MediaType.APPLICATION_JSON));
+    }
+
+    @Override
+    public List<MediaType> getSupportedMediaTypes() {
+        return List.of(MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    public TimePeriodStatsResponse read(Class<? extends TimePeriodStatsResponse> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Stats responses are only written", inputMessage);
+    }
+
+    @Override
+    public void write(TimePeriodStatsResponse response, MediaType contentType, HttpOutputMessage outputMessage) throws IOException {
+        outputMessage.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        long startNanos = System.nanoTime();
+        try {
+            objectMapper.writeValue(StreamUtils.nonClosing(outputMessage.getBody()), response);
+        } finally {
+            pipelineMetrics.timer("serialization", requestTags()).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static Tags requestTags() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        Object tags = attributes == null ? null : attributes.getAttribute(PipelineMetrics.REQUEST_TAGS_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        return tags instanceof Tags requestTags ? requestTags : PipelineMetrics.NO_REQUEST_TAGS;
+    }
+}
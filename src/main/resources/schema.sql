@@ -5,10 +5,17 @@ DROP TABLE IF EXISTS tracks CASCADE;
 DROP TABLE IF EXISTS albums CASCADE;
 DROP TABLE IF EXISTS artists CASCADE;
 DROP TABLE IF EXISTS devices CASCADE;
+DROP TABLE IF EXISTS daily_play_rollup CASCADE;
+DROP TABLE IF EXISTS rollup_state CASCADE;
 
 CREATE TABLE artists (
                          id VARCHAR PRIMARY KEY,
-                         name VARCHAR
+                         name VARCHAR,
+                         followers INTEGER,
+                         genres VARCHAR,
+                         image VARCHAR,
+                         popularity INTEGER,
+                         updated_at TIMESTAMP
 );
 
 CREATE TABLE albums (
@@ -54,4 +61,37 @@ CREATE TABLE track_history (
                                device_name VARCHAR REFERENCES devices(name),
                                current_popularity INTEGER,
                                time_finished TIMESTAMP
-);
\ No newline at end of file
+);
+
+CREATE TABLE daily_play_rollup (
+                               dimension VARCHAR,
+                               day DATE,
+                               key VARCHAR,
+                               play_count INTEGER,
+                               listening_ms BIGINT,
+                               PRIMARY KEY (dimension, day, key)
+);
+
+-- last_id is the highest track_history id folded into the rollup, high_water the latest time_finished among them
+CREATE TABLE rollup_state (
+                              name VARCHAR PRIMARY KEY,
+                              last_id BIGINT NOT NULL DEFAULT 0,
+                              high_water TIMESTAMP
+);
+
+-- Period scans, newest-first listing and keyset paging all seek on time_finished
+CREATE INDEX track_history_time_finished_id_idx ON track_history (time_finished, id);
+-- Rows arrive in time order, so a BRIN index stays tiny and serves long range scans such as whole years
+CREATE INDEX track_history_time_finished_brin ON track_history USING brin (time_finished);
+CREATE INDEX track_history_track_id_idx ON track_history (track_id);
+CREATE INDEX track_history_album_id_idx ON track_history (album_id);
+CREATE INDEX track_history_device_name_idx ON track_history (device_name);
+
+-- Artist lookups by track or album use the primary keys, these cover lookups by artist
+CREATE INDEX track_artist_artist_id_idx ON track_artist (artist_id);
+CREATE INDEX album_artist_artist_id_idx ON album_artist (artist_id);
+CREATE INDEX tracks_album_id_idx ON tracks (album_id);
+
+CREATE INDEX daily_play_rollup_day_idx ON daily_play_rollup (day);
+
+INSERT INTO rollup_state (name, last_id, high_water) VALUES ('daily_play_rollup', 0, NULL);
@@ -0,0 +1,110 @@
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.api.stats.*;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarStatsTests {
+    private final Instant baseline = Instant.parse("2025-06-01T00:00:00Z");
+
+    private HistorySnapshot createSnapshot() {
+        String[][] trackAlbums = {{"track1", "album1"}, {"track2", "album1"}, {"track3", "album2"}, {"track4", "album2"}};
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String[] trackAlbum = trackAlbums[(i * i + i / 7) % trackAlbums.length];
+            // Gaps vary from a few minutes to a few hours, so sessions run to several plays
+            Map<String, Object> row = FakeJdbc.historyRow(trackAlbum[0], trackAlbum[1], i % 2 == 0 ? "Device One" : "Device Two", baseline.plusSeconds(i * 1013L - (i % 9) * 450L));
+            row.put("context_type", i % 5 == 0 ? "playlist" : i % 11 == 0 ? "album" : "collection");
+            row.put("current_popularity", i % 97);
+            rows.add(row);
+        }
+
+        FakeJdbc jdbc = new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .artist("artist2", "Artist Two", 200, 65)
+                .artist("artist3", "Artist Three", 300, 60)
+                .albumArtists("album1", "artist1", "artist2")
+                .albumArtists("album2", "artist3")
+                .trackArtists("track1", "artist1", "artist2")
+                .trackArtists("track2", "artist2")
+                .trackArtists("track3", "artist3")
+                .trackArtists("track4", "artist1", "artist3")
+                .history(rows.stream().sorted(Comparator.comparing(row -> (Timestamp) row.get("time_finished"))).toList());
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        return cache.snapshot();
+    }
+
+    private <T> Map<String, Integer> countsById(List<T> items, Function<T, String> id, Function<T, Integer> count) {
+        return items.stream().collect(Collectors.toMap(id, count));
+    }
+
+    @Test
+    public void columnar_metrics_match_stats_computation() {
+        HistorySnapshot snapshot = createSnapshot();
+        Instant from = baseline.plusSeconds(100_000);
+        Instant to = baseline.plusSeconds(1_500_000);
+
+        List<PlayedTrack> period = snapshot.between(from, to);
+        StatsComputation statsComputation = new StatsComputation(period, snapshot);
+        ColumnarStats columnarStats = new ColumnarStats(snapshot, from, to);
+
+        assertEquals(period.size(), columnarStats.totalPlays());
+        assertEquals(period.stream().mapToLong(x -> x.track().durationMs()).sum(), columnarStats.totalListeningTime());
+        assertEquals(
+                countsById(statsComputation.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount),
+                countsById(columnarStats.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount)
+        );
+        assertEquals(
+                countsById(statsComputation.calculateArtistDistribution(), x -> x.artist().id(), ArtistPercentage::playCount),
+                countsById(columnarStats.calculateArtistDistribution(), x -> x.artist().id(), ArtistPercentage::playCount)
+        );
+        assertEquals(statsComputation.calculateListeningTimeHeatmap(30), columnarStats.calculateListeningTimeHeatmap(30));
+    }
+
+    @Test
+    public void single_value_and_extreme_metrics_match_stats_computation() {
+        HistorySnapshot snapshot = createSnapshot();
+        Instant end = snapshot.highWaterMark();
+        Instant[][] windows = {
+                {baseline.plusSeconds(100_000), baseline.plusSeconds(1_500_000)},
+                {baseline.minusSeconds(1), end.plusSeconds(1)},
+                {baseline.plusSeconds(1_000_000), end.plusSeconds(1)},
+                {baseline.plusSeconds(30_000), baseline.plusSeconds(40_000)}
+        };
+
+        for (Instant[] window : windows) {
+            StatsComputation statsComputation = new StatsComputation(snapshot.between(window[0], window[1]), snapshot);
+            ColumnarStats columnarStats = new ColumnarStats(snapshot, window[0], window[1]);
+
+            assertEquals(statsComputation.calculateAllSingleValueStats(), columnarStats.calculateAllSingleValueStats());
+            assertEquals(statsComputation.findLongestListeningSession(), columnarStats.findLongestListeningSession());
+            assertEquals(statsComputation.findLongestTrack().durationMs(), columnarStats.findLongestTrack().durationMs());
+            assertEquals(statsComputation.findShortestTrack().durationMs(), columnarStats.findShortestTrack().durationMs());
+            assertEquals(statsComputation.findMostNicheArtist(), columnarStats.findMostNicheArtist());
+            assertEquals(statsComputation.findMostPopularArtist(), columnarStats.findMostPopularArtist());
+        }
+    }
+
+    @Test
+    public void empty_window_has_no_plays() {
+        HistorySnapshot snapshot = createSnapshot();
+        ColumnarStats columnarStats = new ColumnarStats(snapshot, baseline.minusSeconds(100), baseline.minusSeconds(10));
+
+        assertEquals(0, columnarStats.totalPlays());
+        assertTrue(columnarStats.topTracks(5).isEmpty());
+        assertTrue(columnarStats.calculateArtistDistribution().isEmpty());
+    }
+}
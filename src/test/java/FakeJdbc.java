@@ -0,0 +1,272 @@
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-memory stand-in for the JDBC objects the repository layer touches. History queries answer with the
+ * configured rows, filtered by the last id or keyset cursor when the query has one, artist lookups answer
+ * from the configured link tables, and the fake counts prepared statements, open connections and the peak number of
+ * history queries running at the same time. Every executed query is recorded with its bound parameters. The database
+ * can be taken down and brought back with {@link #available(boolean)}.
+ */
+public class FakeJdbc {
+    public record Query(String sql, Map<Integer, Object> parameters) {}
+
+    private final Map<String, Map<String, Object>> artists = new HashMap<>();
+    private final Map<String, List<String>> trackArtists = new HashMap<>();
+    private final Map<String, List<String>> albumArtists = new HashMap<>();
+    private final AtomicInteger preparedStatements = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger openedConnections = new AtomicInteger();
+    private final AtomicInteger activeQueries = new AtomicInteger();
+    private final AtomicInteger maxActiveQueries = new AtomicInteger();
+    private final List<Query> queries = Collections.synchronizedList(new ArrayList<>());
+    private List<Map<String, Object>> history = List.of();
+    private long queryLatencyMs;
+    private volatile boolean available = true;
+
+    public FakeJdbc artist(String id, String name, int followers, int popularity) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", id);
+        row.put("name", name);
+        row.put("followers", followers);
+        row.put("genres", "rock,pop");
+        row.put("image", "https://" + id);
+        row.put("popularity", popularity);
+        row.put("updated_at", Timestamp.from(Instant.EPOCH));
+        artists.put(id, row);
+        return this;
+    }
+
+    public FakeJdbc trackArtists(String trackId, String... artistIds) {
+        trackArtists.put(trackId, List.of(artistIds));
+        return this;
+    }
+
+    public FakeJdbc albumArtists(String albumId, String... artistIds) {
+        albumArtists.put(albumId, List.of(artistIds));
+        return this;
+    }
+
+    public FakeJdbc history(List<Map<String, Object>> rows) {
+        this.history = rows;
+        return this;
+    }
+
+    public FakeJdbc queryLatencyMs(long queryLatencyMs) {
+        this.queryLatencyMs = queryLatencyMs;
+        return this;
+    }
+
+    /**
+     * Takes the database down or brings it back: while down, new connections are refused and open ones fail
+     * validation.
+     */
+    public FakeJdbc available(boolean available) {
+        this.available = available;
+        return this;
+    }
+
+    public int preparedStatements() {
+        return preparedStatements.get();
+    }
+
+    public int openConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Returns how many connections were ever handed out, including ones closed since.
+     */
+    public int openedConnections() {
+        return openedConnections.get();
+    }
+
+    public int maxActiveQueries() {
+        return maxActiveQueries.get();
+    }
+
+    public List<Query> queries() {
+        return List.copyOf(queries);
+    }
+
+    public static Map<String, Object> historyRow(String trackId, String albumId, String deviceName, Instant timeFinished) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("context_type", "collection");
+        row.put("album_id", albumId);
+        row.put("track_id", trackId);
+        row.put("device_name", deviceName);
+        row.put("current_popularity", 50);
+        row.put("time_finished", Timestamp.from(timeFinished));
+        row.put("track_name", "Track " + trackId);
+        row.put("duration_ms", 180000);
+        row.put("is_explicit", false);
+        row.put("is_local", false);
+        row.put("album_name", "Album " + albumId);
+        row.put("cover", "https://" + albumId);
+        row.put("release_date", Timestamp.valueOf(LocalDate.of(2020, 1, 1).atStartOfDay()));
+        row.put("release_date_precision", "day");
+        row.put("album_type", "album");
+        row.put("type", "Computer");
+        return row;
+    }
+
+    public DataSource dataSource() {
+        return proxy(DataSource.class, (method, args) -> switch (method) {
+            case "getConnection" -> {
+                if (!available) throw new SQLException("Connection refused");
+                openConnections.incrementAndGet();
+                openedConnections.incrementAndGet();
+                yield connection();
+            }
+            default -> null;
+        });
+    }
+
+    public Connection connection() {
+        return proxy(Connection.class, (method, args) -> switch (method) {
+            case "close" -> {
+                openConnections.decrementAndGet();
+                yield null;
+            }
+            case "prepareStatement" -> {
+                preparedStatements.incrementAndGet();
+                yield statement((String) args[0]);
+            }
+            case "createArrayOf" -> proxy(Array.class, (m, a) -> "getArray".equals(m) ? args[1] : null);
+            case "isValid" -> available;
+            case "getAutoCommit" -> true;
+            default -> null;
+        });
+    }
+
+    public ResultSet resultSet(List<Map<String, Object>> rows) {
+        Iterator<Map<String, Object>> iterator = rows.iterator();
+        Map<String, Object>[] current = new Map[1];
+        return proxy(ResultSet.class, (method, args) -> switch (method) {
+            case "next" -> {
+                current[0] = iterator.hasNext() ? iterator.next() : null;
+                yield current[0] != null;
+            }
+            case "getString" -> {
+                Object value = current[0].get((String) args[0]);
+                yield value == null ? null : value.toString();
+            }
+            case "getObject", "getTimestamp" -> current[0].get((String) args[0]);
+            case "getInt" -> current[0].get((String) args[0]) instanceof Number n ? n.intValue() : 0;
+            case "getLong" -> current[0].get((String) args[0]) instanceof Number n ? n.longValue() : 0L;
+            case "getBoolean" -> Boolean.TRUE.equals(current[0].get((String) args[0]));
+            default -> null;
+        });
+    }
+
+    private PreparedStatement statement(String sql) {
+        Object[][] ids = new Object[1][];
+        List<Timestamp> timestamps = new ArrayList<>();
+        Map<Integer, Object> parameters = new TreeMap<>();
+        return proxy(PreparedStatement.class, (method, args) -> switch (method) {
+            case "setArray" -> {
+                ids[0] = (Object[]) ((Array) args[1]).getArray();
+                parameters.put((Integer) args[0], ids[0]);
+                yield null;
+            }
+            case "setTimestamp" -> {
+                timestamps.add((Timestamp) args[1]);
+                parameters.put((Integer) args[0], args[1]);
+                yield null;
+            }
+            case "setInt", "setLong", "setString" -> {
+                parameters.put((Integer) args[0], args[1]);
+                yield null;
+            }
+            case "executeQuery" -> {
+                queries.add(new Query(sql, Map.copyOf(parameters)));
+                if (!sql.contains("ANY(?)")) yield resultSet(historyRows(sql, timestamps, parameters));
+                yield resultSet(linkRows(sql, ids[0]));
+            }
+            default -> null;
+        });
+    }
+
+    private List<Map<String, Object>> historyRows(String sql, List<Timestamp> timestamps, Map<Integer, Object> parameters) throws InterruptedException {
+        int active = activeQueries.incrementAndGet();
+        maxActiveQueries.accumulateAndGet(active, Math::max);
+        try {
+            if (queryLatencyMs > 0) Thread.sleep(queryLatencyMs);
+
+            Comparator<Map<String, Object>> byTime = Comparator.<Map<String, Object>, Timestamp>comparing(row -> (Timestamp) row.get("time_finished"))
+                    .thenComparingLong(FakeJdbc::id);
+            // Rows without an id get their 1-based position, like a serial column filled in list order
+            List<Map<String, Object>> rows = new ArrayList<>(history.size());
+            for (int i = 0; i < history.size(); i++) {
+                Map<String, Object> row = new HashMap<>(history.get(i));
+                row.putIfAbsent("id", i + 1L);
+                rows.add(row);
+            }
+            if (sql.contains("th.id > ?")) {
+                long lastId = (Long) parameters.get(1);
+                rows.removeIf(row -> id(row) <= lastId);
+            }
+            if (sql.contains("(th.time_finished, th.id) < (?, ?)")) {
+                Timestamp time = timestamps.getFirst();
+                long id = (Long) parameters.get(2);
+                rows.removeIf(row -> {
+                    int order = ((Timestamp) row.get("time_finished")).compareTo(time);
+                    return order > 0 || order == 0 && id(row) >= id;
+                });
+            }
+            rows.sort(sql.contains("ASC") ? byTime : byTime.reversed());
+            return rows;
+        } finally {
+            activeQueries.decrementAndGet();
+        }
+    }
+
+    private static long id(Map<String, Object> row) {
+        return row.get("id") instanceof Number n ? n.longValue() : 0L;
+    }
+
+    private List<Map<String, Object>> linkRows(String sql, Object[] ownerIds) {
+        Map<String, List<String>> links = sql.contains("track_artist") ? trackArtists : albumArtists;
+        List<Map<String, Object>> rows = new ArrayList<>();
+        if (ownerIds == null) return rows;
+        for (Object ownerId : ownerIds) {
+            for (String artistId : links.getOrDefault((String) ownerId, List.of())) {
+                Map<String, Object> row = new HashMap<>(artists.get(artistId));
+                row.put("owner_id", ownerId);
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args) throws Exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[]{type},
+                (self, method, args) -> switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(self);
+                    case "equals" -> self == args[0];
+                    case "toString" -> type.getSimpleName() + "@fake";
+                    default -> {
+                        Object result = handler.handle(method.getName(), args);
+                        yield result != null ? result : defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
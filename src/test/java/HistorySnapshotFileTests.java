@@ -0,0 +1,88 @@
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistorySnapshotFileTests {
+    private final Instant baseline = Instant.parse("2025-06-01T00:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    private List<Map<String, Object>> createHistoryRows(int from, int to) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album" + (i % 2), i % 2 == 0 ? "Device One" : "Device Two", baseline.plusSeconds(i * 200L)));
+        }
+        return rows;
+    }
+
+    private FakeJdbc createNormalDatabase(List<Map<String, Object>> rows) {
+        return new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .artist("artist2", "Artist Two", 200, 65)
+                .albumArtists("album0", "artist1")
+                .albumArtists("album1", "artist2")
+                .trackArtists("track0", "artist1")
+                .trackArtists("track1", "artist1", "artist2")
+                .history(rows);
+    }
+
+    private PlayHistoryCache createCache(FakeJdbc jdbc, Path file) {
+        return new PlayHistoryCache(new TrackRepository(jdbc.dataSource()), file.toString(), Long.MAX_VALUE, new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void restart_restores_file_and_only_loads_newer_plays() {
+        Path file = directory.resolve("history.snapshot");
+        List<Map<String, Object>> rows = createHistoryRows(0, 20);
+        PlayHistoryCache first = createCache(createNormalDatabase(rows), file);
+        first.load();
+        // The startup write runs in the background; this waits for it and finds nothing left to write
+        first.writeSnapshotFile();
+        HistorySnapshot written = first.snapshot();
+        assertTrue(Files.exists(file));
+
+        List<Map<String, Object>> grown = new ArrayList<>(rows);
+        grown.addAll(createHistoryRows(20, 25));
+        FakeJdbc jdbc = createNormalDatabase(grown);
+        PlayHistoryCache second = createCache(jdbc, file);
+        second.load();
+        HistorySnapshot restored = second.snapshot();
+
+        assertEquals(25, restored.size());
+        assertEquals(written, restored.subList(0, 20));
+        assertEquals(baseline.plusSeconds(24 * 200L), restored.highWaterMark());
+        assertSame(restored.get(0).track(), restored.get(3).track());
+        assertEquals(written.listeningDays().totalActiveDays(), restored.listeningDays().totalActiveDays());
+
+        FakeJdbc.Query historyQuery = jdbc.queries().getFirst();
+        assertTrue(historyQuery.sql().contains("th.id > ?"));
+        assertEquals(20L, historyQuery.parameters().get(1));
+        assertEquals(25, restored.lastId());
+    }
+
+    @Test
+    public void corrupt_file_falls_back_to_full_load() throws Exception {
+        Path file = directory.resolve("history.snapshot");
+        Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        PlayHistoryCache cache = createCache(createNormalDatabase(createHistoryRows(0, 10)), file);
+        cache.load();
+        cache.writeSnapshotFile();
+
+        assertEquals(10, cache.snapshot().size());
+        assertTrue(Files.size(file) > 9);
+    }
+}
@@ -0,0 +1,90 @@
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.api.stats.ListeningDays;
+import com.pugking4.spotifystat.api.stats.TimeUtility;
+import com.pugking4.spotifystat.common.dto.*;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ListeningDaysTests {
+    private final LocalDate today = LocalDate.of(2025, 6, 30);
+
+    private PlayedTrack playedOn(LocalDate date) {
+        Album album = new Album("album1", "Album 1", "https://album1", LocalDate.of(2020, 1, 1), "day", "album", List.of());
+        Track track = new Track("track1", "Track One", album, 120000, false, false, List.of());
+        return new PlayedTrack(track, "collection", new Device("Device One", "Computer"), 50,
+                date.atTime(12, 0).atZone(TimeUtility.LISTENING_ZONE).toInstant());
+    }
+
+    private List<PlayedTrack> playedOnDaysAgo(int... daysAgo) {
+        return Arrays.stream(daysAgo).mapToObj(d -> playedOn(today.minusDays(d))).toList();
+    }
+
+    @Test
+    public void answers_current_and_longest_streaks() {
+        // streak of 3 ending today, streak of 5 ending 10 days ago
+        ListeningDays days = ListeningDays.of(playedOnDaysAgo(0, 1, 2, 10, 11, 12, 13, 14, 20));
+
+        assertEquals(3, days.streakEndingAt(today));
+        assertEquals(0, days.streakEndingAt(today.minusDays(3)));
+        assertEquals(5, days.streakEndingAt(today.minusDays(10)));
+        assertEquals(5, days.longestStreak());
+        assertEquals(9, days.totalActiveDays());
+    }
+
+    @Test
+    public void counts_active_days_in_window() {
+        ListeningDays days = ListeningDays.of(playedOnDaysAgo(0, 0, 1, 2, 10, 11, 20));
+
+        assertEquals(3, days.activeDaysBetween(today.minusDays(6), today));
+        assertEquals(2, days.activeDaysBetween(today.minusDays(11), today.minusDays(10)));
+        assertEquals(0, days.activeDaysBetween(today, today.minusDays(1)));
+    }
+
+    @Test
+    public void appending_plays_joins_runs_without_changing_the_original() {
+        ListeningDays before = ListeningDays.of(playedOnDaysAgo(0, 1, 3, 4));
+        ListeningDays after = before.plus(playedOnDaysAgo(2));
+
+        assertEquals(2, before.longestStreak());
+        assertFalse(before.isActive(today.minusDays(2)));
+        assertEquals(5, after.longestStreak());
+        assertEquals(5, after.streakEndingAt(today));
+    }
+
+    @Test
+    public void building_from_the_time_column_matches_adding_every_play() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int daysAgo : new int[] {40, 12, 11, 10, 10, 9, 3, 1, 0}) {
+            LocalDate date = today.minusDays(daysAgo);
+            // Plays either side of midnight in the listening zone
+            rows.add(FakeJdbc.historyRow("track1", "album1", "Device One", date.atStartOfDay(TimeUtility.LISTENING_ZONE).toInstant()));
+            rows.add(FakeJdbc.historyRow("track1", "album1", "Device One", date.atTime(23, 59, 59).atZone(TimeUtility.LISTENING_ZONE).toInstant()));
+        }
+        FakeJdbc jdbc = new FakeJdbc().history(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot history = cache.snapshot();
+
+        ListeningDays fromColumn = ListeningDays.of(history);
+        ListeningDays fromPlays = ListeningDays.of(List.copyOf(history));
+
+        assertEquals(fromPlays.totalActiveDays(), fromColumn.totalActiveDays());
+        assertEquals(8, fromColumn.totalActiveDays());
+        assertEquals(4, fromColumn.longestStreak());
+        assertEquals(fromPlays.longestStreak(), fromColumn.longestStreak());
+        for (int daysAgo = 0; daysAgo <= 41; daysAgo++) {
+            LocalDate date = today.minusDays(daysAgo);
+            assertEquals(fromPlays.isActive(date), fromColumn.isActive(date), date.toString());
+            assertEquals(fromPlays.streakEndingAt(date), fromColumn.streakEndingAt(date), date.toString());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import com.pugking4.spotifystat.api.stats.APIStatsService;
+import com.pugking4.spotifystat.api.stats.LatencyBucket;
+import com.pugking4.spotifystat.api.stats.LocalRequestMetrics;
+import com.pugking4.spotifystat.api.stats.PrometheusClient;
+import com.pugking4.spotifystat.api.stats.RequestBucket;
+import com.pugking4.spotifystat.api.stats.RequestsPerMinuteResponse;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.info.BuildProperties;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Duration;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalRequestMetricsTests {
+    private final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+    private void recordRequests(String uri, String outcome, int count, long latencyMs) {
+        Timer timer = Timer.builder("http.server.requests")
+                .tags("uri", uri, "outcome", outcome, "method", "GET")
+                .publishPercentileHistogram()
+                .register(registry);
+        for (int i = 0; i < count; i++) {
+            timer.record(Duration.ofMillis(latencyMs));
+        }
+    }
+
+    @Test
+    public void counts_and_percentiles_come_from_the_request_timers() {
+        LocalRequestMetrics metrics = new LocalRequestMetrics(registry, 60);
+        recordRequests("/stats/time", "SUCCESS", 100, 120);
+        recordRequests("/stats/api", "CLIENT_ERROR", 50, 2);
+
+        RequestBucket requests = metrics.getRequestsPerMinutes(1, 1).buckets().getLast();
+        assertFalse(requests.complete());
+        assertEquals(100, requests.success());
+        assertEquals(50, requests.clientError());
+        assertEquals(0, requests.serverError());
+
+        LatencyBucket slowRoute = metrics.getLatencyPercentilesMs("/stats/time", 1, 1).buckets().getLast();
+        assertTrue(slowRoute.p50Ms() > 80 && slowRoute.p50Ms() < 180, "p50 was " + slowRoute.p50Ms());
+        LatencyBucket fastRoute = metrics.getLatencyPercentilesMs("/stats/api", 1, 1).buckets().getLast();
+        assertTrue(fastRoute.p99Ms() < 5, "p99 was " + fastRoute.p99Ms());
+        LatencyBucket allRoutes = metrics.getLatencyPercentilesMs("", 1, 1).buckets().getLast();
+        assertTrue(allRoutes.p95Ms() > 80, "p95 was " + allRoutes.p95Ms());
+
+        assertTrue(Double.isNaN(metrics.getLatencyPercentilesMs("/missing", 1, 1).buckets().getLast().p50Ms()));
+    }
+
+    @Test
+    public void unreachable_prometheus_falls_back_to_local_metrics() {
+        LocalRequestMetrics metrics = new LocalRequestMetrics(registry, 60);
+        PrometheusClient client = new PrometheusClient(JsonMapper.builder().build(), registry, "http://localhost:1", 1_000, 16);
+        APIStatsService service = new APIStatsService(registry, new BuildProperties(new Properties()), client, metrics, false);
+        recordRequests("/stats/time", "SUCCESS", 10, 30);
+
+        RequestsPerMinuteResponse response = service.getRequestsPerMinutes(1);
+
+        assertEquals(2, response.buckets().size());
+        assertEquals(10, response.buckets().getLast().success());
+        assertEquals(-1.0, service.getUptimePercentage().get("d1"));
+        assertTrue(registry.get("stats.api.local-fallbacks").counter().count() >= 2);
+    }
+}
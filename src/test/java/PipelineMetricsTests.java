@@ -0,0 +1,145 @@
+import com.pugking4.spotifystat.api.data.Pair;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.api.stats.Calendar;
+import com.pugking4.spotifystat.api.stats.ColumnarStats;
+import com.pugking4.spotifystat.api.stats.PipelineMetrics;
+import com.pugking4.spotifystat.api.stats.PipelineStageStats;
+import com.pugking4.spotifystat.api.stats.StatsSectionExecutor;
+import com.pugking4.spotifystat.api.stats.TimeMode;
+import com.pugking4.spotifystat.api.stats.TimeStatsRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelineMetricsTests {
+    private final Instant baseline = Instant.parse("2025-06-01T00:00:00Z");
+
+    @Test
+    public void period_queries_record_time_rows_and_artist_lookups() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", baseline.plusSeconds(i * 200L)));
+        }
+        FakeJdbc jdbc = new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track0", "artist1")
+                .history(rows);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TrackRepository repository = new TrackRepository(jdbc.dataSource(), registry);
+
+        LocalDateTime end = LocalDateTime.of(2025, 6, 2, 0, 0);
+        repository.findInPeriod(new Pair<>(end, end.minusHours(18)), 50);
+        // Rolling periods come with the earlier end first
+        repository.findInPeriod(new Pair<>(end.minusHours(100), end), 50);
+        repository.findAddedAfter(0);
+        repository.findAddedAfter(7);
+
+        assertEquals(1, registry.get("history.query").tags("query", "find-in-period-limited", "window", "1d").timer().count());
+        assertEquals(1, registry.get("history.query").tags("query", "find-in-period-limited", "window", "7d").timer().count());
+        assertEquals(10.0, registry.get("history.query.rows").tags("query", "find-added-after", "window", "all").summary().totalAmount());
+        assertEquals(3.0, registry.get("history.query.rows").tags("query", "find-added-after", "window", "new").summary().totalAmount());
+        assertEquals(4, registry.get("history.artist.lookup").tag("owner", "album").timer().count());
+        assertEquals(12.0, registry.get("history.artist.lookup.owners").tag("owner", "track").summary().totalAmount());
+    }
+
+    @Test
+    public void summary_adds_up_stages_across_request_tags() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PipelineMetrics metrics = new PipelineMetrics(registry);
+        StatsSectionExecutor executor = new StatsSectionExecutor(registry, 5_000);
+
+        for (TimeStatsRequest request : List.of(
+                new TimeStatsRequest(TimeMode.CALENDAR, Calendar.WEEK, 0, null, null),
+                new TimeStatsRequest(TimeMode.ROLLING, null, 0, 18, null),
+                new TimeStatsRequest(TimeMode.ROLLING, null, 0, 24 * 400, null))) {
+            var requestTags = PipelineMetrics.requestTags(request);
+            metrics.record("serialization", requestTags, () -> "{}");
+            executor.newBatch(requestTags).submit("top-tracks", () -> 1).await();
+        }
+
+        assertEquals(List.of("stats.pipeline:serialization", "stats.section:top-tracks"),
+                metrics.summary().stream().map(PipelineStageStats::stage).toList());
+        metrics.summary().forEach(stage -> assertEquals(3, stage.count()));
+        assertEquals(1, registry.get("stats.section").tags("mode", "rolling", "window", "longer").timer().count());
+        assertEquals(1, registry.get("stats.pipeline").tags("calendar", "week", "window", "7d").timer().count());
+    }
+
+    private static String windowTag(TimeStatsRequest request) {
+        return PipelineMetrics.requestTags(request).stream()
+                .filter(tag -> tag.getKey().equals("window"))
+                .findFirst().orElseThrow()
+                .getValue();
+    }
+
+    @Test
+    public void calendar_requests_are_tagged_with_the_period_length() {
+        assertEquals("1d", windowTag(new TimeStatsRequest(TimeMode.CALENDAR, Calendar.DAY, 2, null, null)));
+        for (int offset = 0; offset < 12; offset++) {
+            assertEquals("31d", windowTag(new TimeStatsRequest(TimeMode.CALENDAR, Calendar.MONTH, offset, null, null)));
+        }
+        assertEquals("366d", windowTag(new TimeStatsRequest(TimeMode.CALENDAR, Calendar.YEAR, 1, null, null)));
+        assertEquals("longer", windowTag(new TimeStatsRequest(TimeMode.ROLLING, null, 0, 24 * 400, null)));
+    }
+
+    @Test
+    public void history_refresh_is_timed_by_result() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", baseline.plusSeconds(i * 200L)));
+        }
+        FakeJdbc jdbc = new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track0", "artist1")
+                .history(rows.subList(0, 6));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource(), registry), "", 0, registry);
+
+        cache.refresh();
+        cache.refresh();
+        jdbc.history(rows);
+        cache.refresh();
+        jdbc.available(false);
+        cache.refreshInBackground();
+
+        assertEquals(2, registry.get("history.refresh").tag("result", "appended").timer().count());
+        assertEquals(1, registry.get("history.refresh").tag("result", "none").timer().count());
+        assertEquals(1, registry.get("history.refresh").tag("result", "failed").timer().count());
+        assertTrue(new PipelineMetrics(registry).summary().stream()
+                .anyMatch(stage -> stage.stage().equals("history.refresh:appended") && stage.count() == 2));
+    }
+
+    @Test
+    public void columnar_stages_are_timed_with_the_request_tags() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", baseline.plusSeconds(i * 200L)));
+        }
+        FakeJdbc jdbc = new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track0", "artist1")
+                .history(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TimeStatsRequest request = new TimeStatsRequest(TimeMode.ROLLING, null, 0, 18, null);
+
+        ColumnarStats columnarStats = new ColumnarStats(cache.snapshot(), baseline, baseline.plusSeconds(3600),
+                new PipelineMetrics(registry), PipelineMetrics.requestTags(request));
+
+        assertEquals(9, columnarStats.totalPlays());
+        for (String stage : List.of("columnar-track-counts", "columnar-artist-counts", "columnar-sessions")) {
+            assertEquals(1, registry.get("stats.pipeline").tags("stage", stage, "mode", "rolling", "window", "1d").timer().count());
+        }
+    }
+}
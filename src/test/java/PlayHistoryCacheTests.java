@@ -0,0 +1,244 @@
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.api.stats.ColumnarStats;
+import com.pugking4.spotifystat.api.stats.StatsComputation;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlayHistoryCacheTests {
+    private final Instant baseline = Instant.parse("2025-06-01T00:00:00Z");
+
+    private List<Map<String, Object>> createHistoryRows(int from, int to) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", baseline.plusSeconds(i * 200L)));
+        }
+        return rows;
+    }
+
+    private FakeJdbc createNormalDatabase(List<Map<String, Object>> rows) {
+        return new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track0", "artist1")
+                .history(rows);
+    }
+
+    @Test
+    public void loads_history_in_time_order() {
+        FakeJdbc jdbc = createNormalDatabase(createHistoryRows(0, 50));
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+
+        HistorySnapshot snapshot = cache.snapshot();
+        assertEquals(50, snapshot.size());
+        assertEquals(baseline, snapshot.getFirst().timeFinished());
+        assertEquals(baseline.plusSeconds(49 * 200L), snapshot.highWaterMark());
+        for (int i = 1; i < snapshot.size(); i++) {
+            assertTrue(snapshot.get(i - 1).timeFinished().isBefore(snapshot.get(i).timeFinished()));
+        }
+    }
+
+    @Test
+    public void refresh_appends_only_newer_plays_and_keeps_old_snapshots_unchanged() {
+        List<Map<String, Object>> rows = createHistoryRows(0, 20);
+        FakeJdbc jdbc = createNormalDatabase(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot before = cache.snapshot();
+
+        List<Map<String, Object>> grown = new ArrayList<>(rows);
+        grown.addAll(createHistoryRows(20, 25));
+        jdbc.history(grown);
+        cache.refresh();
+        HistorySnapshot after = cache.snapshot();
+
+        assertEquals(20, before.size());
+        assertEquals(25, after.size());
+        assertEquals(before.highWaterMark(), after.get(19).timeFinished());
+        assertEquals(baseline.plusSeconds(24 * 200L), after.highWaterMark());
+        assertThrows(UnsupportedOperationException.class, () -> after.add(after.getFirst()));
+    }
+
+    @Test
+    public void refresh_picks_up_plays_sharing_the_last_finish_time_or_added_late() {
+        List<Map<String, Object>> rows = createHistoryRows(0, 20);
+        FakeJdbc jdbc = createNormalDatabase(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot before = cache.snapshot();
+
+        List<Map<String, Object>> grown = new ArrayList<>(rows);
+        grown.add(FakeJdbc.historyRow("track1", "album1", "Device One", before.highWaterMark()));
+        grown.add(FakeJdbc.historyRow("track2", "album1", "Device One", baseline.plusSeconds(5 * 200L + 100)));
+        jdbc.history(grown);
+        cache.refresh();
+        HistorySnapshot after = cache.snapshot();
+
+        assertEquals(20, before.size());
+        assertEquals(22, after.size());
+        assertEquals(22, after.lastId());
+        assertEquals("track2", after.get(6).track().id());
+        assertEquals(after.get(20).timeFinished(), after.get(21).timeFinished());
+        assertEquals("track1", after.get(21).track().id());
+        for (int i = 1; i < after.size(); i++) {
+            assertFalse(after.get(i).timeFinished().isBefore(after.get(i - 1).timeFinished()));
+        }
+        assertEquals(before.subList(0, 6), after.subList(0, 6));
+        assertEquals("track0", before.get(6).track().id());
+
+        cache.refresh();
+        assertEquals(22, cache.snapshot().size());
+    }
+
+    @Test
+    public void background_refresh_keeps_serving_the_held_history_while_the_database_is_down() {
+        List<Map<String, Object>> rows = createHistoryRows(0, 20);
+        FakeJdbc jdbc = createNormalDatabase(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot before = cache.snapshot();
+
+        List<Map<String, Object>> grown = new ArrayList<>(rows);
+        grown.addAll(createHistoryRows(20, 25));
+        jdbc.history(grown).available(false);
+        cache.refreshInBackground();
+        assertSame(before, cache.snapshot());
+
+        jdbc.available(true);
+        cache.refreshInBackground();
+        assertEquals(25, cache.snapshot().size());
+    }
+
+    @Test
+    public void between_returns_exclusive_window_without_copying() {
+        FakeJdbc jdbc = createNormalDatabase(createHistoryRows(0, 100));
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot snapshot = cache.snapshot();
+
+        List<PlayedTrack> window = snapshot.between(baseline.plusSeconds(10 * 200L), baseline.plusSeconds(20 * 200L));
+        assertEquals(9, window.size());
+        assertEquals(snapshot.get(11), window.getFirst());
+        assertEquals(snapshot.get(19), window.getLast());
+
+        assertEquals(100, snapshot.between(baseline.minusSeconds(1), baseline.plusSeconds(100 * 200L)).size());
+        assertTrue(snapshot.between(baseline.plusSeconds(5), baseline.plusSeconds(10)).isEmpty());
+        assertTrue(snapshot.between(baseline.plusSeconds(400), baseline.plusSeconds(200)).isEmpty());
+    }
+
+    @Test
+    public void columns_round_trip_plays_and_share_one_instance_per_track() {
+        List<Map<String, Object>> rows = createHistoryRows(0, 30);
+        FakeJdbc jdbc = createNormalDatabase(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot snapshot = cache.snapshot();
+
+        List<PlayedTrack> loaded = new TrackRepository(jdbc.dataSource()).findAddedAfter(0).plays();
+        assertEquals(loaded, snapshot);
+        assertEquals(3, snapshot.trackCount());
+        assertSame(snapshot.get(0).track(), snapshot.get(3).track());
+        assertSame(snapshot.get(0).track().album(), snapshot.get(1).track().album());
+        assertSame(cache.findArtist("artist1"), snapshot.get(0).track().artists().getFirst());
+        assertNull(cache.findTrack("missing"));
+    }
+
+    @Test
+    public void newer_rows_replace_catalogue_entries_without_changing_old_snapshots() {
+        List<Map<String, Object>> rows = createHistoryRows(0, 10);
+        FakeJdbc jdbc = createNormalDatabase(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot before = cache.snapshot();
+
+        List<Map<String, Object>> grown = new ArrayList<>(rows);
+        grown.addAll(createHistoryRows(10, 13));
+        grown.getLast().put("track_name", "Track track0 (Remastered)");
+        jdbc.artist("artist1", "Artist One", 250, 70).history(grown);
+        cache.refresh();
+        HistorySnapshot after = cache.snapshot();
+
+        assertEquals(100, before.findArtist("artist1").followers());
+        assertEquals("Track track0", before.findTrack("track0").name());
+        assertEquals(250, after.findArtist("artist1").followers());
+        assertEquals("Track track0 (Remastered)", after.findTrack("track0").name());
+        assertSame(after.findArtist("artist1"), after.findTrack("track0").artists().getFirst());
+        assertSame(after.findArtist("artist1"), after.findTrack("track0").album().artists().getFirst());
+        assertSame(after.findTrack("track0"), after.get(0).track());
+        assertEquals(before.trackCount(), after.trackCount());
+        assertEquals(before.artistCount(), after.artistCount());
+    }
+
+    @Test
+    public void session_index_matches_sorting_the_window() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Instant time = baseline;
+        for (int i = 0; i < 60; i++) {
+            time = time.plusSeconds(i % 7 == 6 ? 3600 : 200 + i * 7L);
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", time));
+        }
+        FakeJdbc jdbc = createNormalDatabase(rows.subList(0, 40));
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        jdbc.history(rows);
+        cache.refresh();
+        HistorySnapshot snapshot = cache.snapshot();
+
+        assertEquals(9, snapshot.sessionCount());
+        for (int[] window : new int[][] {{0, 59}, {3, 17}, {10, 11}, {20, 20}, {35, 59}}) {
+            Instant from = snapshot.get(window[0]).timeFinished().minusSeconds(1);
+            Instant to = snapshot.get(window[1]).timeFinished();
+            ColumnarStats indexed = new ColumnarStats(snapshot, from, to);
+            StatsComputation sorted = new StatsComputation(snapshot.between(from, to), snapshot);
+
+            assertEquals(sorted.findLongestListeningSession(), indexed.findLongestListeningSession());
+            assertEquals(sorted.calculateAllSingleValueStats(), indexed.calculateAllSingleValueStats());
+        }
+    }
+
+    @Test
+    public void hourly_counts_match_counting_every_play() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Instant time = baseline;
+        for (int i = 0; i < 120; i++) {
+            time = time.plusSeconds(i % 10 == 9 ? 7200 : 150 + i * 11L);
+            rows.add(FakeJdbc.historyRow("track" + (i % 7), "album1", "Device One", time));
+        }
+        // More plays of one track in an hour than an hourly entry can count
+        time = time.plusSeconds(7200).truncatedTo(ChronoUnit.HOURS);
+        for (int i = 0; i < 300; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 50 == 0 ? 1 : 0), "album1", "Device One", time.plusSeconds(i)));
+        }
+        rows.add(FakeJdbc.historyRow("track2", "album1", "Device One", time.plusSeconds(7200)));
+        FakeJdbc jdbc = createNormalDatabase(rows.subList(0, 70));
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot before = cache.snapshot();
+        jdbc.history(rows);
+        cache.refresh();
+        HistorySnapshot after = cache.snapshot();
+
+        for (HistorySnapshot snapshot : List.of(before, after)) {
+            for (int from = 0; from <= snapshot.size(); from += 3) {
+                for (int to = from; to <= snapshot.size(); to += 5) {
+                    int[] expected = new int[snapshot.trackCount()];
+                    for (int i = from; i < to; i++) {
+                        expected[snapshot.trackIndex(i)]++;
+                    }
+                    assertArrayEquals(expected, snapshot.countTrackPlays(from, to));
+                    assertEquals((to - from) * 180000L, snapshot.listeningMs(from, to));
+                }
+            }
+        }
+    }
+}
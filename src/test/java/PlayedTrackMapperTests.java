@@ -0,0 +1,101 @@
+import com.pugking4.spotifystat.api.data.HistoryCursor;
+import com.pugking4.spotifystat.api.data.HistoryPage;
+import com.pugking4.spotifystat.api.data.PlayedTrackMapper;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlayedTrackMapperTests {
+    private FakeJdbc createNormalDatabase() {
+        return new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .artist("artist2", "Artist Two", 200, 65)
+                .artist("artist3", "Artist Three", 300, 60)
+                .albumArtists("album1", "artist1", "artist2")
+                .albumArtists("album2", "artist3")
+                .trackArtists("track1", "artist1", "artist2")
+                .trackArtists("track2", "artist2")
+                .trackArtists("track3", "artist3");
+    }
+
+    private List<Map<String, Object>> createHistoryRows(int count) {
+        String[][] trackAlbums = {{"track1", "album1"}, {"track2", "album1"}, {"track3", "album2"}};
+        Instant now = Instant.now();
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String[] trackAlbum = trackAlbums[i % trackAlbums.length];
+            rows.add(FakeJdbc.historyRow(trackAlbum[0], trackAlbum[1], "Device One", now.minusSeconds(i * 200L)));
+        }
+        return rows;
+    }
+
+    private int countStatementsForHistory(int rows) throws SQLException {
+        FakeJdbc jdbc = createNormalDatabase();
+        new PlayedTrackMapper(jdbc.connection()).map(jdbc.resultSet(createHistoryRows(rows)));
+        return jdbc.preparedStatements();
+    }
+
+    @Test
+    public void issues_constant_number_of_artist_queries_as_history_grows() throws SQLException {
+        assertEquals(2, countStatementsForHistory(10));
+        assertEquals(2, countStatementsForHistory(1000));
+        assertEquals(2, countStatementsForHistory(20000));
+    }
+
+    @Test
+    public void issues_no_artist_queries_for_empty_history() throws SQLException {
+        assertEquals(0, countStatementsForHistory(0));
+    }
+
+    @Test
+    public void maps_track_and_album_artists_with_one_instance_per_artist() throws SQLException {
+        FakeJdbc jdbc = createNormalDatabase();
+        List<PlayedTrack> playedTracks = new PlayedTrackMapper(jdbc.connection()).map(jdbc.resultSet(createHistoryRows(6)));
+
+        assertEquals(6, playedTracks.size());
+        PlayedTrack first = playedTracks.get(0);
+        PlayedTrack second = playedTracks.get(1);
+        assertEquals("track1", first.track().id());
+        assertEquals(List.of("artist1", "artist2"), first.track().artists().stream().map(a -> a.id()).toList());
+        assertEquals(List.of("artist1", "artist2"), first.track().album().artists().stream().map(a -> a.id()).toList());
+        assertEquals(List.of("artist2"), second.track().artists().stream().map(a -> a.id()).toList());
+
+        assertSame(first.track().artists().get(1), second.track().artists().get(0));
+        assertSame(first.track().artists().get(0), first.track().album().artists().get(0));
+        assertSame(first.track().artists(), playedTracks.get(3).track().artists());
+    }
+
+    @Test
+    public void maps_page_with_cursor_at_last_row_only_when_more_rows_follow() throws SQLException {
+        FakeJdbc jdbc = createNormalDatabase();
+        List<Map<String, Object>> rows = createHistoryRows(4);
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i).put("id", 100L - i);
+        }
+
+        HistoryPage page = new PlayedTrackMapper(jdbc.connection()).mapPage(jdbc.resultSet(rows), 3);
+        assertEquals(3, page.items().size());
+        HistoryCursor cursor = HistoryCursor.parse(page.nextCursor());
+        assertEquals(page.items().getLast().timeFinished(), cursor.timeFinished());
+        assertEquals(98L, cursor.id());
+
+        HistoryPage lastPage = new PlayedTrackMapper(jdbc.connection()).mapPage(jdbc.resultSet(rows.subList(0, 3)), 3);
+        assertEquals(3, lastPage.items().size());
+        assertNull(lastPage.nextCursor());
+    }
+
+    @Test
+    public void rejects_malformed_cursors() {
+        assertThrows(IllegalArgumentException.class, () -> HistoryCursor.parse("12345"));
+        assertThrows(IllegalArgumentException.class, () -> HistoryCursor.parse("yesterday,1"));
+        assertThrows(IllegalArgumentException.class, () -> HistoryCursor.parse("2025-06-01T00:00:00Z,abc"));
+    }
+}
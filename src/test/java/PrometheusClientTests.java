@@ -0,0 +1,200 @@
+import com.pugking4.spotifystat.api.stats.APIStatsService;
+import com.pugking4.spotifystat.api.stats.EndpointStats;
+import com.pugking4.spotifystat.api.stats.EndpointStatsResponse;
+import com.pugking4.spotifystat.api.stats.LatencyResponse;
+import com.pugking4.spotifystat.api.stats.LocalRequestMetrics;
+import com.pugking4.spotifystat.api.stats.PrometheusClient;
+import com.pugking4.spotifystat.api.stats.RequestBucket;
+import com.pugking4.spotifystat.api.stats.RequestsPerMinuteResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.info.BuildProperties;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrometheusClientTests {
+    private static final String RESPONSE = """
+            {"status":"success","data":{"resultType":"vector","result":[{"metric":{},"value":[0,"99.5"]}]}}
+            """;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+    private volatile long latencyMs;
+    private volatile String instantResponse = RESPONSE;
+    private HttpServer server;
+    private SimpleMeterRegistry registry;
+    private PrometheusClient client;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/v1/query", exchange -> respond(exchange, instantResponse));
+        server.createContext("/api/v1/query_range", exchange -> {
+            rangeRequests.incrementAndGet();
+            respond(exchange, matrixResponse(exchange.getRequestURI().getQuery()));
+        });
+        server.start();
+
+        registry = new SimpleMeterRegistry();
+        client = new PrometheusClient(JsonMapper.builder().build(), registry,
+                "http://localhost:" + server.getAddress().getPort(), 5_000, 16);
+    }
+
+    private void respond(HttpExchange exchange, String response) throws IOException {
+        requests.incrementAndGet();
+        maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // One SUCCESS series with a sample of 7 at every step between start and end
+    private static String matrixResponse(String query) {
+        Map<String, Long> parameters = new HashMap<>();
+        for (String parameter : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            if (!pair[0].equals("query")) parameters.put(pair[0], Long.parseLong(pair[1]));
+        }
+        List<String> values = new ArrayList<>();
+        for (long time = parameters.get("start"); time <= parameters.get("end"); time += parameters.get("step")) {
+            values.add("[" + time + ",\"7\"]");
+        }
+        return "{\"status\":\"success\",\"data\":{\"resultType\":\"matrix\",\"result\":["
+                + "{\"metric\":{\"outcome\":\"SUCCESS\"},\"values\":[" + String.join(",", values) + "]}]}}";
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void completed_queries_are_reused_until_they_expire() {
+        Instant time = Instant.parse("2025-06-01T00:00:00Z");
+
+        client.instantQuery("up", time, Instant.now().plusSeconds(60));
+        client.instantQuery("up", time, Instant.now().plusSeconds(60));
+        client.instantQuery("up", time.plusSeconds(60), Instant.now().plusSeconds(60));
+        client.instantQuery("up", time.plusSeconds(120), null);
+        client.instantQuery("up", time.plusSeconds(120), null);
+
+        assertEquals(4, requests.get());
+        assertEquals(1, registry.get("prometheus.queries").tag("result", "cache-hit").counter().count());
+    }
+
+    @Test
+    public void concurrent_identical_queries_share_one_request() {
+        latencyMs = 300;
+        Instant time = Instant.now();
+
+        List<CompletableFuture<Double>> callers = new ArrayList<>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 8; i++) {
+                callers.add(CompletableFuture.supplyAsync(
+                        () -> client.instantQuery("up", time).get(0).path("value").get(1).asDouble(), executor));
+            }
+            callers.forEach(caller -> assertEquals(99.5, caller.join()));
+        }
+
+        assertTrue(requests.get() < 8, "expected coalesced requests, got " + requests.get());
+    }
+
+    @Test
+    public void repeated_api_stats_reuse_uptime_queries() {
+        APIStatsService service = new APIStatsService(registry, new BuildProperties(new Properties()), client, new LocalRequestMetrics(registry, 60), false);
+
+        assertEquals(99.5, service.getUptimePercentage().get("d1"));
+        service.getUptimePercentage();
+        service.getUptimePercentage();
+
+        // Two frames, evaluated once per minute; a minute boundary between the calls costs two more at most
+        assertTrue(requests.get() <= 4, "expected cached uptime queries, got " + requests.get());
+    }
+
+    @Test
+    public void complete_buckets_come_from_one_range_query() {
+        APIStatsService service = new APIStatsService(registry, new BuildProperties(new Properties()), client, new LocalRequestMetrics(registry, 60), false);
+
+        RequestsPerMinuteResponse response = PrometheusClient.await(service.getRequestsPerMinutesAsync(5, 4));
+
+        assertEquals(5, response.buckets().size());
+        assertEquals(1, rangeRequests.get());
+        assertEquals(2, requests.get());
+        for (int i = 0; i < 4; i++) {
+            RequestBucket bucket = response.buckets().get(i);
+            assertTrue(bucket.complete());
+            assertEquals(7.0, bucket.success());
+            assertEquals(0.0, bucket.serverError());
+            if (i > 0) assertEquals(300, bucket.timeEnd() - response.buckets().get(i - 1).timeEnd());
+        }
+        assertFalse(response.buckets().getLast().complete());
+    }
+
+    @Test
+    public void complete_and_partial_buckets_are_queried_in_parallel() {
+        latencyMs = 300;
+        APIStatsService service = new APIStatsService(registry, new BuildProperties(new Properties()), client, new LocalRequestMetrics(registry, 60), false);
+
+        LatencyResponse response = service.getLatencyPercentilesMs("", 1);
+
+        assertEquals(2, response.buckets().size());
+        assertEquals(2, maxActiveRequests.get());
+    }
+
+    @Test
+    public void endpoint_breakdown_comes_from_one_grouped_query() {
+        instantResponse = """
+                {"status":"success","data":{"resultType":"vector","result":[
+                  {"metric":{"uri":"/stats/time","quantile":"requests"},"value":[0,"50"]},
+                  {"metric":{"uri":"/stats/time","quantile":"0.50"},"value":[0,"0.2"]},
+                  {"metric":{"uri":"/stats/time","quantile":"0.99"},"value":[0,"1.5"]},
+                  {"metric":{"uri":"/stats/recently-played","quantile":"requests"},"value":[0,"10"]},
+                  {"metric":{"uri":"/stats/recently-played","quantile":"0.95"},"value":[0,"0.004"]}
+                ]}}
+                """;
+        APIStatsService service = new APIStatsService(registry, new BuildProperties(new Properties()), client, new LocalRequestMetrics(registry, 60), false);
+
+        EndpointStatsResponse response = PrometheusClient.await(service.getEndpointStatsAsync(5));
+
+        assertEquals(1, requests.get());
+        assertEquals(5, response.windowMinutes());
+        assertEquals(List.of("/stats/recently-played", "/stats/time"), response.endpoints().stream().map(EndpointStats::uri).toList());
+        EndpointStats time = response.endpoints().getLast();
+        assertEquals(10.0, time.requestsPerMinute());
+        assertEquals(200.0, time.p50Ms(), 1e-9);
+        assertTrue(Double.isNaN(time.p95Ms()));
+        assertEquals(1500.0, time.p99Ms(), 1e-9);
+        assertEquals(4.0, response.endpoints().getFirst().p95Ms(), 1e-9);
+    }
+}
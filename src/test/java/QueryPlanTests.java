@@ -0,0 +1,147 @@
+import com.pugking4.spotifystat.api.data.HistoryCursor;
+import com.pugking4.spotifystat.api.data.Pair;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs {@code EXPLAIN} for every query the repository issues against a seeded Postgres and fails if any plan reads a
+ * large table with a sequential scan.
+ * <p>
+ * Only runs when {@code EXPLAIN_DATABASE_URL} is set, along with {@code EXPLAIN_DATABASE_USERNAME} and
+ * {@code EXPLAIN_DATABASE_PASSWORD}. The test recreates the schema from {@code schema.sql}, so point it at a
+ * scratch database.
+ */
+@EnabledIfEnvironmentVariable(named = "EXPLAIN_DATABASE_URL", matches = ".+")
+public class QueryPlanTests {
+    private static final int HISTORY_ROWS = 200_000;
+    private static final long SEQ_SCAN_ROW_LIMIT = 10_000;
+
+    private final ObjectMapper objectMapper = JsonMapper.builder().build();
+
+    private static Connection connect() throws SQLException {
+        return DriverManager.getConnection(System.getenv("EXPLAIN_DATABASE_URL"),
+                System.getenv("EXPLAIN_DATABASE_USERNAME"), System.getenv("EXPLAIN_DATABASE_PASSWORD"));
+    }
+
+    @BeforeAll
+    public static void seed() throws SQLException, IOException {
+        String schema;
+        try (InputStream in = QueryPlanTests.class.getResourceAsStream("/schema.sql")) {
+            schema = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        try (Connection db = connect(); Statement st = db.createStatement()) {
+            for (String statement : schema.split(";")) {
+                if (!statement.isBlank()) st.execute(statement);
+            }
+            st.execute("INSERT INTO devices VALUES ('Device One', 'Computer'), ('Device Two', 'Smartphone'), ('Device Three', 'Speaker')");
+            st.execute("INSERT INTO artists (id, name, followers, popularity) SELECT 'artist' || g, 'Artist ' || g, g * 10, g % 101 FROM generate_series(1, 2000) g");
+            st.execute("INSERT INTO albums SELECT 'album' || g, 'Album ' || g, 'https://album' || g, DATE '2000-01-01' + g, 'day', 'album' FROM generate_series(1, 1000) g");
+            st.execute("INSERT INTO tracks SELECT 'track' || g, 'Track ' || g, 'album' || (g % 1000 + 1), 120000 + g, false, false FROM generate_series(1, 5000) g");
+            st.execute("INSERT INTO album_artist SELECT 'album' || g, 'artist' || (g % 2000 + 1) FROM generate_series(1, 1000) g");
+            st.execute("INSERT INTO track_artist SELECT 'track' || g, 'artist' || (g % 2000 + 1) FROM generate_series(1, 5000) g");
+            st.execute("INSERT INTO track_artist SELECT 'track' || g, 'artist' || ((g * 7) % 2000 + 1) FROM generate_series(1, 5000, 6) g ON CONFLICT DO NOTHING");
+            st.execute("""
+                    INSERT INTO track_history (context_type, album_id, track_id, device_name, current_popularity, time_finished)
+                    SELECT 'collection', 'album' || ((g % 5000 + 1) % 1000 + 1), 'track' || (g % 5000 + 1),
+                           CASE g % 3 WHEN 0 THEN 'Device One' WHEN 1 THEN 'Device Two' ELSE 'Device Three' END,
+                           g % 101, LOCALTIMESTAMP - g * INTERVAL '3 minutes'
+                    FROM generate_series(%d, 1, -1) g
+                    """.formatted(HISTORY_ROWS));
+            st.execute("ANALYZE");
+        }
+    }
+
+    /**
+     * Runs the repository against the fake to capture each statement it prepares, with its parameters, exactly as
+     * it would send them.
+     */
+    private List<FakeJdbc.Query> captureRepositoryQueries() {
+        Instant now = Instant.now();
+        FakeJdbc jdbc = new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track1", "artist1")
+                .history(List.of(FakeJdbc.historyRow("track1", "album1", "Device One", now)));
+        TrackRepository repository = new TrackRepository(jdbc.dataSource());
+
+        LocalDateTime today = LocalDateTime.now();
+        repository.getRecentlyPlayedTracks(50);
+        repository.findInPeriod(new Pair<>(today, today.minusDays(1)), 50);
+        repository.findAddedAfter(HISTORY_ROWS - 20);
+        repository.findPage(null, 50);
+        repository.findPage(new HistoryCursor(now.minusSeconds(86_400 * 200L), Long.MAX_VALUE), 50);
+        repository.streamRecentlyPlayed(50, 10, _ -> {});
+        return jdbc.queries();
+    }
+
+    @Test
+    public void repository_queries_avoid_sequential_scans_on_large_tables() throws SQLException {
+        List<FakeJdbc.Query> queries = captureRepositoryQueries();
+        assertFalse(queries.isEmpty());
+
+        List<String> failures = new ArrayList<>();
+        try (Connection db = connect()) {
+            for (FakeJdbc.Query query : queries) {
+                JsonNode plan = explain(db, query);
+                collectLargeSeqScans(db, plan, query.sql(), failures);
+            }
+        }
+        assertTrue(failures.isEmpty(), String.join("\n\n", failures));
+    }
+
+    private JsonNode explain(Connection db, FakeJdbc.Query query) throws SQLException {
+        try (PreparedStatement st = db.prepareStatement("EXPLAIN (FORMAT JSON) " + query.sql().strip())) {
+            for (Map.Entry<Integer, Object> parameter : query.parameters().entrySet()) {
+                if (parameter.getValue() instanceof Object[] values) {
+                    st.setArray(parameter.getKey(), db.createArrayOf("varchar", values));
+                } else {
+                    st.setObject(parameter.getKey(), parameter.getValue());
+                }
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                rs.next();
+                return objectMapper.readTree(rs.getString(1)).get(0).path("Plan");
+            }
+        }
+    }
+
+    private void collectLargeSeqScans(Connection db, JsonNode node, String sql, List<String> failures) throws SQLException {
+        if (node.path("Node Type").asText().endsWith("Seq Scan")) {
+            String relation = node.path("Relation Name").asText();
+            long rows = estimatedRows(db, relation);
+            if (rows > SEQ_SCAN_ROW_LIMIT) {
+                failures.add("Sequential scan on " + relation + " (" + rows + " rows) for:\n" + sql.strip());
+            }
+        }
+        for (JsonNode child : node.path("Plans")) {
+            collectLargeSeqScans(db, child, sql, failures);
+        }
+    }
+
+    private long estimatedRows(Connection db, String relation) throws SQLException {
+        try (PreparedStatement st = db.prepareStatement("SELECT reltuples::bigint FROM pg_class WHERE relname = ?")) {
+            st.setString(1, relation);
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.RollupSum;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.api.stats.*;
+import com.pugking4.spotifystat.common.dto.*;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RollupStatsTests {
+    private final Instant baseline = Instant.parse("2025-06-30T10:00:00Z");
+
+    private List<PlayedTrack> createTestingData() {
+        List<Artist> artists = List.of(
+                new Artist("artist1", "Artist One", 100, List.of("rock"), "https://image1", 50, baseline),
+                new Artist("artist2", "Artist Two", 200, List.of("pop"), "https://image2", 65, baseline),
+                new Artist("artist3", "Artist Three", 300, List.of("jazz"), "https://image3", 60, baseline)
+        );
+        Album album1 = new Album("album1", "Album 1", "https://album1", LocalDate.of(2020, 1, 1), "day", "album", List.of(artists.get(0), artists.get(1)));
+        Album album2 = new Album("album2", "Single 2", "https://album2", LocalDate.of(2021, 1, 1), "day", "single", List.of(artists.get(2)));
+        List<Track> tracks = List.of(
+                new Track("track1", "Track One", album1, 120000, false, false, List.of(artists.get(0), artists.get(1))),
+                new Track("track2", "Track Two", album1, 180000, true, false, List.of(artists.get(1))),
+                new Track("track3", "Track Three", album2, 240000, false, true, List.of(artists.get(2))),
+                new Track("track4", "Track Four", album2, 300000, true, true, List.of(artists.get(0), artists.get(2)))
+        );
+        List<Device> devices = List.of(new Device("Device One", "Computer"), new Device("Device Two", "Smartphone"));
+
+        List<PlayedTrack> testData = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Track track = tracks.get((i * i + i / 7) % tracks.size());
+            testData.add(new PlayedTrack(track, "collection", devices.get(i % 2), 50, baseline.minusSeconds(i * 1013L)));
+        }
+        return testData;
+    }
+
+    private RollupStats createRollupStats(List<PlayedTrack> testData, LocalDate from, LocalDate to) {
+        RollupTotals totals = new RollupTotals();
+        DailyRollup.aggregate(testData).rows().stream()
+                .filter(row -> !row.day().isBefore(from) && row.day().isBefore(to))
+                .forEach(totals::add);
+
+        Map<String, Track> tracks = new HashMap<>();
+        Map<String, Artist> artists = new HashMap<>();
+        for (PlayedTrack playedTrack : testData) {
+            tracks.put(playedTrack.track().id(), playedTrack.track());
+            playedTrack.track().artists().forEach(a -> artists.put(a.id(), a));
+        }
+        return new RollupStats(totals, tracks::get, artists::get);
+    }
+
+    private <T> Map<String, Integer> countsById(List<T> items, Function<T, String> id, Function<T, Integer> count) {
+        return items.stream().collect(Collectors.toMap(id, count));
+    }
+
+    @Test
+    public void rollups_match_stats_computation_for_a_day_range() {
+        List<PlayedTrack> testData = createTestingData();
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate to = LocalDate.ofInstant(baseline, zone);
+        LocalDate from = to.minusDays(14);
+
+        List<PlayedTrack> period = testData.stream()
+                .filter(x -> {
+                    LocalDate day = LocalDate.ofInstant(x.timeFinished(), zone);
+                    return !day.isBefore(from) && day.isBefore(to);
+                })
+                .toList();
+        StatsComputation statsComputation = new StatsComputation(period, testData);
+        RollupStats rollupStats = createRollupStats(testData, from, to);
+
+        assertEquals(period.size(), rollupStats.totalPlays());
+        assertEquals(period.stream().mapToLong(x -> x.track().durationMs()).sum(), rollupStats.totalListeningTime());
+
+        assertEquals(
+                countsById(statsComputation.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount),
+                countsById(rollupStats.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount)
+        );
+        assertEquals(statsComputation.topTracks(1).getFirst().playCount(), rollupStats.topTracks(1).getFirst().playCount());
+
+        List<ArtistPercentage> expectedDistribution = statsComputation.calculateArtistDistribution();
+        List<ArtistPercentage> actualDistribution = rollupStats.calculateArtistDistribution();
+        assertEquals(
+                countsById(expectedDistribution, x -> x.artist().id(), ArtistPercentage::playCount),
+                countsById(actualDistribution, x -> x.artist().id(), ArtistPercentage::playCount)
+        );
+        assertEquals(expectedDistribution.getFirst().percentageOfTracks(), actualDistribution.getFirst().percentageOfTracks(), 1e-9);
+
+        for (int blockMinutes : List.of(5, 15, 60)) {
+            assertEquals(statsComputation.calculateListeningTimeHeatmap(blockMinutes), rollupStats.calculateListeningTimeHeatmap(blockMinutes));
+        }
+    }
+
+    @Test
+    public void rollups_with_the_newer_plays_match_columnar_stats() {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate firstDay = LocalDate.of(2025, 6, 1);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int day = 0; day < 8; day++) {
+            // A play at exactly midnight sits on the period's edge
+            Instant midnight = firstDay.plusDays(day).atStartOfDay(zone).toInstant();
+            rows.add(FakeJdbc.historyRow("track" + day % 3, "album1", "Device One", midnight));
+            for (int i = 1; i < 20; i++) {
+                rows.add(FakeJdbc.historyRow("track" + (day + i) % 5, "album1", "Device One", midnight.plusSeconds(i * 4000L)));
+            }
+        }
+        FakeJdbc jdbc = new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .artist("artist2", "Artist Two", 200, 65)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track0", "artist1")
+                .trackArtists("track1", "artist1", "artist2")
+                .trackArtists("track3", "artist2")
+                .history(rows);
+        PlayHistoryCache cache = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        cache.refresh();
+        HistorySnapshot history = cache.snapshot();
+
+        LocalDate fromDay = firstDay.plusDays(2);
+        LocalDate toDay = firstDay.plusDays(7);
+        Instant from = fromDay.atStartOfDay(zone).toInstant();
+        Instant to = toDay.atStartOfDay(zone).toInstant();
+        ColumnarStats columnarStats = new ColumnarStats(history, from, to);
+
+        for (Instant highWaterMark : Arrays.asList(null, from.minusSeconds(1), from, from.plusSeconds(30 * 3600), to.plusSeconds(60))) {
+            // The rollup as an update at the high-water mark would have left it
+            RollupTotals totals = new RollupTotals();
+            DailyRollup.aggregate(history.subList(0, highWaterMark == null ? 0 : history.firstIndexAfter(highWaterMark))).rows().stream()
+                    .filter(row -> !row.day().isBefore(fromDay) && row.day().isBefore(toDay))
+                    .forEach(totals::add);
+            RollupStats rollupStats = RollupStats.of(new RollupSum(totals, highWaterMark), history, from, to);
+
+            assertEquals(columnarStats.totalPlays(), rollupStats.totalPlays());
+            assertEquals(columnarStats.totalListeningTime(), rollupStats.totalListeningTime());
+            assertEquals(
+                    countsById(columnarStats.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount),
+                    countsById(rollupStats.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount)
+            );
+            assertEquals(
+                    countsById(columnarStats.calculateArtistDistribution(), x -> x.artist().id(), ArtistPercentage::playCount),
+                    countsById(rollupStats.calculateArtistDistribution(), x -> x.artist().id(), ArtistPercentage::playCount)
+            );
+            assertEquals(columnarStats.calculateListeningTimeHeatmap(15), rollupStats.calculateListeningTimeHeatmap(15));
+        }
+    }
+
+    @Test
+    public void unknown_keys_count_towards_totals_but_are_left_out_of_rankings() {
+        List<PlayedTrack> testData = createTestingData();
+        RollupTotals totals = new RollupTotals();
+        DailyRollup.aggregate(testData).rows().forEach(totals::add);
+        totals.add(RollupDimension.TRACK, "removed", 4, 1000);
+        totals.add(RollupDimension.ARTIST, "removed", 4, 1000);
+
+        Map<String, Track> tracks = new HashMap<>();
+        Map<String, Artist> artists = new HashMap<>();
+        for (PlayedTrack playedTrack : testData) {
+            tracks.put(playedTrack.track().id(), playedTrack.track());
+            playedTrack.track().artists().forEach(a -> artists.put(a.id(), a));
+        }
+        RollupStats rollupStats = new RollupStats(totals, tracks::get, artists::get);
+
+        assertEquals(testData.size() + 4, rollupStats.totalPlays());
+        assertEquals(tracks.keySet(), countsById(rollupStats.topTracks(10), x -> x.track().id(), TrackPlayCount::playCount).keySet());
+        assertEquals(artists.keySet(), countsById(rollupStats.calculateArtistDistribution(), x -> x.artist().id(), ArtistPercentage::playCount).keySet());
+    }
+}
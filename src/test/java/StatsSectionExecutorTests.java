@@ -0,0 +1,87 @@
+import com.pugking4.spotifystat.api.stats.StatsSectionExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatsSectionExecutorTests {
+
+    @Test
+    public void sections_run_concurrently() {
+        StatsSectionExecutor executor = new StatsSectionExecutor(new SimpleMeterRegistry(), 5_000);
+        StatsSectionExecutor.Batch batch = executor.newBatch();
+        CountDownLatch bothStarted = new CountDownLatch(2);
+
+        // Each section waits for the other, so this only completes if they overlap
+        var first = batch.submit("first", () -> {
+            bothStarted.countDown();
+            return bothStarted.await(5, TimeUnit.SECONDS);
+        });
+        var second = batch.submit("second", () -> {
+            bothStarted.countDown();
+            return bothStarted.await(5, TimeUnit.SECONDS);
+        });
+
+        assertTrue(first.await());
+        assertTrue(second.await());
+        assertTrue(batch.isComplete());
+    }
+
+    @Test
+    public void slow_section_reads_as_null_without_failing_the_others() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StatsSectionExecutor executor = new StatsSectionExecutor(registry, 100);
+        StatsSectionExecutor.Batch batch = executor.newBatch();
+
+        var fast = batch.submit("fast", () -> 42);
+        var slow = batch.submit("slow", () -> {
+            Thread.sleep(10_000);
+            return 7;
+        });
+
+        assertEquals(42, fast.await());
+        assertNull(slow.await());
+        assertFalse(batch.isComplete());
+        assertEquals(1, registry.get("stats.section.timeouts").tag("section", "slow").counter().count());
+        assertEquals(1, registry.get("stats.section").tag("section", "fast").timer().count());
+    }
+
+    @Test
+    public void failing_section_reads_as_null_without_failing_the_others() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StatsSectionExecutor executor = new StatsSectionExecutor(registry, 5_000);
+        StatsSectionExecutor.Batch batch = executor.newBatch();
+
+        var working = batch.submit("working", () -> 42);
+        var failing = batch.submit("failing", () -> {
+            throw new IllegalStateException("broken");
+        });
+
+        assertEquals(42, working.await());
+        assertNull(failing.await());
+        assertFalse(batch.isComplete());
+        assertEquals(1, registry.get("stats.section.failures").tag("section", "failing").counter().count());
+    }
+
+    @Test
+    public void each_section_gets_the_full_timeout_from_its_own_submission() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StatsSectionExecutor executor = new StatsSectionExecutor(registry, 500);
+        StatsSectionExecutor.Batch batch = executor.newBatch();
+
+        // The late section ends after a deadline shared with the first one would have passed, but within its own
+        var first = batch.submit("first", () -> 1);
+        Thread.sleep(400);
+        var late = batch.submit("late", () -> {
+            Thread.sleep(300);
+            return 2;
+        });
+
+        assertEquals(1, first.await());
+        assertEquals(2, late.await());
+        assertTrue(batch.isComplete());
+    }
+}
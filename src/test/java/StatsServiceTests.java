@@ -1,12 +1,19 @@
+import com.pugking4.spotifystat.api.stats.ArtistPercentage;
+import com.pugking4.spotifystat.api.stats.ListeningTimeHeatmap;
 import com.pugking4.spotifystat.api.stats.StatsComputation;
+import com.pugking4.spotifystat.api.stats.TimeBlock;
+import com.pugking4.spotifystat.api.stats.TrackPlayCount;
 import com.pugking4.spotifystat.common.dto.*;
 import org.junit.jupiter.api.Test;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -100,24 +107,24 @@ public class StatsServiceTests {
     public void returns_top_five_tracks_under_normal_data_state() {
         List<PlayedTrack> testData = createNormalTestingData(Instant.now());
         StatsComputation statsComputation = new StatsComputation(testData, testData);
-        List<Map<String, Object>> results = statsComputation.getTopFiveTracks();
+        List<TrackPlayCount> results = statsComputation.topTracks(5);
 
         var trackData = createNormalTrackData();
 
         assertEquals(5, results.size());
-        assertEquals(trackData.get(4).id(), results.get(0).get("id"));
-        assertTrue(results.stream().anyMatch(track -> track.get("id").equals(trackData.get(1).id())));
-        assertTrue(results.stream().anyMatch(track -> track.get("id").equals(trackData.get(2).id())));
-        assertTrue(results.stream().anyMatch(track -> track.get("id").equals(trackData.get(3).id())));
-        assertTrue(results.stream().anyMatch(track -> track.get("id").equals(trackData.get(0).id())));
-        assertFalse(results.stream().anyMatch(track -> track.get("id").equals(trackData.get(5).id())));
+        assertEquals(trackData.get(4).id(), results.get(0).track().id());
+        assertTrue(results.stream().anyMatch(track -> track.track().id().equals(trackData.get(1).id())));
+        assertTrue(results.stream().anyMatch(track -> track.track().id().equals(trackData.get(2).id())));
+        assertTrue(results.stream().anyMatch(track -> track.track().id().equals(trackData.get(3).id())));
+        assertTrue(results.stream().anyMatch(track -> track.track().id().equals(trackData.get(0).id())));
+        assertFalse(results.stream().anyMatch(track -> track.track().id().equals(trackData.get(5).id())));
     }
 
     @Test
     public void returns_empty_top_five_tracks_under_empty_data_state() {
         List<PlayedTrack> testData = createNormalTestingData(Instant.now());
         StatsComputation statsComputation = new StatsComputation(List.of(), testData);
-        List<Map<String, Object>> results = statsComputation.getTopFiveTracks();
+        List<TrackPlayCount> results = statsComputation.topTracks(5);
 
         assertEquals(0, results.size());
     }
@@ -191,16 +198,16 @@ public class StatsServiceTests {
         var tracks = createNormalTrackData();
 
         StatsComputation statsComputation = new StatsComputation(testData, testData);
-        List<Map<String, Object>> results = statsComputation.getTopFiveTracks();
+        List<TrackPlayCount> results = statsComputation.topTracks(5);
 
         assertEquals(5, results.size());
-        assertEquals(tracks.get(0).id(), results.get(0).get("id"));
-        assertEquals(tracks.get(1).id(), results.get(1).get("id"));
-        assertEquals(tracks.get(4).id(), results.get(2).get("id"));
-        assertEquals(tracks.get(3).id(), results.get(3).get("id"));
-        assertEquals(tracks.get(2).id(), results.get(4).get("id"));
+        assertEquals(tracks.get(0).id(), results.get(0).track().id());
+        assertEquals(tracks.get(1).id(), results.get(1).track().id());
+        assertEquals(tracks.get(4).id(), results.get(2).track().id());
+        assertEquals(tracks.get(3).id(), results.get(3).track().id());
+        assertEquals(tracks.get(2).id(), results.get(4).track().id());
 
-        assertFalse(results.stream().anyMatch(track -> track.get("id").equals(tracks.get(5).id())));
+        assertFalse(results.stream().anyMatch(track -> track.track().id().equals(tracks.get(5).id())));
     }
 
     @Test
@@ -209,8 +216,59 @@ public class StatsServiceTests {
         var tracks = createNormalTrackData();
 
         StatsComputation statsComputation = new StatsComputation(List.of(), testData);
-        List<Map<String, Object>> results = statsComputation.getTopFiveTracks();
+        List<TrackPlayCount> results = statsComputation.topTracks(5);
 
         assertEquals(0, results.size());
     }
+
+    private Map<String, Integer> countByIdWithGroupingBy(List<String> ids) {
+        return ids.stream().collect(Collectors.groupingBy(id -> id, Collectors.summingInt(_ -> 1)));
+    }
+
+    @Test
+    public void play_counts_match_grouping_by_id_under_very_large_data_state() {
+        List<PlayedTrack> testData = createLargeTestingData();
+        StatsComputation statsComputation = new StatsComputation(testData, testData);
+
+        Map<String, Integer> expectedTrackCounts = countByIdWithGroupingBy(testData.stream()
+                .map(x -> x.track().id())
+                .toList());
+        Map<String, Integer> expectedArtistCounts = countByIdWithGroupingBy(testData.stream()
+                .flatMap(x -> x.track().artists().stream())
+                .map(Artist::id)
+                .toList());
+
+        List<TrackPlayCount> topTracks = statsComputation.topTracks(expectedTrackCounts.size());
+        assertEquals(expectedTrackCounts, topTracks.stream()
+                .collect(Collectors.toMap(x -> x.track().id(), TrackPlayCount::playCount)));
+
+        List<ArtistPercentage> distribution = statsComputation.calculateArtistDistribution();
+        assertEquals(expectedArtistCounts, distribution.stream()
+                .collect(Collectors.toMap(x -> x.artist().id(), ArtistPercentage::playCount)));
+        for (int i = 1; i < distribution.size(); i++) {
+            assertTrue(distribution.get(i - 1).playCount() >= distribution.get(i).playCount());
+        }
+    }
+
+    @Test
+    public void heatmap_buckets_plays_by_local_time_for_each_block_length() {
+        List<PlayedTrack> testData = createLargeTestingData();
+        StatsComputation statsComputation = new StatsComputation(testData, testData);
+        ZoneId aus = ZoneId.of("Australia/Sydney");
+
+        for (int blockMinutes : List.of(5, 15, 30, 60)) {
+            ListeningTimeHeatmap heatmap = statsComputation.calculateListeningTimeHeatmap(blockMinutes);
+            assertEquals(24 * 60 / blockMinutes, heatmap.heatmap().size());
+
+            int[] expected = new int[heatmap.heatmap().size()];
+            for (PlayedTrack playedTrack : testData) {
+                LocalTime time = LocalTime.ofInstant(playedTrack.timeFinished(), aus);
+                expected[time.toSecondOfDay() / (blockMinutes * 60)]++;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], heatmap.heatmap().get(i).playCount());
+            }
+            assertEquals(testData.size(), heatmap.heatmap().stream().mapToInt(TimeBlock::playCount).sum());
+        }
+    }
 }
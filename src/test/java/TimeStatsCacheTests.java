@@ -0,0 +1,116 @@
+import com.pugking4.spotifystat.api.data.HistorySnapshot;
+import com.pugking4.spotifystat.api.data.Pair;
+import com.pugking4.spotifystat.api.data.PlayHistoryCache;
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.api.stats.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimeStatsCacheTests {
+    private final Instant baseline = Instant.parse("2025-06-01T00:00:00Z");
+
+    private List<Map<String, Object>> createHistoryRows(int count) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(FakeJdbc.historyRow("track1", "album1", "Device One", baseline.plusSeconds(i * 200L)));
+        }
+        return rows;
+    }
+
+    private TimePeriodStatsResponse createResponse() {
+        return new TimePeriodStatsResponse(null, null, null, null, null, null, null, null, null);
+    }
+
+    private double count(SimpleMeterRegistry registry, String result) {
+        return registry.get("stats.time.cache.requests").tag("result", result).counter().count();
+    }
+
+    private TimePeriodStatsResponse createResponse(SingleValueStats singleValueStats) {
+        return new TimePeriodStatsResponse(null, singleValueStats, null, null, null, null, null, null, null);
+    }
+
+    @Test
+    public void closed_periods_recompute_all_time_fields_and_drop_on_late_plays() {
+        TimeStatsRequest lastMonth = new TimeStatsRequest(TimeMode.CALENDAR, Calendar.MONTH, 1, null, null);
+        Pair<Instant, Instant> bounds = PlayHistoryCache.toInstantBounds(TimeUtility.getTrackingPeriod(Calendar.MONTH, 1));
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(FakeJdbc.historyRow("track" + i % 3, "album1", "Device One", bounds.left().plusSeconds(3600 + i * 200L)));
+        }
+        FakeJdbc jdbc = new FakeJdbc().history(rows);
+        PlayHistoryCache history = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        history.refresh();
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TimeStatsCache cache = new TimeStatsCache(registry, 16, 3600);
+        HistorySnapshot before = history.snapshot();
+        SingleValueStats beforeStats = new ColumnarStats(before, bounds.left(), bounds.right()).calculateAllSingleValueStats();
+        TimePeriodStatsResponse stored = createResponse(beforeStats);
+        assertNull(cache.find(lastMonth, before));
+        cache.put(lastMonth, before, stored);
+        assertSame(stored, cache.find(lastMonth, before));
+
+        // Replaying a track today means it was no longer only played last month
+        rows.add(FakeJdbc.historyRow("track0", "album1", "Device One", Instant.now()));
+        history.refresh();
+        HistorySnapshot replayed = history.snapshot();
+        SingleValueStats replayedStats = new ColumnarStats(replayed, bounds.left(), bounds.right()).calculateAllSingleValueStats();
+        assertNotEquals(beforeStats, replayedStats);
+        assertEquals(replayedStats, cache.find(lastMonth, replayed).allSingleValueStats());
+        assertEquals(replayedStats, cache.find(lastMonth, replayed).allSingleValueStats());
+
+        // A play of last month that arrives late changes the period itself
+        rows.add(FakeJdbc.historyRow("track1", "album1", "Device One", bounds.left().plusSeconds(60)));
+        history.refresh();
+        assertNull(cache.find(lastMonth, history.snapshot()));
+
+        assertEquals(3, count(registry, "hit"));
+        assertEquals(2, count(registry, "miss"));
+    }
+
+    @Test
+    public void open_windows_drop_on_new_plays() {
+        FakeJdbc jdbc = new FakeJdbc().history(createHistoryRows(10));
+        PlayHistoryCache history = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        history.refresh();
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TimeStatsCache cache = new TimeStatsCache(registry, 16, 3600);
+        TimeStatsRequest lastDay = new TimeStatsRequest(TimeMode.ROLLING, null, 0, 24, null);
+
+        HistorySnapshot before = history.snapshot();
+        TimePeriodStatsResponse stored = createResponse();
+        cache.put(lastDay, before, stored);
+        assertSame(stored, cache.find(lastDay, before));
+
+        jdbc.history(createHistoryRows(11));
+        history.refresh();
+        assertNull(cache.find(lastDay, history.snapshot()));
+
+        assertEquals(1, count(registry, "hit"));
+        assertEquals(1, count(registry, "miss"));
+    }
+
+    @Test
+    public void evicts_least_recently_used_beyond_max_entries() {
+        FakeJdbc jdbc = new FakeJdbc().history(createHistoryRows(1));
+        PlayHistoryCache history = new PlayHistoryCache(new TrackRepository(jdbc.dataSource()));
+        history.refresh();
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TimeStatsCache cache = new TimeStatsCache(registry, 2, 3600);
+        for (int offset = 0; offset < 5; offset++) {
+            cache.put(new TimeStatsRequest(TimeMode.CALENDAR, Calendar.WEEK, offset, null, null), history.snapshot(), createResponse());
+        }
+
+        assertEquals(3, registry.get("stats.time.cache.evictions").counter().count());
+        assertEquals(2, registry.get("stats.time.cache.size").gauge().value());
+    }
+}
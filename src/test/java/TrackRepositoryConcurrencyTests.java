@@ -0,0 +1,133 @@
+import com.pugking4.spotifystat.api.data.TrackRepository;
+import com.pugking4.spotifystat.common.dto.PlayedTrack;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrackRepositoryConcurrencyTests {
+    private FakeJdbc createNormalDatabase(int historyRows) {
+        Instant now = Instant.now();
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < historyRows; i++) {
+            rows.add(FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", now.minusSeconds(i * 200L)));
+        }
+
+        return new FakeJdbc()
+                .artist("artist1", "Artist One", 100, 50)
+                .albumArtists("album1", "artist1")
+                .trackArtists("track0", "artist1")
+                .trackArtists("track1", "artist1")
+                .trackArtists("track2", "artist1")
+                .history(rows)
+                .queryLatencyMs(50);
+    }
+
+    /**
+     * Pools the fake's connections the way {@code DatabaseConfig} pools the real ones, with timeouts short enough
+     * for a test.
+     */
+    private HikariDataSource createPool(FakeJdbc jdbc, int maximumPoolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("test-pool");
+        config.setDataSource(jdbc.dataSource());
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setConnectionTimeout(2_000);
+        config.setValidationTimeout(250);
+        return new HikariDataSource(config);
+    }
+
+    @Test
+    public void parallel_requests_share_a_pool_smaller_than_the_request_count() throws Exception {
+        FakeJdbc jdbc = createNormalDatabase(30);
+        int requests = 16;
+        int poolSize = 4;
+
+        try (HikariDataSource pool = createPool(jdbc, poolSize)) {
+            TrackRepository repository = new TrackRepository(pool);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<PlayedTrack>>> results = new ArrayList<>();
+            try (ExecutorService executor = Executors.newFixedThreadPool(requests)) {
+                for (int i = 0; i < requests; i++) {
+                    boolean recent = i % 2 == 0;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return recent ? repository.getRecentlyPlayedTracks(5) : repository.findAddedAfter(0).plays();
+                    }));
+                }
+                start.countDown();
+
+                for (Future<List<PlayedTrack>> result : results) {
+                    List<PlayedTrack> playedTracks = result.get(10, TimeUnit.SECONDS);
+                    assertFalse(playedTracks.isEmpty());
+                    assertEquals("artist1", playedTracks.getFirst().track().artists().getFirst().id());
+                }
+            }
+
+            assertTrue(jdbc.maxActiveQueries() > 1, "queries were serialized on a single connection");
+            assertTrue(jdbc.maxActiveQueries() <= poolSize, "more queries ran at once than the pool holds");
+            assertTrue(jdbc.openedConnections() <= poolSize, "connections were opened per request instead of reused");
+            assertEquals(0, pool.getHikariPoolMXBean().getActiveConnections(), "connections were not returned to the pool");
+        }
+        assertEquals(0, jdbc.openConnections(), "closing the pool left connections open");
+    }
+
+    @Test
+    public void pool_evicts_connections_that_fail_validation_and_reconnects() throws Exception {
+        FakeJdbc jdbc = createNormalDatabase(10).queryLatencyMs(0);
+
+        try (HikariDataSource pool = createPool(jdbc, 2)) {
+            TrackRepository repository = new TrackRepository(pool);
+            assertEquals(10, repository.findAddedAfter(0).plays().size());
+            int openedBefore = jdbc.openedConnections();
+
+            jdbc.available(false);
+            // Idle connections are only validated on borrow once they have been idle for 500ms
+            Thread.sleep(600);
+            assertThrows(RuntimeException.class, () -> repository.findAddedAfter(0));
+
+            jdbc.available(true);
+            assertEquals(10, repository.findAddedAfter(0).plays().size());
+            assertTrue(jdbc.openedConnections() > openedBefore, "a connection that failed validation was reused");
+            assertTrue(pool.getHikariPoolMXBean().getTotalConnections() <= 2);
+        }
+    }
+
+    @Test
+    public void streaming_pages_by_keyset_and_returns_the_connection_between_chunks() {
+        FakeJdbc jdbc = createNormalDatabase(10).queryLatencyMs(0);
+        // Ids counting down from the newest play, with plays sharing a finish time in twos
+        Instant now = Instant.now();
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> row = FakeJdbc.historyRow("track" + (i % 3), "album1", "Device One", now.minusSeconds(i / 2 * 200L));
+            row.put("id", 10L - i);
+            rows.add(row);
+        }
+        jdbc.history(rows);
+        TrackRepository repository = new TrackRepository(jdbc.dataSource());
+
+        List<List<PlayedTrack>> chunks = new ArrayList<>();
+        repository.streamRecentlyPlayed(null, 4, chunk -> {
+            assertEquals(0, jdbc.openConnections(), "a connection was held while the chunk was written");
+            chunks.add(chunk);
+        });
+
+        assertEquals(List.of(4, 4, 2), chunks.stream().map(List::size).toList());
+        List<PlayedTrack> streamed = chunks.stream().flatMap(List::stream).toList();
+        for (int i = 0; i < streamed.size(); i++) {
+            assertEquals(now.minusSeconds(i / 2 * 200L), streamed.get(i).timeFinished());
+        }
+
+        List<List<PlayedTrack>> limited = new ArrayList<>();
+        repository.streamRecentlyPlayed(5, 4, limited::add);
+        assertEquals(List.of(4, 1), limited.stream().map(List::size).toList());
+    }
+}